@@ -3,10 +3,12 @@ package desm.administration.client;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import desm.common.PlantInfo;
+import desm.common.PollutionWindow;
 import org.springframework.web.client.RestTemplate;
 
 import java.io.IOException;
 import java.net.URI;
+import java.net.http.HttpClient;
 import org.springframework.http.*;
 import org.springframework.web.client.RestTemplate;
 import java.net.http.HttpRequest;
@@ -14,6 +16,7 @@ import java.net.http.HttpResponse;
 import java.time.Duration;
 import java.util.List;
 import java.util.Scanner;
+import java.util.stream.Stream;
 
 public class AdministrationClient {
 
@@ -46,6 +49,9 @@ public class AdministrationClient {
                     getAveragePollution();
                     break;
                 case 3:
+                    followLivePollution();
+                    break;
+                case 4:
                     System.out.println("Exiting... Goodbye!");
                     return;
                 default:
@@ -61,8 +67,9 @@ public class AdministrationClient {
         System.out.println("Select an operation:");
         System.out.println("1. Get all plants in the network");
         System.out.println("2. Get average pollution between timestamps");
-        System.out.println("3. Exit");
-        System.out.print("Enter your choice (1-3): ");
+        System.out.println("3. Follow live pollution");
+        System.out.println("4. Exit");
+        System.out.print("Enter your choice (1-4): ");
     }
 
     private int getMenuChoice() {
@@ -122,6 +129,58 @@ public class AdministrationClient {
 
     }
 
+    /**
+     * Segue lo streaming /stream del server (Server-Sent Events) stampando l'aggregato
+     * di tutte le centrali di ogni finestra, finché non arrivano gli eventi richiesti.
+     */
+    private void followLivePollution() {
+        System.out.println("\n--- Following live pollution ---");
+
+        System.out.print("Enter window in ms (default 1000): ");
+        String window = scanner.nextLine().trim();
+        if (window.isEmpty()) {
+            window = "1000";
+        }
+
+        System.out.print("Enter number of updates to show (default 10): ");
+        String updates = scanner.nextLine().trim();
+        int limit;
+        try {
+            limit = updates.isEmpty() ? 10 : Integer.parseInt(updates);
+        } catch (NumberFormatException e) {
+            System.out.println("Invalid number of updates.");
+            return;
+        }
+
+        HttpRequest request = HttpRequest.newBuilder(URI.create(BASE_URL + "/stream?plants=false&window=" + window))
+                .header("Accept", "text/event-stream")
+                .build();
+        try {
+            HttpResponse<Stream<String>> response = HttpClient.newHttpClient()
+                    .send(request, HttpResponse.BodyHandlers.ofLines());
+            ObjectMapper mapper = new ObjectMapper();
+            // Chiudere lo stream chiude la connessione: senza, il server continuerebbe a inviare
+            try (Stream<String> lines = response.body()) {
+                lines.filter(line -> line.startsWith("data:"))
+                        .limit(limit)
+                        .forEach(line -> {
+                            try {
+                                PollutionWindow update = mapper.readValue(line.substring(5), PollutionWindow.class);
+                                System.out.println("# Window " + update.getStart() + ": average "
+                                        + String.format("%.2f", update.getFleet().getAverage())
+                                        + " over " + update.getFleet().getCount() + " measurements");
+                            } catch (IOException e) {
+                                System.out.println("Invalid update: " + line);
+                            }
+                        });
+            }
+        } catch (IOException e) {
+            System.out.println("Stream interrupted: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
     private void waitForEnter() {
         System.out.print("Press Enter to continue...");
         scanner.nextLine();
@@ -0,0 +1,64 @@
+package desm.administration.services;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark di PollutionStore con 100M medie memorizzate (2,8 GB fuori heap).
+ * Si esegue con ./gradlew :AdministrationServer:jmh
+ *
+ * average: media su un intervallo casuale, due ricerche binarie sui segmenti sigillati.
+ * addLate: inserimento di punti già sigillati, che passano dal buffer dei tardivi e
+ * vengono fusi a blocchi nella lista ordinata.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g", "-XX:MaxDirectMemorySize=4g"})
+public class PollutionStoreBenchmark {
+
+    // Una media ogni 8 ms per centrale, come con 10 centrali e finestre da 80 ms
+    private static final long STEP_MS = 8;
+    private static final int RANGES = 1 << 16;
+
+    @Param({"100000000"})
+    public long size;
+
+    private PollutionStore store;
+    private final long[] from = new long[RANGES];
+    private final long[] to = new long[RANGES];
+    private Random random;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void fill() {
+        store = new PollutionStore(0);
+        for (long i = 0; i < size; i++) {
+            store.add(i * STEP_MS, i % 97 * 0.5, (int) (i % 10));
+        }
+        random = new Random(41);
+        long last = (size - 1) * STEP_MS;
+        for (int i = 0; i < RANGES; i++) {
+            long a = (long) (random.nextDouble() * last);
+            long b = (long) (random.nextDouble() * last);
+            from[i] = Math.min(a, b);
+            to[i] = Math.max(a, b);
+        }
+    }
+
+    @Benchmark
+    public double average() {
+        int i = next++ & (RANGES - 1);
+        return store.average(from[i], to[i]);
+    }
+
+    @Benchmark
+    public void addLate() {
+        // Timestamp dispari: mai presenti fra i punti sigillati, tutti tardivi
+        store.add((long) (random.nextDouble() * (size - 1)) * STEP_MS + 1, 1.0, 0);
+    }
+}
@@ -1,17 +1,27 @@
 package desm.administration.controllers;
 
 import com.google.api.PageOrBuilder;
+import desm.administration.mqtt.PollutionIngestPipeline;
 import desm.administration.services.PlantService;
 import desm.administration.services.PollutionService;
+import desm.administration.services.PollutionStreamService;
+import desm.common.Config;
 import desm.common.PlantInfo;
+import desm.common.PollutionBucket;
+import desm.common.PollutionStats;
+import desm.common.QuantileSummary;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
 import java.util.List;
+import java.util.Map;
 
 @RestController
 @RequestMapping("/client")
@@ -19,11 +29,16 @@ public class ClientController {
 
     private final PollutionService pollutionService;
     private final PlantService plantService;
+    private final PollutionStreamService pollutionStreamService;
+    private final PollutionIngestPipeline ingestPipeline;
 
     @Autowired
-    public ClientController(PollutionService pollutionService, PlantService plantService){
+    public ClientController(PollutionService pollutionService, PlantService plantService,
+                            PollutionStreamService pollutionStreamService, PollutionIngestPipeline ingestPipeline){
         this.pollutionService = pollutionService;
         this.plantService = plantService;
+        this.pollutionStreamService = pollutionStreamService;
+        this.ingestPipeline = ingestPipeline;
     }
 
     @GetMapping("/allPlants")
@@ -37,5 +52,54 @@ public class ClientController {
         return pollutionService.computeAverageBetween(t1,t2);
     }
 
+    @GetMapping("/quantiles/{t1}/{t2}")
+    public QuantileSummary getQuantiles(@PathVariable String t1, @PathVariable String t2,
+                                        @RequestParam(defaultValue = Config.POLLUTION_PRIMARY_TYPE) String type){
+        return pollutionService.computeQuantilesBetween(t1,t2,type);
+    }
+
+    @GetMapping("/stats/{t1}/{t2}")
+    public PollutionStats getStats(@PathVariable String t1, @PathVariable String t2,
+                                   @RequestParam(defaultValue = Config.POLLUTION_PRIMARY_TYPE) String type){
+        return pollutionService.computeStatsBetween(t1,t2,type);
+    }
+
+    @GetMapping("/plants/{plantId}/stats/{t1}/{t2}")
+    public PollutionStats getPlantStats(@PathVariable String plantId, @PathVariable String t1, @PathVariable String t2,
+                                        @RequestParam(defaultValue = Config.POLLUTION_PRIMARY_TYPE) String type){
+        return pollutionService.computePlantStatsBetween(plantId,t1,t2,type);
+    }
+
+    @GetMapping("/top/{t1}/{t2}")
+    public List<PollutionStats> getTopEmitters(@PathVariable String t1, @PathVariable String t2,
+                                               @RequestParam(defaultValue = "5") int k,
+                                               @RequestParam(defaultValue = Config.POLLUTION_PRIMARY_TYPE) String type){
+        return pollutionService.computeTopEmittersBetween(t1,t2,type,k);
+    }
+
+    @GetMapping("/series/{t1}/{t2}")
+    public List<PollutionBucket> getSeries(@PathVariable String t1, @PathVariable String t2,
+                                           @RequestParam(defaultValue = "60000") long bucket,
+                                           @RequestParam(defaultValue = Config.POLLUTION_PRIMARY_TYPE) String type,
+                                           @RequestParam(required = false) String plantId){
+        return pollutionService.computeSeriesBetween(t1,t2,bucket,type,plantId);
+    }
+
+    @GetMapping(value = "/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public SseEmitter streamPollution(@RequestParam(defaultValue = Config.POLLUTION_PRIMARY_TYPE) String type,
+                                      @RequestParam(defaultValue = "1000") long window,
+                                      @RequestParam(required = false) String plantId,
+                                      @RequestParam(defaultValue = "true") boolean plants){
+        return pollutionStreamService.subscribe(type,window,plantId,plants);
+    }
+
+    @GetMapping("/storage")
+    public Map<String, Object> getStorageMetrics(){
+        Map<String, Object> metrics = pollutionService.getStorageMetrics();
+        metrics.put("stream", pollutionStreamService.metrics());
+        metrics.put("ingest", ingestPipeline.metrics());
+        return metrics;
+    }
+
 
 }
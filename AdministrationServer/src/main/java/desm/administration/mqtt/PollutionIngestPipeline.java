@@ -0,0 +1,275 @@
+package desm.administration.mqtt;
+
+import com.google.gson.Gson;
+import com.google.protobuf.InvalidProtocolBufferException;
+import desm.administration.services.PollutionService;
+import desm.administration.services.PollutionStreamService;
+import desm.common.Config;
+import desm.common.PayloadCodec;
+import desm.common.PollutionData;
+import desm.common.SensorSeries;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Pipeline di ingestione dei messaggi di inquinamento.
+ * Il callback di Paho copia solo il payload grezzo in un ring a capacità fissa e ritorna;
+ * POLLUTION_INGEST_WORKERS thread estraggono blocchi di messaggi, li decodificano in
+ * parallelo con un parser condiviso e li archiviano con una sola chiamata a
+ * PollutionService (un'acquisizione del lock e un'attesa del group commit per blocco).
+ * A coda piena il callback attende: i messaggi non vengono scartati e la pressione
+ * risale fino al broker.
+ * Ogni messaggio porta con sé la conferma da inviare al broker, eseguita dal worker solo
+ * dopo che il blocco è sul log su disco: l'ack di un messaggio QoS 1 segue quindi la
+ * fsync anche se il callback ritorna subito.
+ */
+@Component
+public class PollutionIngestPipeline {
+
+    private static final Logger logger = LoggerFactory.getLogger(PollutionIngestPipeline.class);
+
+    // Gson è thread-safe: un'istanza per tutti i worker
+    private static final Gson gson = new Gson();
+
+    private final PollutionService pollutionService;
+    private final PollutionStreamService pollutionStreamService;
+
+    private final int capacity = Config.POLLUTION_INGEST_QUEUE_CAPACITY;
+    private final byte[][] payloads = new byte[capacity][];
+    private final Runnable[] acks = new Runnable[capacity];
+    private final long[] arrivals = new long[capacity];
+    private int head;
+    private int count;
+    private final Object lock = new Object();
+    private volatile boolean running;
+    private final List<Thread> workers = new ArrayList<>();
+
+    // Contatori, protetti da lock
+    private long received;
+    private long processed;
+    private long decodeErrors;
+    private long storeErrors;
+    private long blocked;
+    private int maxDepth;
+    private long lastLagMs;
+    private long maxLagMs;
+    private long batches;
+    private long rateSampledAt = System.currentTimeMillis();
+    private long rateSampledProcessed;
+    private double rate;
+
+    public PollutionIngestPipeline(PollutionService pollutionService, PollutionStreamService pollutionStreamService) {
+        this.pollutionService = pollutionService;
+        this.pollutionStreamService = pollutionStreamService;
+    }
+
+    @PostConstruct
+    public void start() {
+        running = true;
+        for (int i = 0; i < Config.POLLUTION_INGEST_WORKERS; i++) {
+            Thread worker = new Thread(this::workerLoop, "pollution-ingest-" + i);
+            worker.setDaemon(true);
+            workers.add(worker);
+            worker.start();
+        }
+    }
+
+    @PreDestroy
+    public void stop() {
+        running = false;
+        synchronized (lock) {
+            lock.notifyAll();
+        }
+        for (Thread worker : workers) {
+            try {
+                worker.join(5000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Chiamato dal thread di callback di Paho: accoda il payload senza decodificarlo.
+     * @param onStored conferma al broker, eseguita quando il messaggio è archiviato in modo
+     *                 durevole (o scartato perché non decodificabile)
+     */
+    public void offer(byte[] payload, Runnable onStored) {
+        synchronized (lock) {
+            if (count == capacity && running) {
+                blocked++;
+                while (count == capacity && running) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+            }
+            if (!running) {
+                // Pipeline fermata: senza ack il broker può riconsegnare il messaggio
+                return;
+            }
+            int tail = (head + count) % capacity;
+            payloads[tail] = payload;
+            acks[tail] = onStored;
+            arrivals[tail] = System.currentTimeMillis();
+            count++;
+            received++;
+            maxDepth = Math.max(maxDepth, count);
+            lock.notifyAll();
+        }
+    }
+
+    private void workerLoop() {
+        byte[][] batch = new byte[Config.POLLUTION_INGEST_BATCH][];
+        Runnable[] batchAcks = new Runnable[Config.POLLUTION_INGEST_BATCH];
+        List<PollutionData> decoded = new ArrayList<>(Config.POLLUTION_INGEST_BATCH);
+        while (true) {
+            int n;
+            long oldestArrival;
+            synchronized (lock) {
+                while (count == 0 && running) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (count == 0) {
+                    // Fermata e coda svuotata
+                    return;
+                }
+                n = Math.min(count, batch.length);
+                oldestArrival = arrivals[head];
+                for (int i = 0; i < n; i++) {
+                    batch[i] = payloads[head];
+                    batchAcks[i] = acks[head];
+                    payloads[head] = null;
+                    acks[head] = null;
+                    head = (head + 1) % capacity;
+                }
+                count -= n;
+                lock.notifyAll();
+            }
+
+            int errors = 0;
+            for (int i = 0; i < n; i++) {
+                try {
+                    decoded.add(decode(batch[i]));
+                } catch (Exception e) {
+                    errors++;
+                    logger.error("Error decoding pollution message: {}", e.getMessage());
+                }
+                batch[i] = null;
+            }
+            int rejected = 0;
+            List<PollutionData> stored = null;
+            try {
+                stored = pollutionService.addPayloadsFromSubscriber(decoded);
+                rejected = decoded.size() - stored.size();
+            } catch (Exception e) {
+                rejected = decoded.size();
+                logger.error("Error storing {} pollution messages: {}", decoded.size(), e.getMessage(), e);
+            }
+            if (stored != null) {
+                try {
+                    pollutionStreamService.publish(stored);
+                } catch (Exception e) {
+                    logger.error("Error streaming {} pollution messages: {}", stored.size(), e.getMessage(), e);
+                }
+            }
+            // Solo ora il blocco è sul log: si conferma al broker. Si confermano anche i
+            // messaggi non archiviati, che riconsegnati fallirebbero di nuovo e che senza ack
+            // occuperebbero per sempre uno slot della finestra in-flight della connessione
+            for (int i = 0; i < n; i++) {
+                acknowledge(batchAcks[i]);
+                batchAcks[i] = null;
+            }
+            long lag = System.currentTimeMillis() - oldestArrival;
+            synchronized (lock) {
+                processed += n;
+                decodeErrors += errors;
+                storeErrors += rejected;
+                batches++;
+                lastLagMs = lag;
+                maxLagMs = Math.max(maxLagMs, lag);
+            }
+            decoded.clear();
+        }
+    }
+
+    private static void acknowledge(Runnable onStored) {
+        if (onStored == null) {
+            return;
+        }
+        try {
+            onStored.run();
+        } catch (Exception e) {
+            logger.warn("Error acknowledging pollution message: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Decodifica un messaggio di inquinamento: JSON dai client più vecchi, altrimenti
+     * protobuf con le serie compresse con GorillaCodec, che vengono espanse con il
+     * timestamp di fine di ogni finestra.
+     */
+    private static PollutionData decode(byte[] raw) throws InvalidProtocolBufferException {
+        if (!PayloadCodec.isBinary(raw)) {
+            return gson.fromJson(new String(raw, StandardCharsets.UTF_8), PollutionData.class);
+        }
+        PollutionData payload = PayloadCodec.decodePollutionData(raw);
+        if (logger.isDebugEnabled()) {
+            int samples = 0;
+            for (SensorSeries series : payload.getSeries()) {
+                samples += series.getAverages().size();
+            }
+            logger.debug("Decoded {} averages in {} series from {} bytes",
+                    samples, payload.getSeries().size(), raw.length);
+        }
+        return payload;
+    }
+
+    /**
+     * @return profondità della coda, messaggi al secondo, ritardo fra arrivo e archiviazione
+     *         del messaggio più vecchio dell'ultimo blocco ed errori
+     */
+    public Map<String, Object> metrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        synchronized (lock) {
+            // Il ritmo è misurato fra due letture distanti almeno un secondo
+            long now = System.currentTimeMillis();
+            if (now - rateSampledAt >= 1000) {
+                rate = (processed - rateSampledProcessed) * 1000.0 / (now - rateSampledAt);
+                rateSampledAt = now;
+                rateSampledProcessed = processed;
+            }
+            metrics.put("depth", count);
+            metrics.put("capacity", capacity);
+            metrics.put("maxDepth", maxDepth);
+            metrics.put("received", received);
+            metrics.put("processed", processed);
+            metrics.put("messagesPerSecond", rate);
+            metrics.put("batches", batches);
+            metrics.put("averageBatch", batches == 0 ? 0.0 : (double) processed / batches);
+            metrics.put("lagMs", lastLagMs);
+            metrics.put("maxLagMs", maxLagMs);
+            metrics.put("blocked", blocked);
+            metrics.put("decodeErrors", decodeErrors);
+            metrics.put("storeErrors", storeErrors);
+        }
+        return metrics;
+    }
+}
@@ -1,39 +1,54 @@
 package desm.administration.mqtt;
 
-import desm.administration.services.PollutionService;
 import desm.common.Config;
-import desm.common.PollutionData;
+import desm.common.PollutionSubscriptionMode;
 import org.eclipse.paho.client.mqttv3.*;
-import com.google.gson.Gson;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Component;
 
 import javax.annotation.PreDestroy;
-
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Riceve i dati di inquinamento dalle centrali su una o più connessioni MQTT
+ * (Config.POLLUTION_SUBSCRIPTION_MODE) e li passa tutti alla stessa pipeline di ingestione.
+ * Ogni connessione ha il proprio thread di callback di Paho.
+ *
+ * Gli ack sono manuali: il callback accoda il messaggio e ritorna, la conferma al broker
+ * parte dal worker della pipeline dopo la fsync del log. Il broker limita i messaggi
+ * non confermati per connessione (max_inflight_messages di Mosquitto, 20 di default),
+ * quindi ogni connessione riceve al più quel numero di messaggi per group commit
+ * (POLLUTION_LOG_COMMIT_DELAY_MS): per ritmi più alti si alza il limite del broker o si
+ * usano più connessioni (POLLUTION_SUBSCRIPTION_MODE).
+ */
 @Component
 public class PollutionSubscriber {
 
     private static final Logger logger = LoggerFactory.getLogger(PollutionSubscriber.class);
 
-    private MqttClient client;
+    private final List<MqttClient> clients = new ArrayList<>();
     private final String broker = Config.MQTT_BROKER_URL;
-    private final String clientId = MqttClient.generateClientId();
-    private final String topic = Config.PLANT_POLLUTION_TOPIC;
+    private final PollutionSubscriptionMode mode = PollutionSubscriptionMode.fromConfig();
     private final int qos = Config.PROVIDER_QOS;
     private final int MAX_RECONNECT_DELAY = 5000;
 
-    private final PollutionService pollutionService;
+    private final PollutionIngestPipeline ingestPipeline;
 
-    public PollutionSubscriber(PollutionService pollutionService) {
-        this.pollutionService = pollutionService;
-        setupMqttClient();
+    public PollutionSubscriber(PollutionIngestPipeline ingestPipeline) {
+        this.ingestPipeline = ingestPipeline;
+        setupMqttClients();
     }
 
-    private void setupMqttClient() {
+    private void setupMqttClients() {
         try {
-            this.client = new MqttClient(broker, clientId);
-            logger.info("MQTT Client created with ID: {}", clientId);
+            for (int i = 0; i < mode.connections(); i++) {
+                MqttClient client = new MqttClient(broker, MqttClient.generateClientId());
+                clients.add(client);
+                logger.info("MQTT Client created with ID: {}", client.getClientId());
+            }
         } catch (MqttException me) {
             logger.error("Failed to create MQTT client", me);
             throw new RuntimeException("Failed to initialize MQTT client", me);
@@ -42,46 +57,60 @@ public class PollutionSubscriber {
 
     public void startListening() {
         try {
-            if (client == null) {
-                setupMqttClient();
+            if (clients.isEmpty()) {
+                setupMqttClients();
             }
 
-            if (!client.isConnected()) {
-                connect();
+            for (int i = 0; i < clients.size(); i++) {
+                if (!clients.get(i).isConnected()) {
+                    connect(clients.get(i), mode.subscriptionTopics(i));
+                }
             }
 
-            logger.info("MQTT Client successfully connected and listening to topic: {}", topic);
+            logger.info("{} MQTT Clients successfully connected and listening ({} mode)", clients.size(), mode);
         } catch (MqttException me) {
             logger.error("Failed to start listening", me);
             throw new RuntimeException("Failed to start MQTT listener", me);
         }
     }
 
-    private void connect() throws MqttException {
+    private void connect(MqttClient client, List<String> topics) throws MqttException {
         MqttConnectOptions connOpts = new MqttConnectOptions();
         connOpts.setCleanSession(true);
         connOpts.setAutomaticReconnect(true);
         connOpts.setMaxReconnectDelay(MAX_RECONNECT_DELAY);
 
-        client.setCallback(new MqttCallback() {
+        String[] filters = topics.toArray(new String[0]);
+        int[] qosLevels = new int[filters.length];
+        Arrays.fill(qosLevels, qos);
+
+        client.setManualAcks(true);
+        client.setCallback(new MqttCallbackExtended() {
             @Override
-            public void messageArrived(String topic, MqttMessage message) {
+            public void connectComplete(boolean reconnect, String serverURI) {
+                // Con clean session il broker dimentica le sottoscrizioni: si rifanno a ogni riconnessione
+                if (!reconnect) {
+                    return;
+                }
                 try {
-                    String receivedMessage = new String(message.getPayload());
-                    logger.debug("Received message on topic", topic);
-
-                    Gson gson = new Gson();
-
-                    PollutionData payload = gson.fromJson(receivedMessage, PollutionData.class);
-                    pollutionService.addPayloadFromSubscriber(payload);
-                } catch (Exception e) {
-                    logger.error("Error processing message: {}", e.getMessage(), e);
+                    client.subscribe(filters, qosLevels);
+                    logger.info("MQTT Client {} reconnected and subscribed again", client.getClientId());
+                } catch (MqttException e) {
+                    logger.error("Failed to subscribe again after reconnect: {}", e.getMessage());
                 }
             }
 
+            @Override
+            public void messageArrived(String topic, MqttMessage message) {
+                // Decodifica, archiviazione e ack avvengono nei worker della pipeline
+                int messageId = message.getId();
+                int messageQos = message.getQos();
+                ingestPipeline.offer(message.getPayload(), () -> acknowledge(client, messageId, messageQos));
+            }
+
             @Override
             public void connectionLost(Throwable cause) {
-                logger.warn("Connection lost for client {}. Cause: {}", clientId, cause.getMessage());
+                logger.warn("Connection lost for client {}. Cause: {}", client.getClientId(), cause.getMessage());
 
             }
 
@@ -92,23 +121,43 @@ public class PollutionSubscriber {
         });
 
         client.connect(connOpts);
-        client.subscribe(topic, qos);
+        client.subscribe(filters, qosLevels);
+        logger.info("MQTT Client {} listening to topics: {}", client.getClientId(), topics);
+    }
+
+    private void acknowledge(MqttClient client, int messageId, int messageQos) {
+        try {
+            client.messageArrivedComplete(messageId, messageQos);
+        } catch (MqttException e) {
+            // Connessione persa: il broker riconsegnerà il messaggio se la sessione lo prevede
+            logger.debug("Failed to acknowledge message {}: {}", messageId, e.getMessage());
+        }
     }
 
     @PreDestroy
     public void shutdown() {
-        try {
-            if (client != null && client.isConnected()) {
-                client.disconnect();
-                client.close();
-                logger.info("MQTT Client disconnected and closed");
+        for (MqttClient client : clients) {
+            try {
+                if (client.isConnected()) {
+                    client.disconnect();
+                    client.close();
+                    logger.info("MQTT Client {} disconnected and closed", client.getClientId());
+                }
+            } catch (MqttException e) {
+                logger.error("Error during MQTT client shutdown", e);
             }
-        } catch (MqttException e) {
-            logger.error("Error during MQTT client shutdown", e);
         }
     }
 
     public boolean isConnected() {
-        return client != null && client.isConnected();
+        if (clients.isEmpty()) {
+            return false;
+        }
+        for (MqttClient client : clients) {
+            if (!client.isConnected()) {
+                return false;
+            }
+        }
+        return true;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,105 @@
+package desm.administration.services;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Codifica a dizionario degli id delle centrali: ogni id riceve un intero progressivo
+ * alla prima occorrenza, così l'archivio colonnare memorizza 4 byte per media invece di
+ * un riferimento a String. Lo stesso dizionario codifica i tipi di inquinante nel log.
+ *
+ * Con un journal (open) ogni nuovo id viene aggiunto al file, una riga per codice, e forzato
+ * su disco prima di essere usato: i codici scritti nel log restano decodificabili dopo
+ * un riavvio.
+ *
+ * Non è thread-safe: va protetto dal chiamante.
+ */
+public class PlantDictionary {
+
+    private final Map<String, Integer> codes = new HashMap<>();
+    private final List<String> names = new ArrayList<>();
+    private FileOutputStream journal;
+
+    /**
+     * Ricarica i codici dal journal e vi aggiunge i nuovi id da qui in avanti.
+     * Va chiamato prima del primo encode.
+     */
+    public void open(File file) throws IOException {
+        if (file.isFile()) {
+            try (BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    codes.put(line, names.size());
+                    names.add(line);
+                }
+            }
+        }
+        journal = new FileOutputStream(file, true);
+    }
+
+    public void close() throws IOException {
+        if (journal != null) {
+            journal.close();
+            journal = null;
+        }
+    }
+
+    /**
+     * @return codice dell'id, assegnato se è la prima occorrenza
+     */
+    public int encode(String plantId) {
+        Integer code = codes.get(plantId);
+        if (code == null) {
+            if (journal != null) {
+                append(plantId);
+            }
+            code = names.size();
+            codes.put(plantId, code);
+            names.add(plantId);
+        }
+        return code;
+    }
+
+    private void append(String name) {
+        try {
+            journal.write((name + "\n").getBytes(StandardCharsets.UTF_8));
+            journal.getFD().sync();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot write dictionary journal", e);
+        }
+    }
+
+    /**
+     * @return codice dell'id, -1 se non è mai stato visto
+     */
+    public int lookup(String plantId) {
+        Integer code = codes.get(plantId);
+        return code == null ? -1 : code;
+    }
+
+    public String decode(int code) {
+        return names.get(code);
+    }
+
+    public int size() {
+        return names.size();
+    }
+
+    /**
+     * @return id delle centrali in ordine di prima occorrenza
+     */
+    public List<String> names() {
+        return new ArrayList<>(names);
+    }
+}
@@ -0,0 +1,144 @@
+package desm.administration.services;
+
+import desm.common.TDigest;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * Checkpoint periodico dell'indice in memoria: rollup di ogni tipo e di ogni centrale con
+ * i loro cutoff e sketch dei quantili, insieme all'LSN del log fino al quale sono aggiornati.
+ * In ripartenza si carica il checkpoint e si rileggono dal log solo i record successivi
+ * (più quelli ancora nella retention dei dati grezzi, che non sono nel checkpoint).
+ *
+ * Il file viene scritto accanto con un nome temporaneo, forzato su disco e poi rinominato,
+ * quindi dopo un crash resta sempre l'ultimo checkpoint completo.
+ */
+final class PollutionCheckpoint {
+
+    private static final int MAGIC = 0x50434B50;
+    // La versione 1 non contiene i rollup per centrale
+    private static final int VERSION = 2;
+
+    private PollutionCheckpoint() {
+    }
+
+    /**
+     * Serializza in memoria lo stato: va chiamato sotto il lock del servizio,
+     * la scrittura su file (write) può avvenire fuori dal lock.
+     */
+    static byte[] serialize(long lsn, Map<String, RollupTiers> rollups,
+                            Map<String, Map<Integer, RollupTiers>> plantRollups,
+                            Map<String, TreeMap<Long, TDigest>> sketches) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(lsn);
+        out.writeInt(rollups.size());
+        for (Map.Entry<String, RollupTiers> entry : rollups.entrySet()) {
+            out.writeUTF(entry.getKey());
+            entry.getValue().writeTo(out);
+        }
+        out.writeInt(plantRollups.size());
+        for (Map.Entry<String, Map<Integer, RollupTiers>> entry : plantRollups.entrySet()) {
+            out.writeUTF(entry.getKey());
+            out.writeInt(entry.getValue().size());
+            for (Map.Entry<Integer, RollupTiers> plant : entry.getValue().entrySet()) {
+                out.writeInt(plant.getKey());
+                plant.getValue().writeTo(out);
+            }
+        }
+        out.writeInt(sketches.size());
+        for (Map.Entry<String, TreeMap<Long, TDigest>> entry : sketches.entrySet()) {
+            out.writeUTF(entry.getKey());
+            out.writeInt(entry.getValue().size());
+            for (Map.Entry<Long, TDigest> bucket : entry.getValue().entrySet()) {
+                byte[] digest = bucket.getValue().toBytes();
+                out.writeLong(bucket.getKey());
+                out.writeInt(digest.length);
+                out.write(digest);
+            }
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    static void write(File file, byte[] snapshot) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            out.write(snapshot);
+            out.getFD().sync();
+        }
+        if (!tmp.renameTo(file)) {
+            // Su alcuni file system renameTo non sovrascrive
+            if (!file.delete() || !tmp.renameTo(file)) {
+                throw new IOException("Cannot replace checkpoint " + file);
+            }
+        }
+    }
+
+    /**
+     * Carica il checkpoint nelle mappe del servizio.
+     * @param factory crea i rollup (con il loro archivio grezzo) di un tipo
+     * @param plantFactory crea i rollup di una centrale per un tipo già caricato
+     * @return LSN del primo record del log non contenuto nel checkpoint, 0 se non c'è checkpoint
+     */
+    static long load(File file, Map<String, RollupTiers> rollups, Map<String, Map<Integer, RollupTiers>> plantRollups,
+                     Map<String, TreeMap<Long, TDigest>> sketches, Function<String, RollupTiers> factory,
+                     BiFunction<String, Integer, RollupTiers> plantFactory) throws IOException {
+        if (!file.isFile()) {
+            return 0;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            int version = 0;
+            if (in.readInt() != MAGIC || (version = in.readInt()) > VERSION) {
+                throw new IOException("Unsupported checkpoint " + file);
+            }
+            long lsn = in.readLong();
+            int types = in.readInt();
+            for (int i = 0; i < types; i++) {
+                String type = in.readUTF();
+                RollupTiers tiers = factory.apply(type);
+                tiers.readFrom(in);
+                rollups.put(type, tiers);
+            }
+            int plantTypes = version >= 2 ? in.readInt() : 0;
+            for (int i = 0; i < plantTypes; i++) {
+                String type = in.readUTF();
+                int plants = in.readInt();
+                for (int j = 0; j < plants; j++) {
+                    int plant = in.readInt();
+                    RollupTiers tiers = plantFactory.apply(type, plant);
+                    tiers.readFrom(in);
+                    plantRollups.computeIfAbsent(type, t -> new HashMap<>()).put(plant, tiers);
+                }
+            }
+            int sketchTypes = in.readInt();
+            for (int i = 0; i < sketchTypes; i++) {
+                String type = in.readUTF();
+                int size = in.readInt();
+                TreeMap<Long, TDigest> buckets = new TreeMap<>();
+                for (int j = 0; j < size; j++) {
+                    long key = in.readLong();
+                    byte[] digest = new byte[in.readInt()];
+                    in.readFully(digest);
+                    buckets.put(key, TDigest.fromBytes(digest));
+                }
+                sketches.put(type, buckets);
+            }
+            return lsn;
+        }
+    }
+}
@@ -0,0 +1,390 @@
+package desm.administration.services;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Log append-only (write-ahead) delle medie ricevute dal server, diviso in segmenti
+ * di dimensione fissa mappati in memoria.
+ *
+ * Ogni segmento ha un'intestazione (magic, record confermati, timestamp minimo e massimo)
+ * seguita da record di RECORD_SIZE byte: timestamp, valore, codice della centrale, codice
+ * del tipo e CRC32 dei campi precedenti. Ogni record ha un numero di sequenza globale (LSN)
+ * pari alla sua posizione nel log.
+ *
+ * Group commit: append scrive solo nella mappa; un thread dedicato attende commitDelayMs
+ * per raccogliere gli append concorrenti, poi forza su disco dati e intestazione con due
+ * fsync e risveglia chi attende in awaitDurable. Il costo di un fsync è così condiviso
+ * fra tutti i record arrivati nel frattempo.
+ *
+ * In ripartenza i segmenti vengono mappati e letti per campi a offset fissi, senza
+ * deserializzare: i segmenti già coperti dal checkpoint e più vecchi dei dati grezzi
+ * vengono saltati usando solo l'intestazione.
+ */
+public class PollutionLog implements Runnable {
+    private static final Logger logger = LoggerFactory.getLogger(PollutionLog.class);
+
+    /**
+     * Riceve i record letti dal log in ordine di LSN.
+     */
+    public interface Visitor {
+        void visit(long lsn, long timestamp, double value, int plant, int type);
+    }
+
+    private static final int MAGIC = 0x504C4F47;
+    private static final int HEADER_SIZE = 64;
+    private static final int MAGIC_OFFSET = 0;
+    private static final int COMMITTED_OFFSET = 8;
+    private static final int MIN_TS_OFFSET = 16;
+    private static final int MAX_TS_OFFSET = 24;
+    private static final int RECORD_SIZE = 32;
+    private static final String PREFIX = "pollution-log-";
+    private static final String SUFFIX = ".dat";
+
+    private final File directory;
+    private final int recordsPerSegment;
+    private final long commitDelayMs;
+    private final Object lock = new Object();
+    private final CRC32 crc = new CRC32();
+    private final byte[] crcScratch = new byte[24];
+    private volatile boolean running;
+    private Thread committer;
+
+    // Segmento attivo e posizioni, protetti da lock
+    private MappedByteBuffer active;
+    private long activeSeq;
+    private int activeCount;
+    private long activeMinTs = Long.MAX_VALUE;
+    private long activeMaxTs = Long.MIN_VALUE;
+    private long appended;
+    private long durable;
+    // Segmenti riempiti ma non ancora forzati su disco dal committer
+    private final List<MappedByteBuffer> sealed = new ArrayList<>();
+
+    // Metriche, protette da lock
+    private long commits;
+    private long committedRecords;
+    private long lastCommitMicros;
+
+    public PollutionLog(File directory, int segmentBytes, long commitDelayMs) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create pollution log directory " + directory);
+        }
+        this.directory = directory;
+        this.recordsPerSegment = (segmentBytes - HEADER_SIZE) / RECORD_SIZE;
+        this.commitDelayMs = commitDelayMs;
+    }
+
+    /**
+     * Rilegge il log e apre per l'append il segmento successivo all'ultimo record valido.
+     * Vengono visitati i record con LSN >= fromLsn oppure timestamp >= minTimestamp;
+     * i segmenti che non ne contengono sono saltati senza leggerli.
+     * @return numero di record visitati
+     */
+    public long recover(long fromLsn, long minTimestamp, Visitor visitor) throws IOException {
+        long visited = 0;
+        long[] seqs = segmentSequences();
+        synchronized (lock) {
+            for (long seq : seqs) {
+                MappedByteBuffer map = map(seq);
+                if (map.getInt(MAGIC_OFFSET) != MAGIC) {
+                    logger.warn("Skipping pollution log segment {} with bad magic", seq);
+                    continue;
+                }
+                int count = validRecords(map);
+                long firstLsn = seq * recordsPerSegment;
+                long lastLsn = firstLsn + count - 1;
+                if (lastLsn >= fromLsn || map.getLong(MAX_TS_OFFSET) >= minTimestamp) {
+                    for (int i = 0; i < count; i++) {
+                        int offset = HEADER_SIZE + i * RECORD_SIZE;
+                        long timestamp = map.getLong(offset);
+                        if (firstLsn + i >= fromLsn || timestamp >= minTimestamp) {
+                            visitor.visit(firstLsn + i, timestamp, map.getDouble(offset + 8),
+                                    map.getInt(offset + 16), map.getInt(offset + 20));
+                            visited++;
+                        }
+                    }
+                }
+                activeSeq = seq;
+                activeCount = count;
+                active = map;
+                activeMinTs = map.getLong(MIN_TS_OFFSET);
+                activeMaxTs = map.getLong(MAX_TS_OFFSET);
+            }
+            if (active == null) {
+                activeSeq = 0;
+                activeCount = 0;
+                active = create(0);
+            }
+            appended = activeSeq * recordsPerSegment + activeCount;
+            durable = appended;
+            if (activeCount == recordsPerSegment) {
+                roll();
+            }
+        }
+        logger.info("Recovered pollution log: {} segments, {} records replayed, next LSN {}",
+                seqs.length, visited, appended);
+        return visited;
+    }
+
+    /**
+     * Numero di record validi del segmento: quelli confermati nell'intestazione più
+     * eventuali record successivi scritti prima di un crash, finché il CRC è corretto.
+     */
+    private int validRecords(MappedByteBuffer map) {
+        int count = (int) Math.min(map.getLong(COMMITTED_OFFSET), recordsPerSegment);
+        while (count < recordsPerSegment && checksumMatches(map, HEADER_SIZE + count * RECORD_SIZE)) {
+            count++;
+        }
+        return count;
+    }
+
+    public void start() {
+        running = true;
+        committer = new Thread(this, "PollutionLog");
+        committer.setDaemon(true);
+        committer.start();
+    }
+
+    /**
+     * Scrive un record nel segmento attivo, senza attendere il disco.
+     * @return LSN del record, da passare ad awaitDurable
+     */
+    public long append(long timestamp, double value, int plant, int type) {
+        synchronized (lock) {
+            if (activeCount == recordsPerSegment) {
+                roll();
+            }
+            int offset = HEADER_SIZE + activeCount * RECORD_SIZE;
+            active.putLong(offset, timestamp);
+            active.putDouble(offset + 8, value);
+            active.putInt(offset + 16, plant);
+            active.putInt(offset + 20, type);
+            active.putInt(offset + 24, checksum(active, offset));
+            activeCount++;
+            activeMinTs = Math.min(activeMinTs, timestamp);
+            activeMaxTs = Math.max(activeMaxTs, timestamp);
+            long lsn = appended++;
+            lock.notifyAll();
+            return lsn;
+        }
+    }
+
+    /**
+     * Attende che il record con il numero di sequenza indicato sia su disco.
+     */
+    public void awaitDurable(long lsn) throws InterruptedException {
+        synchronized (lock) {
+            while (running && durable <= lsn) {
+                lock.wait();
+            }
+        }
+    }
+
+    /**
+     * @return LSN del prossimo record: tutti quelli precedenti sono già stati scritti nella mappa
+     */
+    public long nextLsn() {
+        synchronized (lock) {
+            return appended;
+        }
+    }
+
+    private void roll() {
+        writeHeader(active, activeCount, activeMinTs, activeMaxTs);
+        sealed.add(active);
+        activeSeq++;
+        activeCount = 0;
+        activeMinTs = Long.MAX_VALUE;
+        activeMaxTs = Long.MIN_VALUE;
+        try {
+            active = create(activeSeq);
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot create pollution log segment " + activeSeq, e);
+        }
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                List<MappedByteBuffer> toForce;
+                MappedByteBuffer current;
+                long target;
+                synchronized (lock) {
+                    while (running && appended == durable) {
+                        lock.wait();
+                    }
+                }
+                // Lascia arrivare gli altri append prima di pagare l'fsync
+                Thread.sleep(commitDelayMs);
+                synchronized (lock) {
+                    target = appended;
+                    current = active;
+                    toForce = new ArrayList<>(sealed);
+                    sealed.clear();
+                }
+                long start = System.nanoTime();
+                for (MappedByteBuffer map : toForce) {
+                    map.force();
+                }
+                // Prima i record, poi l'intestazione che li conferma
+                current.force();
+                synchronized (lock) {
+                    if (current == active) {
+                        writeHeader(active, (int) (target - activeSeq * recordsPerSegment), activeMinTs, activeMaxTs);
+                    }
+                }
+                current.force();
+                synchronized (lock) {
+                    committedRecords += target - durable;
+                    durable = target;
+                    commits++;
+                    lastCommitMicros = (System.nanoTime() - start) / 1000;
+                    lock.notifyAll();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                logger.error("Error committing pollution log: {}", e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * Elimina i segmenti che contengono solo record con LSN < lsn e timestamp < minTimestamp:
+     * sono già nel checkpoint e fuori dalla retention dei dati grezzi.
+     * @return numero di segmenti eliminati
+     */
+    public int deleteSegmentsBefore(long lsn, long minTimestamp) {
+        int deleted = 0;
+        long activeSeqSnapshot;
+        synchronized (lock) {
+            activeSeqSnapshot = activeSeq;
+        }
+        for (long seq : segmentSequences()) {
+            if (seq >= activeSeqSnapshot || (seq + 1) * recordsPerSegment > lsn) {
+                break;
+            }
+            try {
+                if (readMaxTimestamp(seq) >= minTimestamp) {
+                    break;
+                }
+            } catch (IOException e) {
+                logger.warn("Cannot read pollution log segment {}: {}", seq, e.getMessage());
+                break;
+            }
+            if (segmentFile(seq).delete()) {
+                deleted++;
+            }
+        }
+        return deleted;
+    }
+
+    public void shutdown() {
+        running = false;
+        if (committer != null) {
+            committer.interrupt();
+        }
+        synchronized (lock) {
+            if (active != null) {
+                active.force();
+                writeHeader(active, activeCount, activeMinTs, activeMaxTs);
+                active.force();
+            }
+            lock.notifyAll();
+        }
+    }
+
+    public String metrics() {
+        synchronized (lock) {
+            return String.format("appended=%d durable=%d commits=%d recordsPerCommit=%.1f lastCommitMicros=%d segment=%d",
+                    appended, durable, commits, commits == 0 ? 0.0 : (double) committedRecords / commits,
+                    lastCommitMicros, activeSeq);
+        }
+    }
+
+    private void writeHeader(MappedByteBuffer map, int count, long minTs, long maxTs) {
+        map.putLong(COMMITTED_OFFSET, count);
+        map.putLong(MIN_TS_OFFSET, minTs);
+        map.putLong(MAX_TS_OFFSET, maxTs);
+    }
+
+    private int checksum(MappedByteBuffer map, int offset) {
+        for (int i = 0; i < crcScratch.length; i++) {
+            crcScratch[i] = map.get(offset + i);
+        }
+        crc.reset();
+        crc.update(crcScratch, 0, crcScratch.length);
+        return (int) crc.getValue();
+    }
+
+    private boolean checksumMatches(MappedByteBuffer map, int offset) {
+        return map.getInt(offset + 24) == checksum(map, offset);
+    }
+
+    private MappedByteBuffer create(long seq) throws IOException {
+        MappedByteBuffer map = map(seq);
+        map.putInt(MAGIC_OFFSET, MAGIC);
+        writeHeader(map, 0, Long.MAX_VALUE, Long.MIN_VALUE);
+        return map;
+    }
+
+    private MappedByteBuffer map(long seq) throws IOException {
+        long size = HEADER_SIZE + (long) recordsPerSegment * RECORD_SIZE;
+        try (RandomAccessFile raf = new RandomAccessFile(segmentFile(seq), "rw");
+             FileChannel channel = raf.getChannel()) {
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            map.order(ByteOrder.LITTLE_ENDIAN);
+            return map;
+        }
+    }
+
+    /**
+     * Legge il timestamp massimo dall'intestazione del segmento con una read di 8 byte:
+     * mappare l'intero segmento per un solo campo lascerebbe la mappatura in memoria
+     * finché il GC non la rilascia.
+     */
+    private long readMaxTimestamp(long seq) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+        try (RandomAccessFile raf = new RandomAccessFile(segmentFile(seq), "r");
+             FileChannel channel = raf.getChannel()) {
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, MAX_TS_OFFSET + buffer.position()) < 0) {
+                    throw new IOException("Truncated header");
+                }
+            }
+        }
+        return buffer.getLong(0);
+    }
+
+    private File segmentFile(long seq) {
+        return new File(directory, String.format("%s%010d%s", PREFIX, seq, SUFFIX));
+    }
+
+    private long[] segmentSequences() {
+        String[] names = directory.list((dir, name) -> name.startsWith(PREFIX) && name.endsWith(SUFFIX));
+        if (names == null) {
+            return new long[0];
+        }
+        long[] seqs = new long[names.length];
+        for (int i = 0; i < names.length; i++) {
+            seqs[i] = Long.parseLong(names[i].substring(PREFIX.length(), names[i].length() - SUFFIX.length()));
+        }
+        Arrays.sort(seqs);
+        return seqs;
+    }
+}
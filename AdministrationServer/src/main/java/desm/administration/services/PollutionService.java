@@ -1,70 +1,622 @@
 package desm.administration.services;
+import desm.common.Config;
+import desm.common.PollutionBucket;
 import desm.common.PollutionData;
+import desm.common.PollutionStats;
+import desm.common.QuantileSummary;
+import desm.common.SensorSeries;
+import desm.common.TDigest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.stream.Collectors;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
 
 @Service
 public class PollutionService {
 
-    private final List<PollutionData> payloads = new ArrayList<>();
+    private static final Logger logger = LoggerFactory.getLogger(PollutionService.class);
+
+    // Ogni quante medie ingerite si ricontrolla il budget di memoria fra due passate periodiche
+    private static final int BUDGET_CHECK_INTERVAL = 4096;
+
+    // I rollup per centrale partono dai bucket da 1 minuto: sotto si legge l'archivio grezzo del tipo
+    private static final int PLANT_MIN_LEVEL = 1;
+
+    // Numero massimo di punti di una serie a bucket: oltre si allarga il bucket
+    private static final int MAX_SERIES_BUCKETS = 10000;
+
+    // Per tipo di inquinante: medie grezze ordinate per timestamp con somme cumulative e rollup
+    private final Map<String, RollupTiers> rollups = new HashMap<>();
+    // Per tipo e codice di centrale: rollup della singola centrale
+    private final Map<String, Map<Integer, RollupTiers>> plantRollups = new HashMap<>();
+    private final PlantDictionary plants = new PlantDictionary();
+    // Tipi di inquinante codificati nel log
+    private final PlantDictionary types = new PlantDictionary();
     private final Object lock = new Object();
 
+    // Sketch dei quantili per tipo di inquinante, fusi per bucket di POLLUTION_SKETCH_BUCKET_MS:
+    // la memoria per bucket è costante indipendentemente da centrali e messaggi
+    private final Map<String, TreeMap<Long, TDigest>> sketchBuckets = new HashMap<>();
+
+    private final RetentionPolicy retention = new RetentionPolicy(
+            Config.POLLUTION_RAW_RETENTION_MS,
+            Config.POLLUTION_ROLLUP_RETENTION_MS,
+            Config.POLLUTION_SKETCH_RETENTION_MS,
+            Config.POLLUTION_SKETCH_BUCKET_MS,
+            Config.POLLUTION_MEMORY_BUDGET_BYTES);
+    private int sinceBudgetCheck;
+
+    // Risultati delle query, invalidati dalle medie ingerite nel loro intervallo e dalla retention
+    private final QueryCache cache = new QueryCache(Config.POLLUTION_CACHE_MAX_ENTRIES,
+            Config.POLLUTION_CACHE_OPEN_TTL_MS, Config.POLLUTION_REORDER_WINDOW_MS);
+    private Thread maintenanceThread;
+
+    // Log e checkpoint, null se la persistenza è disabilitata
+    private PollutionLog log;
+    private File checkpointFile;
+
+    @PostConstruct
+    public void start() {
+        if (Config.POLLUTION_LOG_ENABLED) {
+            try {
+                recover(new File(Config.POLLUTION_LOG_DIR));
+            } catch (IOException e) {
+                throw new IllegalStateException("Cannot recover pollution data", e);
+            }
+        }
+        maintenanceThread = new Thread(this::maintenanceLoop, "pollution-maintenance");
+        maintenanceThread.setDaemon(true);
+        maintenanceThread.start();
+    }
+
+    /**
+     * Carica l'ultimo checkpoint e rilegge dal log i record successivi, più quelli ancora
+     * nella retention dei dati grezzi (che nel checkpoint non ci sono).
+     */
+    private void recover(File directory) throws IOException {
+        long start = System.currentTimeMillis();
+        log = new PollutionLog(directory, Config.POLLUTION_LOG_SEGMENT_BYTES, Config.POLLUTION_LOG_COMMIT_DELAY_MS);
+        checkpointFile = new File(directory, "checkpoint.dat");
+        synchronized (lock) {
+            plants.open(new File(directory, "plants.dict"));
+            types.open(new File(directory, "types.dict"));
+            long checkpointLsn = PollutionCheckpoint.load(checkpointFile, rollups, plantRollups, sketchBuckets,
+                    type -> newTiers(), (type, plant) -> new RollupTiers(tiersFor(type).getRaw(), plant, PLANT_MIN_LEVEL));
+            log.recover(checkpointLsn, start - Config.POLLUTION_RAW_RETENTION_MS, (lsn, timestamp, value, plant, type) -> {
+                String typeName = types.decode(type);
+                if (lsn >= checkpointLsn) {
+                    tiersFor(typeName).add(timestamp, value, plant);
+                    plantTiersFor(typeName, plant).add(timestamp, value, plant);
+                } else {
+                    tiersFor(typeName).addRaw(timestamp, value, plant);
+                }
+            });
+            // I dati grezzi più vecchi non sono stati riletti: per quel periodo rispondono i rollup
+            for (RollupTiers tiers : allTiers()) {
+                tiers.evictBefore(RollupTiers.RAW, start - Config.POLLUTION_RAW_RETENTION_MS);
+            }
+        }
+        log.start();
+        logger.info("Pollution data recovered in {} ms ({} plants, {} types)",
+                System.currentTimeMillis() - start, plants.size(), types.size());
+    }
+
+    private void maintenanceLoop() {
+        long lastCheckpoint = System.currentTimeMillis();
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                Thread.sleep(Config.POLLUTION_RETENTION_INTERVAL_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            synchronized (lock) {
+                applyRetention(true);
+            }
+            logger.debug("Pollution retention: {}", retention.metrics());
+            if (log != null && System.currentTimeMillis() - lastCheckpoint >= Config.POLLUTION_CHECKPOINT_INTERVAL_MS) {
+                checkpoint();
+                lastCheckpoint = System.currentTimeMillis();
+            }
+        }
+    }
+
+    /**
+     * Scrive il checkpoint dei rollup ed elimina i segmenti del log che non servono più.
+     * Lo stato viene serializzato sotto lock, la scrittura avviene fuori.
+     */
+    private void checkpoint() {
+        try {
+            long lsn;
+            byte[] snapshot;
+            synchronized (lock) {
+                lsn = log.nextLsn();
+                snapshot = PollutionCheckpoint.serialize(lsn, rollups, plantRollups, sketchBuckets);
+            }
+            // Il checkpoint non può precedere su disco i record che dichiara di contenere
+            log.awaitDurable(lsn - 1);
+            PollutionCheckpoint.write(checkpointFile, snapshot);
+            int deleted = log.deleteSegmentsBefore(lsn, System.currentTimeMillis() - Config.POLLUTION_RAW_RETENTION_MS);
+            logger.debug("Pollution checkpoint at LSN {} ({} bytes, {} log segments deleted), log: {}",
+                    lsn, snapshot.length, deleted, log.metrics());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            logger.error("Error writing pollution checkpoint: {}", e.getMessage(), e);
+        }
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (maintenanceThread != null) {
+            maintenanceThread.interrupt();
+        }
+        if (log != null) {
+            checkpoint();
+            log.shutdown();
+            try {
+                plants.close();
+                types.close();
+            } catch (IOException e) {
+                logger.warn("Error closing pollution dictionaries: {}", e.getMessage());
+            }
+        }
+    }
+
     public void addPayloadFromSubscriber(PollutionData payload) {
+        addPayloadsFromSubscriber(Collections.singletonList(payload));
+    }
+
+    /**
+     * Archivia un blocco di payload con un'unica acquisizione del lock e, con la persistenza
+     * attiva, ritorna solo quando tutte le loro medie sono sul log su disco (group commit
+     * condiviso con gli altri blocchi). Un payload non valido viene scartato da solo, senza
+     * interrompere il resto del blocco.
+     * @return payload archiviati, nell'ordine ricevuto
+     */
+    public List<PollutionData> addPayloadsFromSubscriber(List<PollutionData> payloads) {
+        if (payloads.isEmpty()) {
+            return payloads;
+        }
+        long lsn = -1;
+        List<PollutionData> stored = new ArrayList<>(payloads.size());
         synchronized (lock) {
-            System.out.println("Aggiungendo PollutionData TimeStamp " + payload.getTimestamp());
-            payloads.add(payload);
+            for (PollutionData payload : payloads) {
+                try {
+                    // Gli sketch si decodificano prima di archiviare le medie, così uno
+                    // sketch corrotto scarta il payload senza lasciarne metà nello store
+                    List<TDigest> sketches = decodeSketches(payload);
+                    lsn = Math.max(lsn, storeAverages(payload, plants.encode(payload.getPlantId())));
+                    mergeSketches(payload, sketches);
+                    stored.add(payload);
+                } catch (RuntimeException e) {
+                    logger.warn("Discarding pollution payload from {}: {}", payload.getPlantId(), e.toString());
+                }
+            }
         }
+        if (log != null && lsn >= 0) {
+            try {
+                log.awaitDurable(lsn);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return stored;
+    }
+
+    /**
+     * Ogni media viene archiviata con il timestamp di fine della sua finestra se il mittente
+     * lo invia (serie binarie), altrimenti con il timestamp del messaggio come in passato.
+     * I vecchi messaggi senza serie contengono solo le medie del tipo principale.
+     * @return LSN dell'ultima media scritta nel log, -1 se nessuna
+     */
+    private long storeAverages(PollutionData payload, int plant) {
+        long lsn = -1;
+        if (payload.getSeries().isEmpty()) {
+            for (Double average : payload.getAverages()) {
+                lsn = addAverage(Config.POLLUTION_PRIMARY_TYPE, payload.getTimestamp(), average, plant);
+            }
+            if (!payload.getAverages().isEmpty()) {
+                cache.invalidate(Config.POLLUTION_PRIMARY_TYPE, plant, payload.getTimestamp(), payload.getTimestamp());
+            }
+            return lsn;
+        }
+        for (SensorSeries series : payload.getSeries()) {
+            List<Double> averages = series.getAverages();
+            List<Long> timestamps = series.getTimestamps();
+            boolean windowed = timestamps.size() == averages.size();
+            long min = Long.MAX_VALUE;
+            long max = Long.MIN_VALUE;
+            for (int i = 0; i < averages.size(); i++) {
+                long timestamp = windowed ? timestamps.get(i) : payload.getTimestamp();
+                lsn = addAverage(series.getType(), timestamp, averages.get(i), plant);
+                min = Math.min(min, timestamp);
+                max = Math.max(max, timestamp);
+            }
+            if (min <= max) {
+                cache.invalidate(series.getType(), plant, min, max);
+            }
+        }
+        return lsn;
+    }
+
+    private long addAverage(String type, long timestamp, double average, int plant) {
+        long lsn = log == null ? -1 : log.append(timestamp, average, plant, types.encode(type));
+        tiersFor(type).add(timestamp, average, plant);
+        plantTiersFor(type, plant).add(timestamp, average, plant);
+        if (++sinceBudgetCheck >= BUDGET_CHECK_INTERVAL) {
+            sinceBudgetCheck = 0;
+            applyRetention(false);
+        }
+        return lsn;
+    }
+
+    /**
+     * Applica retention per età (full) o solo il budget di memoria e invalida i risultati
+     * in cache che si sovrappongono ai periodi eliminati.
+     */
+    private void applyRetention(boolean full) {
+        long[] before = cutoffs();
+        if (full) {
+            retention.apply(System.currentTimeMillis(), allTiers(), sketchBuckets);
+        } else {
+            retention.enforceBudget(System.currentTimeMillis(), allTiers(), sketchBuckets);
+        }
+        long[] after = cutoffs();
+        for (int i = 0; i < after.length; i++) {
+            if (after[i] > before[i]) {
+                cache.invalidateRange(before[i], after[i] - 1);
+            }
+        }
+    }
+
+    /**
+     * @return per livello (indice level + 1) il cutoff più vecchio fra i tipi
+     */
+    private long[] cutoffs() {
+        long[] cutoffs = new long[RollupTiers.WIDTHS_MS.length + 1];
+        Arrays.fill(cutoffs, Long.MAX_VALUE);
+        for (RollupTiers tiers : rollups.values()) {
+            for (int level = RollupTiers.RAW; level < RollupTiers.WIDTHS_MS.length; level++) {
+                cutoffs[level + 1] = Math.min(cutoffs[level + 1], tiers.getCutoff(level));
+            }
+        }
+        return cutoffs;
+    }
+
+    private RollupTiers tiersFor(String type) {
+        RollupTiers tiers = rollups.get(type);
+        if (tiers == null) {
+            tiers = newTiers();
+            rollups.put(type, tiers);
+        }
+        return tiers;
+    }
+
+    private RollupTiers plantTiersFor(String type, int plant) {
+        Map<Integer, RollupTiers> byPlant = plantRollups.computeIfAbsent(type, t -> new HashMap<>());
+        RollupTiers tiers = byPlant.get(plant);
+        if (tiers == null) {
+            RollupTiers fleet = tiersFor(type);
+            tiers = new RollupTiers(fleet.getRaw(), plant, PLANT_MIN_LEVEL);
+            // Prima dei cutoff del tipo l'archivio grezzo condiviso non ha più dati
+            tiers.inheritCutoffs(fleet);
+            byPlant.put(plant, tiers);
+        }
+        return tiers;
+    }
+
+    /**
+     * @return rollup di tutti i tipi e di tutte le centrali, per la retention
+     */
+    private List<RollupTiers> allTiers() {
+        List<RollupTiers> all = new ArrayList<>(rollups.values());
+        for (Map<Integer, RollupTiers> byPlant : plantRollups.values()) {
+            all.addAll(byPlant.values());
+        }
+        return all;
+    }
+
+    private static RollupTiers newTiers() {
+        return new RollupTiers(new PollutionStore(Config.POLLUTION_REORDER_WINDOW_MS));
+    }
+
+    /**
+     * @return sketch delle serie del payload, null per le serie che non ne hanno
+     */
+    private static List<TDigest> decodeSketches(PollutionData payload) {
+        List<TDigest> sketches = new ArrayList<>(payload.getSeries().size());
+        for (SensorSeries series : payload.getSeries()) {
+            sketches.add(series.getSketch() == null ? null : TDigest.fromBytes(series.getSketch()));
+        }
+        return sketches;
+    }
+
+    private void mergeSketches(PollutionData payload, List<TDigest> sketches) {
+        long bucket = payload.getTimestamp() - payload.getTimestamp() % Config.POLLUTION_SKETCH_BUCKET_MS;
+        for (int i = 0; i < sketches.size(); i++) {
+            if (sketches.get(i) == null) {
+                continue;
+            }
+            String type = payload.getSeries().get(i).getType();
+            TreeMap<Long, TDigest> buckets = sketchBuckets.computeIfAbsent(type, t -> new TreeMap<>());
+            TDigest digest = buckets.computeIfAbsent(bucket, b -> new TDigest(Config.POLLUTION_SKETCH_COMPRESSION));
+            digest.merge(sketches.get(i));
+        }
+    }
+
+    /**
+     * Calcola p50/p95/p99, minimo e massimo delle misurazioni di un inquinante fra due
+     * timestamp, fondendo gli sketch di tutte le centrali. La granularità è quella dei
+     * bucket (Config.POLLUTION_SKETCH_BUCKET_MS): sono inclusi i bucket che iniziano nel range.
+     */
+    public QuantileSummary computeQuantilesBetween(String time1, String time2, String type) {
+        long t1, t2;
+        try {
+            t1 = Long.parseLong(time1);
+            t2 = Long.parseLong(time2);
+        } catch (NumberFormatException e) {
+            System.err.println("Invalid timestamp format: " + e.getMessage());
+            return new QuantileSummary(type, 0, 0.0, 0.0, 0.0, 0.0, 0.0);
+        }
+
+        TDigest merged = new TDigest(Config.POLLUTION_SKETCH_COMPRESSION);
+        synchronized (lock) {
+            TreeMap<Long, TDigest> buckets = sketchBuckets.get(type);
+            if (buckets != null && t1 <= t2) {
+                long from = t1 - t1 % Config.POLLUTION_SKETCH_BUCKET_MS;
+                for (TDigest digest : buckets.subMap(from, true, t2, true).values()) {
+                    merged.merge(digest);
+                }
+            }
+        }
+
+        if (merged.size() == 0) {
+            return new QuantileSummary(type, 0, 0.0, 0.0, 0.0, 0.0, 0.0);
+        }
+        return new QuantileSummary(type, merged.size(), merged.getMin(), merged.getMax(),
+                merged.quantile(0.50), merged.quantile(0.95), merged.quantile(0.99));
     }
 
     public List<String> getCurrentPowerPlants() {
         synchronized (lock) {
-            return payloads.stream()
-                    .map(PollutionData::getPlantId)
-                    .distinct()
-                    .collect(Collectors.toList());
+            return plants.names();
         }
     }
 
     public double computeAverageBetween(String time1, String time2) {
-        List<PollutionData> snapshot;
+        long t1, t2;
+        try {
+            t1 = Long.parseLong(time1);
+            t2 = Long.parseLong(time2);
+        } catch (NumberFormatException e) {
+            System.err.println("Invalid timestamp format: " + e.getMessage());
+            return 0.0;
+        }
+
+        long now = System.currentTimeMillis();
         synchronized (lock) {
-            snapshot = new ArrayList<>(payloads);
+            String key = "average|" + t1 + "|" + t2;
+            Double cached = (Double) cache.get(key, now);
+            if (cached != null) {
+                return cached;
+            }
+            // Due ricerche binarie e una sottrazione sulle somme cumulative (rollup oltre la retention)
+            RollupTiers tiers = rollups.get(Config.POLLUTION_PRIMARY_TYPE);
+            double average = tiers == null ? 0.0 : tiers.average(t1, t2);
+            cache.put(key, average, Config.POLLUTION_PRIMARY_TYPE, PollutionStore.ALL_PLANTS, t1, t2, now);
+            return average;
         }
+    }
+
+    /**
+     * Numero, media, minimo e massimo delle medie di un inquinante fra due timestamp,
+     * letti dai rollup più grossolani che stanno nell'intervallo e dai bordi più fini.
+     */
+    public PollutionStats computeStatsBetween(String time1, String time2, String type) {
         long t1, t2;
         try {
             t1 = Long.parseLong(time1);
             t2 = Long.parseLong(time2);
         } catch (NumberFormatException e) {
             System.err.println("Invalid timestamp format: " + e.getMessage());
-            return 0.0;
+            return new PollutionStats(type, 0, 0.0, 0.0, 0.0);
         }
 
-        // Filtra i dati nel range di timestamp
-        List<PollutionData> filteredData = snapshot.stream()
-                .filter(data -> isBetween(data.getTimestamp(), t1, t2))
-                .collect(Collectors.toList());
+        long now = System.currentTimeMillis();
+        synchronized (lock) {
+            String key = "stats|" + type + "|" + t1 + "|" + t2;
+            PollutionStats cached = (PollutionStats) cache.get(key, now);
+            if (cached != null) {
+                return cached;
+            }
+            RollupTiers tiers = rollups.get(type);
+            PollutionStats stats = toStats(type, null, tiers == null ? null : tiers.query(t1, t2));
+            cache.put(key, stats, type, PollutionStore.ALL_PLANTS, t1, t2, now);
+            return stats;
+        }
+    }
 
-        // Se non ci sono dati nel range, restituisce 0.0
-        if (filteredData.isEmpty()) {
-            return 0.0;
+    /**
+     * Statistiche di una singola centrale fra due timestamp, dai suoi rollup.
+     */
+    public PollutionStats computePlantStatsBetween(String plantId, String time1, String time2, String type) {
+        long[] range = parseRange(time1, time2);
+        if (range == null) {
+            return new PollutionStats(type, plantId, 0, 0.0, 0.0, 0.0);
+        }
+        long now = System.currentTimeMillis();
+        synchronized (lock) {
+            int plant = plants.lookup(plantId);
+            if (plant < 0) {
+                return toStats(type, plantId, null);
+            }
+            String key = "plantStats|" + type + "|" + plant + "|" + range[0] + "|" + range[1];
+            PollutionStats cached = (PollutionStats) cache.get(key, now);
+            if (cached != null) {
+                return cached;
+            }
+            Map<Integer, RollupTiers> byPlant = plantRollups.get(type);
+            RollupTiers tiers = byPlant == null ? null : byPlant.get(plant);
+            PollutionStats stats = toStats(type, plantId, tiers == null ? null : tiers.query(range[0], range[1]));
+            cache.put(key, stats, type, plant, range[0], range[1], now);
+            return stats;
+        }
+    }
+
+    /**
+     * Le k centrali con la media più alta fra due timestamp, in ordine decrescente.
+     * Il costo è una query sui rollup per centrale, indipendente dalla quantità di dati.
+     */
+    public List<PollutionStats> computeTopEmittersBetween(String time1, String time2, String type, int k) {
+        long[] range = parseRange(time1, time2);
+        if (range == null || k <= 0) {
+            return new ArrayList<>();
         }
+        long now = System.currentTimeMillis();
+        String key = "top|" + type + "|" + range[0] + "|" + range[1] + "|" + k;
+        PriorityQueue<PollutionStats> top = new PriorityQueue<>(k + 1,
+                (a, b) -> Double.compare(a.getAverage(), b.getAverage()));
+        synchronized (lock) {
+            @SuppressWarnings("unchecked")
+            List<PollutionStats> cached = (List<PollutionStats>) cache.get(key, now);
+            if (cached != null) {
+                return cached;
+            }
+            Map<Integer, RollupTiers> byPlant = plantRollups.get(type);
+            if (byPlant != null) {
+                for (Map.Entry<Integer, RollupTiers> entry : byPlant.entrySet()) {
+                    Rollup result = entry.getValue().query(range[0], range[1]);
+                    if (result.count == 0) {
+                        continue;
+                    }
+                    top.add(toStats(type, plants.decode(entry.getKey()), result));
+                    if (top.size() > k) {
+                        top.poll();
+                    }
+                }
+            }
+            List<PollutionStats> sorted = new ArrayList<>(top);
+            sorted.sort(Collections.reverseOrder((a, b) -> Double.compare(a.getAverage(), b.getAverage())));
+            List<PollutionStats> result = Collections.unmodifiableList(sorted);
+            cache.put(key, result, type, PollutionStore.ALL_PLANTS, range[0], range[1], now);
+            return result;
+        }
+    }
 
-        double totalSum = filteredData.stream()
-                .flatMapToDouble(data -> data.getAverages().stream().mapToDouble(Double::doubleValue))
-                .sum();
+    /**
+     * Serie temporale a bucket di larghezza bucketMs fra due timestamp, di tutte le centrali
+     * o di una sola (plantId non null). Contiene solo i bucket con almeno una media; se i
+     * bucket sarebbero più di MAX_SERIES_BUCKETS la larghezza viene aumentata.
+     * I bucket iniziano a multipli della larghezza, così coincidono con i livelli dei rollup
+     * e non dipendono da t1: il primo e l'ultimo contano solo le medie dentro [t1, t2].
+     */
+    public List<PollutionBucket> computeSeriesBetween(String time1, String time2, long bucketMs,
+                                                      String type, String plantId) {
+        long[] range = parseRange(time1, time2);
+        List<PollutionBucket> series = new ArrayList<>();
+        if (range == null || range[0] > range[1]) {
+            return series;
+        }
+        // Intervalli molto ampi (es. [0, Long.MAX_VALUE]) traboccano: si satura a Long.MAX_VALUE
+        long span = range[1] - range[0] < 0 ? Long.MAX_VALUE : range[1] - range[0];
+        long width = Math.max(bucketMs, 1);
+        if (span / width >= MAX_SERIES_BUCKETS) {
+            width = span / MAX_SERIES_BUCKETS + 1;
+        }
+        long now = System.currentTimeMillis();
+        synchronized (lock) {
+            int plant = plantId == null ? PollutionStore.ALL_PLANTS : plants.lookup(plantId);
+            if (plantId != null && plant < 0) {
+                return series;
+            }
+            String key = "series|" + type + "|" + plant + "|" + range[0] + "|" + range[1] + "|" + width;
+            @SuppressWarnings("unchecked")
+            List<PollutionBucket> cached = (List<PollutionBucket>) cache.get(key, now);
+            if (cached != null) {
+                return cached;
+            }
+            RollupTiers tiers;
+            if (plantId == null) {
+                tiers = rollups.get(type);
+            } else {
+                Map<Integer, RollupTiers> byPlant = plantRollups.get(type);
+                tiers = byPlant == null ? null : byPlant.get(plant);
+            }
+            if (tiers != null) {
+                long first = range[0] - Math.floorMod(range[0], width);
+                if (first > range[0]) {
+                    // range[0] vicino a Long.MIN_VALUE: l'allineamento traboccherebbe
+                    first = range[0];
+                }
+                for (long start = first; start <= range[1] && start >= first; start += width) {
+                    Rollup result = tiers.query(Math.max(range[0], start), Math.min(range[1], start + width - 1));
+                    if (result.count > 0) {
+                        series.add(new PollutionBucket(start, result.count, result.sum / result.count,
+                                result.min, result.max));
+                    }
+                }
+            }
+            List<PollutionBucket> result = Collections.unmodifiableList(series);
+            cache.put(key, result, type, plant, range[0], range[1], now);
+            return result;
+        }
+    }
 
-        long totalCount = filteredData.stream()
-                .mapToLong(data -> data.getAverages().size())
-                .sum();
+    private static PollutionStats toStats(String type, String plantId, Rollup result) {
+        if (result == null || result.count == 0) {
+            return new PollutionStats(type, plantId, 0, 0.0, 0.0, 0.0);
+        }
+        return new PollutionStats(type, plantId, result.count, result.sum / result.count, result.min, result.max);
+    }
 
-        return totalCount > 0 ? totalSum / totalCount : 0.0;
+    /**
+     * @return [t1, t2] oppure null se i timestamp non sono numerici
+     */
+    private static long[] parseRange(String time1, String time2) {
+        try {
+            return new long[]{Long.parseLong(time1), Long.parseLong(time2)};
+        } catch (NumberFormatException e) {
+            System.err.println("Invalid timestamp format: " + e.getMessage());
+            return null;
+        }
     }
 
-    private boolean isBetween(long timestamp, long t1, long t2) {
-        return timestamp >= t1 && timestamp <= t2;
+    /**
+     * @return occupazione stimata, budget, eliminazioni per livello, bucket per tipo, log e cache
+     */
+    public Map<String, Object> getStorageMetrics() {
+        synchronized (lock) {
+            Map<String, Object> metrics = retention.metrics();
+            Map<String, Object> perType = new LinkedHashMap<>();
+            for (Map.Entry<String, RollupTiers> entry : rollups.entrySet()) {
+                Map<String, Object> type = new LinkedHashMap<>();
+                type.put("bytes", entry.getValue().memoryBytes());
+                type.put("offHeapBytes", entry.getValue().offHeapBytes());
+                type.put("buckets", entry.getValue().bucketCounts());
+                Map<Integer, RollupTiers> byPlant = plantRollups.get(entry.getKey());
+                type.put("plants", byPlant == null ? 0 : byPlant.size());
+                TreeMap<Long, TDigest> sketches = sketchBuckets.get(entry.getKey());
+                type.put("sketches", sketches == null ? 0 : sketches.size());
+                perType.put(entry.getKey(), type);
+            }
+            metrics.put("types", perType);
+            metrics.put("log", log == null ? "disabled" : log.metrics());
+            metrics.put("cache", cache.metrics());
+            return metrics;
+        }
     }
 }
-
@@ -0,0 +1,552 @@
+package desm.administration.services;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Archivio delle medie ordinato per timestamp, pensato per rispondere alle medie su un
+ * intervallo in O(log n) qualunque sia la quantità di dati memorizzati.
+ *
+ * I punti sigillati stanno in segmenti append-only di SEGMENT_SIZE elementi, memorizzati
+ * a colonne fuori dallo heap (timestamp, valore, somma cumulativa e codice della centrale
+ * nel PlantDictionary): ogni media occupa 28 byte invece di un Double e di un riferimento
+ * a PollutionData, e il GC non deve visitarle. Tutti i segmenti tranne l'ultimo sono
+ * pieni, quindi un indice globale si traduce direttamente in (segmento, offset) e la somma
+ * dei primi k punti è baseSum del segmento più la somma cumulativa locale: la media su
+ * [t1, t2] si riduce a due ricerche binarie e una sottrazione.
+ *
+ * Le medie delle diverse centrali non arrivano in ordine perfetto, quindi i nuovi punti
+ * passano prima da un buffer di riordino: vengono ordinati e sigillati solo quando sono
+ * più vecchi di reorderWindowMs rispetto al timestamp massimo visto. I punti che arrivano
+ * dopo che il loro intervallo è già stato sigillato (caso raro) finiscono in una lista
+ * ordinata a parte, anch'essa con somme cumulative. Vi entrano a blocchi di LATE_BATCH:
+ * finché il blocco non è pieno restano in un piccolo buffer non ordinato, poi vengono
+ * ordinati e fusi con la lista in un solo passaggio, così ogni punto tardivo costa
+ * O(lateCount / LATE_BATCH) ammortizzato invece di uno spostamento e di un ricalcolo
+ * delle somme cumulative per punto.
+ *
+ * Non è thread-safe: va protetto dal chiamante.
+ */
+public class PollutionStore {
+
+    private static final int SEGMENT_SHIFT = 16;
+    private static final int SEGMENT_SIZE = 1 << SEGMENT_SHIFT;
+    private static final int SEGMENT_MASK = SEGMENT_SIZE - 1;
+    private static final int SEAL_THRESHOLD = 4096;
+    private static final int LATE_BATCH = 1024;
+
+    /**
+     * Filtro di scan che accetta le medie di tutte le centrali.
+     */
+    public static final int ALL_PLANTS = -1;
+
+    // Colonne del segmento nel buffer diretto: timestamp, valori, somme cumulative, centrali
+    private static final int VALUES_OFFSET = SEGMENT_SIZE * 8;
+    private static final int PREFIX_OFFSET = SEGMENT_SIZE * 16;
+    private static final int PLANTS_OFFSET = SEGMENT_SIZE * 24;
+    private static final int BYTES_PER_POINT = 28;
+
+    private static final class Segment {
+        // Allocato una volta per segmento. La memoria fuori heap torna libera solo quando il GC
+        // raccoglie il buffer, non quando il segmento viene eliminato: vedi
+        // Config.POLLUTION_MEMORY_BUDGET_BYTES per -XX:MaxDirectMemorySize
+        final ByteBuffer data = ByteBuffer.allocateDirect(SEGMENT_SIZE * BYTES_PER_POINT)
+                .order(ByteOrder.nativeOrder());
+        final double baseSum;
+        int size;
+
+        Segment(double baseSum) {
+            this.baseSum = baseSum;
+        }
+
+        long timestamp(int i) {
+            return data.getLong(i << 3);
+        }
+
+        double value(int i) {
+            return data.getDouble(VALUES_OFFSET + (i << 3));
+        }
+
+        // Somma di value(0..i) nel segmento
+        double prefix(int i) {
+            return data.getDouble(PREFIX_OFFSET + (i << 3));
+        }
+
+        int plant(int i) {
+            return data.getInt(PLANTS_OFFSET + (i << 2));
+        }
+
+        void put(int i, long timestamp, double value, double prefix, int plant) {
+            data.putLong(i << 3, timestamp);
+            data.putDouble(VALUES_OFFSET + (i << 3), value);
+            data.putDouble(PREFIX_OFFSET + (i << 3), prefix);
+            data.putInt(PLANTS_OFFSET + (i << 2), plant);
+        }
+    }
+
+    private final long reorderWindowMs;
+    private final List<Segment> segments = new ArrayList<>();
+    private long sealedCount;
+    private long lastSealedTimestamp = Long.MIN_VALUE;
+
+    // Buffer di riordino, non ordinato
+    private long[] pendingTimestamps = new long[SEAL_THRESHOLD * 2];
+    private double[] pendingValues = new double[SEAL_THRESHOLD * 2];
+    private int[] pendingPlants = new int[SEAL_THRESHOLD * 2];
+    private int pendingCount;
+    private int nextSeal = SEAL_THRESHOLD;
+    private long maxTimestamp = Long.MIN_VALUE;
+
+    // Punti arrivati dopo la sigillatura del loro intervallo, ordinati
+    private long[] lateTimestamps = new long[64];
+    private double[] lateValues = new double[64];
+    private double[] latePrefix = new double[64];
+    private int[] latePlants = new int[64];
+    private int lateCount;
+
+    // Punti tardivi non ancora fusi nella lista ordinata, non ordinati
+    private final long[] lateBufferTimestamps = new long[LATE_BATCH];
+    private final double[] lateBufferValues = new double[LATE_BATCH];
+    private final int[] lateBufferPlants = new int[LATE_BATCH];
+    private int lateBufferCount;
+
+    public PollutionStore(long reorderWindowMs) {
+        this.reorderWindowMs = reorderWindowMs;
+    }
+
+    /**
+     * @param plant codice della centrale nel PlantDictionary
+     */
+    public void add(long timestamp, double value, int plant) {
+        if (timestamp <= lastSealedTimestamp) {
+            addLate(timestamp, value, plant);
+            return;
+        }
+        if (pendingCount == pendingTimestamps.length) {
+            pendingTimestamps = Arrays.copyOf(pendingTimestamps, pendingCount * 2);
+            pendingValues = Arrays.copyOf(pendingValues, pendingCount * 2);
+            pendingPlants = Arrays.copyOf(pendingPlants, pendingCount * 2);
+        }
+        pendingTimestamps[pendingCount] = timestamp;
+        pendingValues[pendingCount] = value;
+        pendingPlants[pendingCount] = plant;
+        pendingCount++;
+        if (timestamp > maxTimestamp) {
+            maxTimestamp = timestamp;
+        }
+        if (pendingCount >= nextSeal) {
+            seal(maxTimestamp - reorderWindowMs);
+            // Se quasi tutto è ancora nella finestra di riordino non si riordina a ogni punto
+            nextSeal = pendingCount + SEAL_THRESHOLD;
+        }
+    }
+
+    /**
+     * Ordina il buffer di riordino e sposta nei segmenti i punti con timestamp
+     * non successivo a watermark.
+     */
+    private void seal(long watermark) {
+        sortByTimestamp(pendingTimestamps, pendingValues, pendingPlants, 0, pendingCount - 1);
+        int n = 0;
+        while (n < pendingCount && pendingTimestamps[n] <= watermark) {
+            append(pendingTimestamps[n], pendingValues[n], pendingPlants[n]);
+            n++;
+        }
+        if (n == 0) {
+            return;
+        }
+        System.arraycopy(pendingTimestamps, n, pendingTimestamps, 0, pendingCount - n);
+        System.arraycopy(pendingValues, n, pendingValues, 0, pendingCount - n);
+        System.arraycopy(pendingPlants, n, pendingPlants, 0, pendingCount - n);
+        pendingCount -= n;
+        lastSealedTimestamp = Math.max(lastSealedTimestamp, watermark);
+    }
+
+    private void append(long timestamp, double value, int plant) {
+        Segment last = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+        if (last == null || last.size == SEGMENT_SIZE) {
+            double base = last == null ? 0.0 : last.baseSum + last.prefix(SEGMENT_SIZE - 1);
+            last = new Segment(base);
+            segments.add(last);
+        }
+        int i = last.size;
+        last.put(i, timestamp, value, i == 0 ? value : last.prefix(i - 1) + value, plant);
+        last.size++;
+        sealedCount++;
+    }
+
+    private void addLate(long timestamp, double value, int plant) {
+        lateBufferTimestamps[lateBufferCount] = timestamp;
+        lateBufferValues[lateBufferCount] = value;
+        lateBufferPlants[lateBufferCount] = plant;
+        lateBufferCount++;
+        if (lateBufferCount == LATE_BATCH) {
+            mergeLate();
+        }
+    }
+
+    /**
+     * Ordina il buffer dei punti tardivi e lo fonde con la lista ordinata partendo dal fondo,
+     * poi ricalcola le somme cumulative dal primo punto inserito.
+     */
+    private void mergeLate() {
+        if (lateBufferCount == 0) {
+            return;
+        }
+        int n = lateBufferCount;
+        sortByTimestamp(lateBufferTimestamps, lateBufferValues, lateBufferPlants, 0, n - 1);
+        if (lateCount + n > lateTimestamps.length) {
+            int capacity = Math.max(lateTimestamps.length * 2, lateCount + n);
+            lateTimestamps = Arrays.copyOf(lateTimestamps, capacity);
+            lateValues = Arrays.copyOf(lateValues, capacity);
+            latePrefix = Arrays.copyOf(latePrefix, capacity);
+            latePlants = Arrays.copyOf(latePlants, capacity);
+        }
+        int i = lateCount - 1;
+        int j = n - 1;
+        int k = lateCount + n - 1;
+        while (j >= 0) {
+            if (i >= 0 && lateTimestamps[i] > lateBufferTimestamps[j]) {
+                lateTimestamps[k] = lateTimestamps[i];
+                lateValues[k] = lateValues[i];
+                latePlants[k] = latePlants[i];
+                i--;
+            } else {
+                lateTimestamps[k] = lateBufferTimestamps[j];
+                lateValues[k] = lateBufferValues[j];
+                latePlants[k] = lateBufferPlants[j];
+                j--;
+            }
+            k--;
+        }
+        // Fino a i + 1 la lista non è cambiata e le somme cumulative restano valide
+        int first = i + 1;
+        lateCount += n;
+        lateBufferCount = 0;
+        for (int p = first; p < lateCount; p++) {
+            latePrefix[p] = (p == 0 ? 0.0 : latePrefix[p - 1]) + lateValues[p];
+        }
+    }
+
+    /**
+     * @return somma (indice 0) e numero (indice 1) dei valori con timestamp in [from, to]
+     */
+    public double[] sumAndCount(long from, long to) {
+        if (from > to) {
+            return new double[]{0.0, 0.0};
+        }
+        // Punti sigillati: due ricerche binarie sull'indice globale
+        long lo = sealedLowerBound(from);
+        long hi = to == Long.MAX_VALUE ? sealedCount : sealedLowerBound(to + 1);
+        double sum = sealedPrefix(hi) - sealedPrefix(lo);
+        long count = hi - lo;
+
+        // Punti tardivi: stessa tecnica sulla lista ordinata
+        int lateLo = lowerBound(lateTimestamps, lateCount, from);
+        int lateHi = upperBound(lateTimestamps, lateCount, to);
+        if (lateHi > lateLo) {
+            sum += latePrefix[lateHi - 1] - (lateLo == 0 ? 0.0 : latePrefix[lateLo - 1]);
+            count += lateHi - lateLo;
+        }
+        for (int i = 0; i < lateBufferCount; i++) {
+            long ts = lateBufferTimestamps[i];
+            if (ts >= from && ts <= to) {
+                sum += lateBufferValues[i];
+                count++;
+            }
+        }
+
+        // Buffer di riordino: solo i punti degli ultimi reorderWindowMs
+        for (int i = 0; i < pendingCount; i++) {
+            long ts = pendingTimestamps[i];
+            if (ts >= from && ts <= to) {
+                sum += pendingValues[i];
+                count++;
+            }
+        }
+        return new double[]{sum, count};
+    }
+
+    /**
+     * Aggiunge all'aggregato tutti i valori con timestamp in [from, to], leggendoli uno a uno
+     * per minimo e massimo: il costo è lineare nei punti dell'intervallo, da usare sui bordi
+     * brevi delle query sui rollup.
+     * @param plant codice della centrale da considerare, ALL_PLANTS per tutte
+     */
+    void scan(long from, long to, int plant, Rollup out) {
+        long lo = sealedLowerBound(from);
+        long hi = to == Long.MAX_VALUE ? sealedCount : sealedLowerBound(to + 1);
+        // Un ciclo contato per segmento sulla sola colonna dei valori
+        while (lo < hi) {
+            Segment segment = segments.get((int) (lo >>> SEGMENT_SHIFT));
+            int start = (int) (lo & SEGMENT_MASK);
+            int end = (int) Math.min(segment.size, start + (hi - lo));
+            if (plant == ALL_PLANTS) {
+                scanSegment(segment, start, end, out);
+            } else {
+                scanSegment(segment, start, end, plant, out);
+            }
+            lo += end - start;
+        }
+        int lateHi = upperBound(lateTimestamps, lateCount, to);
+        for (int i = lowerBound(lateTimestamps, lateCount, from); i < lateHi; i++) {
+            if (plant == ALL_PLANTS || latePlants[i] == plant) {
+                out.add(lateValues[i]);
+            }
+        }
+        for (int i = 0; i < lateBufferCount; i++) {
+            long ts = lateBufferTimestamps[i];
+            if (ts >= from && ts <= to && (plant == ALL_PLANTS || lateBufferPlants[i] == plant)) {
+                out.add(lateBufferValues[i]);
+            }
+        }
+        for (int i = 0; i < pendingCount; i++) {
+            long ts = pendingTimestamps[i];
+            if (ts >= from && ts <= to && (plant == ALL_PLANTS || pendingPlants[i] == plant)) {
+                out.add(pendingValues[i]);
+            }
+        }
+    }
+
+    /**
+     * Somma, minimo e massimo di un tratto della colonna dei valori. La somma resta una
+     * riduzione sequenziale di double, che C2 non vettorizza perché cambierebbe l'ordine
+     * delle addizioni; minimo e massimo usano confronti come Rollup.add invece di
+     * Math.min/Math.max, che per i double gestiscono NaN e -0.0 e costano di più.
+     */
+    private static void scanSegment(Segment segment, int start, int end, Rollup out) {
+        double sum = 0.0;
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        for (int i = start; i < end; i++) {
+            double value = segment.value(i);
+            sum += value;
+            min = value < min ? value : min;
+            max = value > max ? value : max;
+        }
+        out.merge(sum, end - start, min, max);
+    }
+
+    private static void scanSegment(Segment segment, int start, int end, int plant, Rollup out) {
+        double sum = 0.0;
+        long count = 0;
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        for (int i = start; i < end; i++) {
+            if (segment.plant(i) == plant) {
+                double value = segment.value(i);
+                sum += value;
+                count++;
+                min = value < min ? value : min;
+                max = value > max ? value : max;
+            }
+        }
+        out.merge(sum, count, min, max);
+    }
+
+    /**
+     * @return media dei valori con timestamp in [from, to], 0.0 se non ce ne sono
+     */
+    public double average(long from, long to) {
+        double[] sc = sumAndCount(from, to);
+        return sc[1] > 0 ? sc[0] / sc[1] : 0.0;
+    }
+
+    public long size() {
+        return sealedCount + lateCount + lateBufferCount + pendingCount;
+    }
+
+    /**
+     * Elimina i segmenti sigillati che contengono solo punti precedenti a cutoff
+     * e i punti tardivi precedenti a cutoff. Il segmento a cavallo di cutoff resta intero.
+     * @return numero di punti eliminati
+     */
+    public long evictBefore(long cutoff) {
+        long evicted = 0;
+        while (segments.size() > 1 && segments.get(0).timestamp(SEGMENT_SIZE - 1) < cutoff) {
+            segments.remove(0);
+            sealedCount -= SEGMENT_SIZE;
+            evicted += SEGMENT_SIZE;
+        }
+        // L'ultimo segmento non è pieno: si elimina solo se tutto il resto è già stato eliminato
+        if (segments.size() == 1) {
+            Segment last = segments.get(0);
+            if (last.size > 0 && last.timestamp(last.size - 1) < cutoff) {
+                segments.remove(0);
+                sealedCount = 0;
+                evicted += last.size;
+            }
+        }
+        mergeLate();
+        int drop = lowerBound(lateTimestamps, lateCount, cutoff);
+        if (drop > 0) {
+            System.arraycopy(lateTimestamps, drop, lateTimestamps, 0, lateCount - drop);
+            System.arraycopy(lateValues, drop, lateValues, 0, lateCount - drop);
+            System.arraycopy(latePlants, drop, latePlants, 0, lateCount - drop);
+            lateCount -= drop;
+            for (int i = 0; i < lateCount; i++) {
+                latePrefix[i] = (i == 0 ? 0.0 : latePrefix[i - 1]) + lateValues[i];
+            }
+            evicted += drop;
+        }
+        return evicted;
+    }
+
+    /**
+     * @return timestamp più vecchio memorizzato, Long.MAX_VALUE se l'archivio è vuoto
+     */
+    public long getOldestTimestamp() {
+        long oldest = Long.MAX_VALUE;
+        if (sealedCount > 0) {
+            oldest = segments.get(0).timestamp(0);
+        }
+        if (lateCount > 0) {
+            oldest = Math.min(oldest, lateTimestamps[0]);
+        }
+        for (int i = 0; i < lateBufferCount; i++) {
+            oldest = Math.min(oldest, lateBufferTimestamps[i]);
+        }
+        for (int i = 0; i < pendingCount; i++) {
+            oldest = Math.min(oldest, pendingTimestamps[i]);
+        }
+        return oldest;
+    }
+
+    /**
+     * @return stima dei byte occupati dall'archivio, segmenti fuori heap compresi
+     */
+    public long memoryBytes() {
+        return offHeapBytes() + pendingTimestamps.length * 20L + lateTimestamps.length * 28L + LATE_BATCH * 20L;
+    }
+
+    /**
+     * @return byte allocati fuori heap dai segmenti sigillati
+     */
+    public long offHeapBytes() {
+        return (long) segments.size() * SEGMENT_SIZE * BYTES_PER_POINT;
+    }
+
+    private long sealedTimestamp(long index) {
+        return segments.get((int) (index >>> SEGMENT_SHIFT)).timestamp((int) (index & SEGMENT_MASK));
+    }
+
+    /**
+     * @return somma dei primi count punti sigillati. baseSum comprende anche i segmenti già
+     *         eliminati dalla retention: si misura a partire dal baseSum del primo segmento rimasto
+     */
+    private double sealedPrefix(long count) {
+        if (count == 0) {
+            return 0.0;
+        }
+        long index = count - 1;
+        Segment segment = segments.get((int) (index >>> SEGMENT_SHIFT));
+        return segment.baseSum - segments.get(0).baseSum + segment.prefix((int) (index & SEGMENT_MASK));
+    }
+
+    /**
+     * @return primo indice globale con timestamp >= timestamp
+     */
+    private long sealedLowerBound(long timestamp) {
+        long lo = 0;
+        long hi = sealedCount;
+        while (lo < hi) {
+            long mid = (lo + hi) >>> 1;
+            if (sealedTimestamp(mid) < timestamp) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    private static int lowerBound(long[] array, int size, long key) {
+        int lo = 0;
+        int hi = size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (array[mid] < key) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    private static int upperBound(long[] array, int size, long key) {
+        int lo = 0;
+        int hi = size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (array[mid] <= key) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * Quicksort sugli array paralleli; i dati sono quasi ordinati, quindi sotto
+     * una certa dimensione l'insertion sort è più rapido.
+     */
+    private static void sortByTimestamp(long[] ts, double[] values, int[] plants, int left, int right) {
+        while (right - left > 16) {
+            int mid = (left + right) >>> 1;
+            long pivot = ts[mid];
+            int i = left;
+            int j = right;
+            while (i <= j) {
+                while (ts[i] < pivot) {
+                    i++;
+                }
+                while (ts[j] > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    swap(ts, values, plants, i++, j--);
+                }
+            }
+            // Ricorsione sulla parte più piccola, iterazione sull'altra
+            if (j - left < right - i) {
+                sortByTimestamp(ts, values, plants, left, j);
+                left = i;
+            } else {
+                sortByTimestamp(ts, values, plants, i, right);
+                right = j;
+            }
+        }
+        for (int i = left + 1; i <= right; i++) {
+            long t = ts[i];
+            double v = values[i];
+            int p = plants[i];
+            int k = i - 1;
+            while (k >= left && ts[k] > t) {
+                ts[k + 1] = ts[k];
+                values[k + 1] = values[k];
+                plants[k + 1] = plants[k];
+                k--;
+            }
+            ts[k + 1] = t;
+            values[k + 1] = v;
+            plants[k + 1] = p;
+        }
+    }
+
+    private static void swap(long[] ts, double[] values, int[] plants, int a, int b) {
+        long t = ts[a];
+        ts[a] = ts[b];
+        ts[b] = t;
+        double v = values[a];
+        values[a] = values[b];
+        values[b] = v;
+        int p = plants[a];
+        plants[a] = plants[b];
+        plants[b] = p;
+    }
+}
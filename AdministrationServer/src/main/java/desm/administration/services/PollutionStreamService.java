@@ -0,0 +1,514 @@
+package desm.administration.services;
+
+import com.google.gson.Gson;
+import desm.common.Config;
+import desm.common.PollutionData;
+import desm.common.PollutionStats;
+import desm.common.PollutionWindow;
+import desm.common.SensorSeries;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Service;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Streaming live (Server-Sent Events) delle medie di inquinamento ingerite dal server.
+ *
+ * Le medie vengono aggregate una sola volta per canale (tipo di inquinante e larghezza
+ * della finestra), in finestre allineate per timestamp, di tutte le centrali e per
+ * centrale. Ogni POLLUTION_STREAM_FLUSH_MS le finestre aggiornate vengono serializzate una
+ * volta e accodate ai client del canale: nessun client provoca query sui dati archiviati.
+ *
+ * Ogni client ha un buffer limitato, svuotato da un pool di thread di invio: gli
+ * aggiornamenti di una finestra ancora in coda sostituiscono quello precedente
+ * (conflation) e, a buffer pieno, si scartano le finestre più vecchie, così un client
+ * lento non rallenta l'ingestione né gli altri client.
+ *
+ * SseEmitter.send è bloccante: un client che non legge più tiene fermo il suo thread di
+ * invio finché il container non chiude la connessione. Se un invio dura più di
+ * POLLUTION_STREAM_SEND_TIMEOUT_MS il client viene staccato dal canale e un nuovo thread
+ * prende il posto di quello bloccato, che termina appena l'invio ritorna: i client
+ * bloccati non possono occupare tutti i thread di invio.
+ */
+@Service
+public class PollutionStreamService {
+
+    private static final Logger logger = LoggerFactory.getLogger(PollutionStreamService.class);
+
+    private static final Gson gson = new Gson();
+
+    // Chiavi delle varianti di un evento: tutte le centrali, nessuna, altrimenti il plantId
+    private static final String ALL_PLANTS = "*";
+    private static final String NO_PLANTS = "";
+
+    private final Object lock = new Object();
+    // Per tipo di inquinante: canali con finestre di larghezza diversa
+    private final Map<String, List<Channel>> channels = new HashMap<>();
+
+    // Client con eventi da inviare, in attesa di un thread di invio
+    private final ArrayDeque<Subscriber> ready = new ArrayDeque<>();
+    private final List<Thread> threads = new ArrayList<>();
+    private final AtomicInteger senderIds = new AtomicInteger();
+    private volatile boolean running;
+
+    private final AtomicLong eventsSent = new AtomicLong();
+    private final AtomicLong conflated = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong evicted = new AtomicLong();
+    private long lateSkipped;
+
+    private static final class WindowState {
+        final Rollup fleet = new Rollup();
+        final Map<String, Rollup> plants = new TreeMap<>();
+        boolean dirty;
+    }
+
+    private static final class Channel {
+        final String type;
+        final long window;
+        // Finestre ancora aggiornabili, per timestamp di inizio
+        final TreeMap<Long, WindowState> windows = new TreeMap<>();
+        final List<Subscriber> subscribers = new ArrayList<>();
+        long latest = Long.MIN_VALUE;
+
+        Channel(String type, long window) {
+            this.type = type;
+            this.window = window;
+        }
+
+        long horizon() {
+            return latest == Long.MIN_VALUE ? Long.MIN_VALUE : latest - Config.POLLUTION_REORDER_WINDOW_MS - window;
+        }
+    }
+
+    private final class Subscriber {
+        final SseEmitter emitter;
+        final Channel channel;
+        // ALL_PLANTS, NO_PLANTS o il plantId a cui è interessato il client
+        final String plants;
+        // Eventi da inviare per inizio della finestra, protetti da this
+        final LinkedHashMap<Long, String> pending = new LinkedHashMap<>();
+        boolean scheduled;
+        boolean closed;
+        // Staccato dal controllo degli invii bloccati: il thread che lo sta servendo termina
+        boolean stalled;
+        // Inizio dell'invio in corso, 0 se nessun invio è in corso
+        volatile long sendingSince;
+
+        Subscriber(SseEmitter emitter, Channel channel, String plants) {
+            this.emitter = emitter;
+            this.channel = channel;
+            this.plants = plants;
+        }
+
+        synchronized void offer(long start, String event) {
+            if (closed) {
+                return;
+            }
+            if (pending.containsKey(start)) {
+                conflated.incrementAndGet();
+            } else if (pending.size() >= Config.POLLUTION_STREAM_BUFFER_WINDOWS) {
+                Iterator<Long> eldest = pending.keySet().iterator();
+                eldest.next();
+                eldest.remove();
+                dropped.incrementAndGet();
+            }
+            pending.put(start, event);
+            if (!scheduled) {
+                scheduled = true;
+                schedule(this);
+            }
+        }
+
+        /**
+         * Invia gli eventi in coda finché ce ne sono; chiamato da un solo thread di invio alla volta.
+         * @return true se nel frattempo il client è stato staccato perché bloccato: il thread
+         *         chiamante è già stato sostituito e deve terminare
+         */
+        boolean drain() {
+            while (true) {
+                List<String> batch;
+                synchronized (this) {
+                    if (pending.isEmpty() || closed) {
+                        scheduled = false;
+                        return false;
+                    }
+                    batch = new ArrayList<>(pending.values());
+                    pending.clear();
+                }
+                boolean failed = false;
+                try {
+                    for (String event : batch) {
+                        sendingSince = System.currentTimeMillis();
+                        emitter.send(SseEmitter.event().name("window").data(event, MediaType.APPLICATION_JSON));
+                        eventsSent.incrementAndGet();
+                    }
+                } catch (IOException | IllegalStateException e) {
+                    logger.debug("Pollution stream client disconnected: {}", e.getMessage());
+                    failed = true;
+                }
+                synchronized (this) {
+                    sendingSince = 0;
+                    if (stalled) {
+                        scheduled = false;
+                        break;
+                    }
+                }
+                if (failed) {
+                    unsubscribe(this);
+                    return false;
+                }
+            }
+            // L'invio bloccato è ritornato: ora il monitor dell'emitter è libero
+            try {
+                emitter.complete();
+            } catch (IllegalStateException e) {
+                // Già completato dal container
+            }
+            return true;
+        }
+    }
+
+    @PostConstruct
+    public void start() {
+        running = true;
+        startThread(new Thread(this::flushLoop, "pollution-stream-flush"));
+        for (int i = 0; i < Config.POLLUTION_STREAM_SENDER_THREADS; i++) {
+            startSender();
+        }
+    }
+
+    private void startSender() {
+        startThread(new Thread(this::sendLoop, "pollution-stream-sender-" + senderIds.getAndIncrement()));
+    }
+
+    private void startThread(Thread thread) {
+        thread.setDaemon(true);
+        synchronized (threads) {
+            threads.add(thread);
+        }
+        thread.start();
+    }
+
+    @PreDestroy
+    public void stop() {
+        running = false;
+        synchronized (threads) {
+            for (Thread thread : threads) {
+                thread.interrupt();
+            }
+        }
+        List<Subscriber> all = new ArrayList<>();
+        synchronized (lock) {
+            for (List<Channel> byWindow : channels.values()) {
+                for (Channel channel : byWindow) {
+                    all.addAll(channel.subscribers);
+                }
+            }
+        }
+        for (Subscriber subscriber : all) {
+            unsubscribe(subscriber);
+        }
+    }
+
+    /**
+     * Registra un client sul canale (tipo, finestra) e gli invia subito le finestre aperte.
+     * @param windowMs larghezza delle finestre, almeno POLLUTION_STREAM_MIN_WINDOW_MS
+     * @param plantId solo questa centrale, null per tutte
+     * @param includePlants false per ricevere solo l'aggregato di tutte le centrali
+     */
+    public SseEmitter subscribe(String type, long windowMs, String plantId, boolean includePlants) {
+        long window = Math.max(windowMs, Config.POLLUTION_STREAM_MIN_WINDOW_MS);
+        String plants = plantId != null ? plantId : includePlants ? ALL_PLANTS : NO_PLANTS;
+        SseEmitter emitter = new SseEmitter(Config.POLLUTION_STREAM_TIMEOUT_MS);
+        Subscriber subscriber;
+        synchronized (lock) {
+            List<Channel> byWindow = channels.computeIfAbsent(type, t -> new ArrayList<>());
+            Channel channel = null;
+            for (Channel candidate : byWindow) {
+                if (candidate.window == window) {
+                    channel = candidate;
+                }
+            }
+            if (channel == null) {
+                channel = new Channel(type, window);
+                byWindow.add(channel);
+            }
+            subscriber = new Subscriber(emitter, channel, plants);
+            channel.subscribers.add(subscriber);
+            for (Map.Entry<Long, WindowState> entry : channel.windows.entrySet()) {
+                subscriber.offer(entry.getKey(), toJson(channel, entry.getKey(), entry.getValue(), plants));
+            }
+        }
+        final Subscriber registered = subscriber;
+        emitter.onCompletion(() -> unsubscribe(registered));
+        emitter.onTimeout(() -> unsubscribe(registered));
+        emitter.onError(e -> unsubscribe(registered));
+        logger.info("Pollution stream client subscribed: type={}, window={} ms, plants={}", type, window, plants);
+        return emitter;
+    }
+
+    private void unsubscribe(Subscriber subscriber) {
+        synchronized (lock) {
+            detach(subscriber);
+        }
+        boolean wasOpen;
+        synchronized (subscriber) {
+            wasOpen = !subscriber.closed;
+            subscriber.closed = true;
+            subscriber.pending.clear();
+        }
+        if (wasOpen) {
+            try {
+                subscriber.emitter.complete();
+            } catch (IllegalStateException e) {
+                // Già completato dal container
+            }
+        }
+    }
+
+    /**
+     * Toglie il client dal suo canale, eliminando il canale se resta vuoto.
+     * Deve essere chiamato tenendo lock.
+     */
+    private void detach(Subscriber subscriber) {
+        Channel channel = subscriber.channel;
+        if (channel.subscribers.remove(subscriber) && channel.subscribers.isEmpty()) {
+            List<Channel> byWindow = channels.get(channel.type);
+            byWindow.remove(channel);
+            if (byWindow.isEmpty()) {
+                channels.remove(channel.type);
+            }
+        }
+    }
+
+    /**
+     * Aggrega le medie di un blocco di payload ingeriti nei canali del loro tipo, con gli
+     * stessi timestamp usati da PollutionService per archiviarle. Non fa nulla senza client.
+     */
+    public void publish(List<PollutionData> payloads) {
+        synchronized (lock) {
+            if (channels.isEmpty()) {
+                return;
+            }
+            for (PollutionData payload : payloads) {
+                publish(payload);
+            }
+        }
+    }
+
+    private void publish(PollutionData payload) {
+        if (payload.getSeries().isEmpty()) {
+            for (Double average : payload.getAverages()) {
+                add(Config.POLLUTION_PRIMARY_TYPE, payload.getTimestamp(), payload.getPlantId(), average);
+            }
+            return;
+        }
+        for (SensorSeries series : payload.getSeries()) {
+            if (!channels.containsKey(series.getType())) {
+                continue;
+            }
+            List<Double> averages = series.getAverages();
+            List<Long> timestamps = series.getTimestamps();
+            boolean windowed = timestamps.size() == averages.size();
+            for (int i = 0; i < averages.size(); i++) {
+                add(series.getType(), windowed ? timestamps.get(i) : payload.getTimestamp(),
+                        payload.getPlantId(), averages.get(i));
+            }
+        }
+    }
+
+    private void add(String type, long timestamp, String plantId, double value) {
+        List<Channel> byWindow = channels.get(type);
+        if (byWindow == null) {
+            return;
+        }
+        for (Channel channel : byWindow) {
+            long start = Math.floorDiv(timestamp, channel.window) * channel.window;
+            if (start < channel.horizon()) {
+                // La finestra è già stata chiusa: un nuovo aggregato parziale la sovrascriverebbe
+                lateSkipped++;
+                continue;
+            }
+            WindowState state = channel.windows.computeIfAbsent(start, s -> new WindowState());
+            state.fleet.add(value);
+            state.plants.computeIfAbsent(plantId, p -> new Rollup()).add(value);
+            state.dirty = true;
+            channel.latest = Math.max(channel.latest, start);
+        }
+    }
+
+    private void flushLoop() {
+        while (running) {
+            try {
+                Thread.sleep(Config.POLLUTION_STREAM_FLUSH_MS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            int stalled = 0;
+            synchronized (lock) {
+                long now = System.currentTimeMillis();
+                List<Subscriber> toDetach = new ArrayList<>();
+                for (List<Channel> byWindow : channels.values()) {
+                    for (Channel channel : byWindow) {
+                        flush(channel);
+                        for (Subscriber subscriber : channel.subscribers) {
+                            if (markStalled(subscriber, now)) {
+                                toDetach.add(subscriber);
+                            }
+                        }
+                    }
+                }
+                for (Subscriber subscriber : toDetach) {
+                    detach(subscriber);
+                }
+                stalled = toDetach.size();
+            }
+            // Un thread nuovo per ogni thread rimasto bloccato su un client staccato
+            for (int i = 0; i < stalled && running; i++) {
+                evicted.incrementAndGet();
+                startSender();
+            }
+            if (stalled > 0) {
+                logger.warn("Detached {} pollution stream clients blocked for more than {} ms",
+                        stalled, Config.POLLUTION_STREAM_SEND_TIMEOUT_MS);
+            }
+        }
+    }
+
+    /**
+     * Segna come bloccato un client il cui invio in corso dura da più di
+     * POLLUTION_STREAM_SEND_TIMEOUT_MS. Non tocca l'emitter, il cui monitor è tenuto
+     * dall'invio bloccato: lo completa il thread di invio quando ritorna.
+     * @return true se il client è stato appena segnato
+     */
+    private boolean markStalled(Subscriber subscriber, long now) {
+        synchronized (subscriber) {
+            long since = subscriber.sendingSince;
+            if (subscriber.stalled || since == 0 || now - since <= Config.POLLUTION_STREAM_SEND_TIMEOUT_MS) {
+                return false;
+            }
+            subscriber.stalled = true;
+            subscriber.closed = true;
+            subscriber.pending.clear();
+            return true;
+        }
+    }
+
+    /**
+     * Serializza una volta per variante ogni finestra aggiornata e la accoda ai client.
+     */
+    private void flush(Channel channel) {
+        for (Map.Entry<Long, WindowState> entry : channel.windows.entrySet()) {
+            WindowState state = entry.getValue();
+            if (!state.dirty) {
+                continue;
+            }
+            state.dirty = false;
+            Map<String, String> events = new HashMap<>();
+            for (Subscriber subscriber : channel.subscribers) {
+                String event = events.get(subscriber.plants);
+                if (event == null) {
+                    if (!ALL_PLANTS.equals(subscriber.plants) && !NO_PLANTS.equals(subscriber.plants)
+                            && !state.plants.containsKey(subscriber.plants)) {
+                        continue;
+                    }
+                    event = toJson(channel, entry.getKey(), state, subscriber.plants);
+                    events.put(subscriber.plants, event);
+                }
+                subscriber.offer(entry.getKey(), event);
+            }
+        }
+        channel.windows.headMap(channel.horizon()).clear();
+    }
+
+    private static String toJson(Channel channel, long start, WindowState state, String plants) {
+        List<PollutionStats> perPlant = new ArrayList<>();
+        for (Map.Entry<String, Rollup> entry : state.plants.entrySet()) {
+            if (ALL_PLANTS.equals(plants) || entry.getKey().equals(plants)) {
+                perPlant.add(toStats(channel.type, entry.getKey(), entry.getValue()));
+            }
+        }
+        return gson.toJson(new PollutionWindow(channel.type, start, channel.window,
+                toStats(channel.type, null, state.fleet), perPlant));
+    }
+
+    private static PollutionStats toStats(String type, String plantId, Rollup rollup) {
+        return new PollutionStats(type, plantId, rollup.count, rollup.sum / rollup.count, rollup.min, rollup.max);
+    }
+
+    private void schedule(Subscriber subscriber) {
+        synchronized (ready) {
+            ready.add(subscriber);
+            ready.notify();
+        }
+    }
+
+    private void sendLoop() {
+        while (running) {
+            Subscriber subscriber;
+            synchronized (ready) {
+                while (ready.isEmpty()) {
+                    try {
+                        ready.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                subscriber = ready.poll();
+            }
+            if (subscriber.drain()) {
+                // Sostituito da un altro thread mentre era bloccato sull'invio
+                synchronized (threads) {
+                    threads.remove(Thread.currentThread());
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return client, canali, finestre aperte ed eventi inviati, fusi e scartati
+     */
+    public Map<String, Object> metrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        int subscribers = 0;
+        int open = 0;
+        int count = 0;
+        long late;
+        synchronized (lock) {
+            for (List<Channel> byWindow : channels.values()) {
+                for (Channel channel : byWindow) {
+                    count++;
+                    subscribers += channel.subscribers.size();
+                    open += channel.windows.size();
+                }
+            }
+            late = lateSkipped;
+        }
+        metrics.put("subscribers", subscribers);
+        metrics.put("channels", count);
+        metrics.put("openWindows", open);
+        metrics.put("eventsSent", eventsSent.get());
+        metrics.put("conflated", conflated.get());
+        metrics.put("dropped", dropped.get());
+        metrics.put("evicted", evicted.get());
+        metrics.put("lateSkipped", late);
+        return metrics;
+    }
+}
@@ -0,0 +1,220 @@
+package desm.administration.services;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Cache LRU dei risultati delle query di PollutionService, con chiave normalizzata
+ * (tipo di query, tipo di inquinante, centrale, timestamp già convertiti e parametri).
+ *
+ * Ogni risultato ricorda l'intervallo [from, to], il tipo e la centrale da cui dipende e
+ * viene invalidato solo quando arrivano medie in quell'intervallo (invalidate) o quando la
+ * retention elimina dati che lo riguardano (invalidateRange): gli intervalli storici chiusi
+ * restano in cache finché non vengono espulsi. Gli intervalli ancora aperti hanno anche
+ * una scadenza breve.
+ *
+ * Per non scorrere tutta la cache a ogni serie ingerita, i risultati sono indicizzati per
+ * tipo e centrale e, dentro ogni gruppo, ordinati per fine dell'intervallo: un'invalidazione
+ * visita solo i gruppi che la riguardano e, con una ricerca in O(log n), solo i risultati che
+ * finiscono dopo l'inizio dei nuovi dati. Le medie arrivano quasi sempre vicino al presente,
+ * quindi questi sono in pratica i soli risultati da invalidare.
+ *
+ * Non è thread-safe: va protetto dal chiamante.
+ */
+class QueryCache {
+
+    private static final class Entry {
+        final String key;
+        final Object value;
+        final String type;
+        final int plant;
+        final long from;
+        final long to;
+        final long expiresAt;
+
+        Entry(String key, Object value, String type, int plant, long from, long to, long expiresAt) {
+            this.key = key;
+            this.value = value;
+            this.type = type;
+            this.plant = plant;
+            this.from = from;
+            this.to = to;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final int maxEntries;
+    private final long openTtlMs;
+    private final long openWindowMs;
+    private final LinkedHashMap<String, Entry> entries;
+    // Tipo (null per le query su tutti i tipi) -> centrale -> fine dell'intervallo -> risultati
+    private final Map<String, Map<Integer, TreeMap<Long, Set<Entry>>>> index = new HashMap<>();
+
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long invalidations;
+    private long expirations;
+
+    /**
+     * @param openWindowMs un intervallo che finisce entro openWindowMs da adesso può
+     *                     ancora ricevere dati in ordine ed è considerato aperto
+     */
+    QueryCache(int maxEntries, long openTtlMs, long openWindowMs) {
+        this.maxEntries = maxEntries;
+        this.openTtlMs = openTtlMs;
+        this.openWindowMs = openWindowMs;
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                if (size() > QueryCache.this.maxEntries) {
+                    unindex(eldest.getValue());
+                    evictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * @return risultato in cache, null se assente o scaduto
+     */
+    Object get(String key, long now) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        if (now >= entry.expiresAt) {
+            entries.remove(key);
+            unindex(entry);
+            expirations++;
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.value;
+    }
+
+    /**
+     * @param type tipo di inquinante, null se la query li riguarda tutti
+     * @param plant codice della centrale, PollutionStore.ALL_PLANTS se la query le riguarda tutte
+     */
+    void put(String key, Object value, String type, int plant, long from, long to, long now) {
+        long expiresAt = to >= now - openWindowMs ? now + openTtlMs : Long.MAX_VALUE;
+        Entry entry = new Entry(key, value, type, plant, from, to, expiresAt);
+        // L'eventuale espulsione LRU avviene dentro put: l'indice va aggiornato prima
+        index.computeIfAbsent(type, t -> new HashMap<>())
+                .computeIfAbsent(plant, p -> new TreeMap<>())
+                .computeIfAbsent(to, t -> new HashSet<>())
+                .add(entry);
+        Entry previous = entries.put(key, entry);
+        if (previous != null) {
+            unindex(previous);
+        }
+    }
+
+    /**
+     * Invalida i risultati che dipendono da medie del tipo e della centrale con timestamp in [from, to].
+     */
+    void invalidate(String type, int plant, long from, long to) {
+        if (entries.isEmpty()) {
+            return;
+        }
+        List<Entry> matches = new ArrayList<>();
+        collect(index.get(type), plant, from, to, matches);
+        collect(index.get(null), plant, from, to, matches);
+        remove(matches);
+    }
+
+    /**
+     * Invalida i risultati di tutti i tipi e le centrali che si sovrappongono a [from, to].
+     */
+    void invalidateRange(long from, long to) {
+        if (entries.isEmpty()) {
+            return;
+        }
+        List<Entry> matches = new ArrayList<>();
+        for (Map<Integer, TreeMap<Long, Set<Entry>>> byPlant : index.values()) {
+            for (TreeMap<Long, Set<Entry>> byEnd : byPlant.values()) {
+                collect(byEnd, from, to, matches);
+            }
+        }
+        remove(matches);
+    }
+
+    private static void collect(Map<Integer, TreeMap<Long, Set<Entry>>> byPlant, int plant,
+                                long from, long to, List<Entry> matches) {
+        if (byPlant == null) {
+            return;
+        }
+        collect(byPlant.get(plant), from, to, matches);
+        if (plant != PollutionStore.ALL_PLANTS) {
+            collect(byPlant.get(PollutionStore.ALL_PLANTS), from, to, matches);
+        }
+    }
+
+    /**
+     * Aggiunge a matches i risultati del gruppo con intervallo che si sovrappone a [from, to]:
+     * si parte dal primo che finisce non prima di from.
+     */
+    private static void collect(TreeMap<Long, Set<Entry>> byEnd, long from, long to, List<Entry> matches) {
+        if (byEnd == null) {
+            return;
+        }
+        for (Set<Entry> sameEnd : byEnd.tailMap(from, true).values()) {
+            for (Entry entry : sameEnd) {
+                if (entry.from <= to) {
+                    matches.add(entry);
+                }
+            }
+        }
+    }
+
+    private void remove(List<Entry> matches) {
+        for (Entry entry : matches) {
+            entries.remove(entry.key);
+            unindex(entry);
+            invalidations++;
+        }
+    }
+
+    private void unindex(Entry entry) {
+        Map<Integer, TreeMap<Long, Set<Entry>>> byPlant = index.get(entry.type);
+        TreeMap<Long, Set<Entry>> byEnd = byPlant.get(entry.plant);
+        Set<Entry> sameEnd = byEnd.get(entry.to);
+        sameEnd.remove(entry);
+        if (sameEnd.isEmpty()) {
+            byEnd.remove(entry.to);
+            if (byEnd.isEmpty()) {
+                byPlant.remove(entry.plant);
+                if (byPlant.isEmpty()) {
+                    index.remove(entry.type);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return dimensione, hit, miss ed eliminazioni della cache
+     */
+    Map<String, Object> metrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("size", entries.size());
+        metrics.put("maxEntries", maxEntries);
+        metrics.put("hits", hits);
+        metrics.put("misses", misses);
+        metrics.put("hitRate", hits + misses == 0 ? 0.0 : (double) hits / (hits + misses));
+        metrics.put("evictions", evictions);
+        metrics.put("invalidations", invalidations);
+        metrics.put("expirations", expirations);
+        return metrics;
+    }
+}
@@ -0,0 +1,187 @@
+package desm.administration.services;
+
+import desm.common.TDigest;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Retention dei dati di inquinamento del server, applicata periodicamente da PollutionService.
+ *
+ * 1. Per età: ogni livello (dati grezzi, rollup da 1 s, 1 min, 1 h, 1 giorno e sketch dei
+ *    quantili) viene eliminato oltre il proprio periodo di conservazione; i dati più vecchi
+ *    restano disponibili solo nei rollup più grossolani (downsampling).
+ * 2. Per memoria: se la stima dei byte occupati supera il budget, si eliminano i dati più
+ *    vecchi a partire dal livello più fine (grezzi, 1 s, sketch, 1 min, 1 h, 1 giorno)
+ *    finché la stima rientra nel budget.
+ *
+ * Non è thread-safe: va protetto dal chiamante.
+ */
+class RetentionPolicy {
+
+    // Ordine di eliminazione sotto pressione di memoria; SKETCHES indica gli sketch dei quantili
+    private static final int SKETCHES = Integer.MIN_VALUE;
+    private static final int[] BUDGET_ORDER = {RollupTiers.RAW, 0, SKETCHES, 1, 2, 3};
+    // Passo con cui avanza il cutoff dei dati grezzi quando si supera il budget
+    private static final long RAW_BUDGET_STEP_MS = 60_000L;
+
+    private final long rawRetentionMs;
+    private final long[] rollupRetentionMs;
+    private final long sketchRetentionMs;
+    private final long sketchBucketMs;
+    private final long memoryBudgetBytes;
+
+    private long runs;
+    private long budgetRuns;
+    private long estimatedBytes;
+    private long evictedRawPoints;
+    private final long[] evictedBuckets = new long[RollupTiers.WIDTHS_MS.length];
+    private long evictedSketches;
+    private long lastRunMicros;
+
+    RetentionPolicy(long rawRetentionMs, long[] rollupRetentionMs, long sketchRetentionMs,
+                    long sketchBucketMs, long memoryBudgetBytes) {
+        if (rollupRetentionMs.length != RollupTiers.WIDTHS_MS.length) {
+            throw new IllegalArgumentException("Expected " + RollupTiers.WIDTHS_MS.length + " rollup retentions");
+        }
+        // Un livello non può essere conservato meno di quello più fine
+        this.rawRetentionMs = rawRetentionMs;
+        this.rollupRetentionMs = rollupRetentionMs.clone();
+        long previous = rawRetentionMs;
+        for (int i = 0; i < this.rollupRetentionMs.length; i++) {
+            this.rollupRetentionMs[i] = Math.max(this.rollupRetentionMs[i], previous);
+            previous = this.rollupRetentionMs[i];
+        }
+        this.sketchRetentionMs = sketchRetentionMs;
+        this.sketchBucketMs = sketchBucketMs;
+        this.memoryBudgetBytes = memoryBudgetBytes;
+    }
+
+    /**
+     * Applica retention per età e budget di memoria.
+     */
+    void apply(long now, Collection<RollupTiers> series, Map<String, TreeMap<Long, TDigest>> sketches) {
+        long start = System.nanoTime();
+        runs++;
+        for (RollupTiers tiers : series) {
+            for (int level = RollupTiers.WIDTHS_MS.length - 1; level >= 0; level--) {
+                record(tiers.evictBefore(level, now - rollupRetentionMs[level]));
+            }
+            record(tiers.evictBefore(RollupTiers.RAW, now - rawRetentionMs));
+        }
+        evictSketchesBefore(sketches, now - sketchRetentionMs);
+        enforceBudget(now, series, sketches);
+        lastRunMicros = (System.nanoTime() - start) / 1000;
+    }
+
+    /**
+     * Se la stima supera il budget elimina i dati più vecchi, dal livello più fine.
+     * Chiamato anche durante l'ingestione: se la stima è nel budget costa O(tipi * livelli).
+     */
+    void enforceBudget(long now, Collection<RollupTiers> series, Map<String, TreeMap<Long, TDigest>> sketches) {
+        estimatedBytes = estimate(series, sketches);
+        if (estimatedBytes <= memoryBudgetBytes) {
+            return;
+        }
+        budgetRuns++;
+        for (int stage : BUDGET_ORDER) {
+            while (estimatedBytes > memoryBudgetBytes) {
+                long cutoff = nextCutoff(stage, series, sketches);
+                if (cutoff == Long.MAX_VALUE || cutoff > now) {
+                    break;
+                }
+                if (stage == SKETCHES) {
+                    evictSketchesBefore(sketches, cutoff);
+                } else {
+                    for (RollupTiers tiers : series) {
+                        record(tiers.evictBefore(stage, cutoff));
+                    }
+                }
+                estimatedBytes = estimate(series, sketches);
+            }
+        }
+    }
+
+    /**
+     * @return prossimo cutoff del livello: un passo oltre il dato più vecchio e oltre il
+     *         cutoff attuale, così ogni iterazione elimina qualcosa o fa avanzare il cutoff
+     */
+    private long nextCutoff(int stage, Collection<RollupTiers> series, Map<String, TreeMap<Long, TDigest>> sketches) {
+        long oldest = Long.MAX_VALUE;
+        long current = Long.MIN_VALUE;
+        long step;
+        if (stage == SKETCHES) {
+            for (TreeMap<Long, TDigest> buckets : sketches.values()) {
+                if (!buckets.isEmpty()) {
+                    oldest = Math.min(oldest, buckets.firstKey());
+                }
+            }
+            step = sketchBucketMs;
+        } else {
+            for (RollupTiers tiers : series) {
+                oldest = Math.min(oldest, tiers.oldest(stage));
+                current = Math.max(current, tiers.getCutoff(stage));
+            }
+            step = stage == RollupTiers.RAW ? RAW_BUDGET_STEP_MS : RollupTiers.alignment(stage);
+        }
+        if (oldest == Long.MAX_VALUE) {
+            return Long.MAX_VALUE;
+        }
+        return Math.max(Math.floorDiv(oldest, step) * step, current) + step;
+    }
+
+    private void evictSketchesBefore(Map<String, TreeMap<Long, TDigest>> sketches, long cutoff) {
+        for (TreeMap<Long, TDigest> buckets : sketches.values()) {
+            SortedMap<Long, TDigest> head = buckets.headMap(cutoff);
+            evictedSketches += head.size();
+            head.clear();
+        }
+    }
+
+    private void record(long[] evicted) {
+        evictedRawPoints += evicted[0];
+        for (int i = 0; i < evictedBuckets.length; i++) {
+            evictedBuckets[i] += evicted[i + 1];
+        }
+    }
+
+    private static long estimate(Collection<RollupTiers> series, Map<String, TreeMap<Long, TDigest>> sketches) {
+        long bytes = 0;
+        for (RollupTiers tiers : series) {
+            bytes += tiers.memoryBytes();
+        }
+        for (TreeMap<Long, TDigest> buckets : sketches.values()) {
+            if (!buckets.isEmpty()) {
+                // Tutti i digest hanno la stessa compressione: si stima dal primo
+                bytes += buckets.size() * (buckets.firstEntry().getValue().memoryBytes() + 56);
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * @return metriche di retention e occupazione di memoria
+     */
+    Map<String, Object> metrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("estimatedBytes", estimatedBytes);
+        metrics.put("memoryBudgetBytes", memoryBudgetBytes);
+        metrics.put("runs", runs);
+        metrics.put("budgetRuns", budgetRuns);
+        metrics.put("evictedRawPoints", evictedRawPoints);
+        metrics.put("evicted1sBuckets", evictedBuckets[0]);
+        metrics.put("evicted1minBuckets", evictedBuckets[1]);
+        metrics.put("evicted1hBuckets", evictedBuckets[2]);
+        metrics.put("evicted1dBuckets", evictedBuckets[3]);
+        metrics.put("evictedSketches", evictedSketches);
+        metrics.put("lastRunMicros", lastRunMicros);
+        return metrics;
+    }
+
+    long getEstimatedBytes() {
+        return estimatedBytes;
+    }
+}
@@ -0,0 +1,38 @@
+package desm.administration.services;
+
+/**
+ * Aggregato (somma, numero, minimo, massimo) di un bucket di rollup o del risultato
+ * di una query; due aggregati si fondono senza perdita di informazione.
+ */
+class Rollup {
+    double sum;
+    long count;
+    double min = Double.POSITIVE_INFINITY;
+    double max = Double.NEGATIVE_INFINITY;
+
+    void add(double value) {
+        sum += value;
+        count++;
+        if (value < min) {
+            min = value;
+        }
+        if (value > max) {
+            max = value;
+        }
+    }
+
+    void merge(Rollup other) {
+        merge(other.sum, other.count, other.min, other.max);
+    }
+
+    void merge(double otherSum, long otherCount, double otherMin, double otherMax) {
+        sum += otherSum;
+        count += otherCount;
+        if (otherMin < min) {
+            min = otherMin;
+        }
+        if (otherMax > max) {
+            max = otherMax;
+        }
+    }
+}
@@ -0,0 +1,301 @@
+package desm.administration.services;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Rollup a più risoluzioni (bucket da 1 s, 1 min, 1 h e 1 giorno) delle medie di un tipo
+ * di inquinante, aggiornati a ogni inserimento insieme ai dati grezzi (PollutionStore).
+ *
+ * Una query su [from, to] usa i bucket del livello più grossolano interamente contenuti
+ * nell'intervallo e scende ai livelli più fini solo per i due bordi: il numero di bucket
+ * letti dipende dalla lunghezza dell'intervallo in giorni più al più qualche centinaio di
+ * bucket di bordo, non dalla quantità di dati memorizzati. I bordi più fini di un secondo
+ * vengono letti dai dati grezzi.
+ *
+ * Ogni livello (livello -1 = dati grezzi) può essere eliminato prima di un cutoff
+ * (evictBefore): i cutoff sono allineati al bucket del livello superiore e non crescenti
+ * dai livelli fini a quelli grossolani, quindi prima del cutoff di un livello i dati
+ * restano disponibili solo come bucket più grossolani. In quella zona i bordi della query
+ * vengono approssimati includendo i bucket che iniziano nell'intervallo.
+ *
+ * Le istanze per singola centrale condividono l'archivio grezzo del loro tipo (senza
+ * scriverci) e ne leggono i bordi filtrando per codice della centrale; possono partire da
+ * un livello più grossolano (minLevel) per non tenere un bucket da 1 s per ogni media.
+ *
+ * Non è thread-safe: va protetto dal chiamante.
+ */
+public class RollupTiers {
+
+    static final long[] WIDTHS_MS = {1000L, 60_000L, 3_600_000L, 86_400_000L};
+    static final int RAW = -1;
+
+    // Stima per bucket: Rollup, chiave Long e nodo del TreeMap
+    private static final long BYTES_PER_BUCKET = 104;
+
+    private final List<TreeMap<Long, Rollup>> tiers = new ArrayList<>(WIDTHS_MS.length);
+    private final PollutionStore raw;
+    // Codice della centrale per le istanze per centrale, ALL_PLANTS per quella del tipo
+    private final int plant;
+    private final int minLevel;
+    // cutoffs[level + 1]: prima di questo timestamp il livello non ha più dati
+    private final long[] cutoffs = new long[WIDTHS_MS.length + 1];
+
+    /**
+     * Rollup di tutte le centrali di un tipo, proprietario dell'archivio grezzo.
+     */
+    public RollupTiers(PollutionStore raw) {
+        this(raw, PollutionStore.ALL_PLANTS, 0);
+    }
+
+    /**
+     * @param raw archivio grezzo del tipo, in sola lettura se plant non è ALL_PLANTS
+     * @param plant codice della centrale, ALL_PLANTS per tutte
+     * @param minLevel primo livello mantenuto: sotto si leggono direttamente i dati grezzi
+     */
+    public RollupTiers(PollutionStore raw, int plant, int minLevel) {
+        this.raw = raw;
+        this.plant = plant;
+        this.minLevel = minLevel;
+        for (int i = 0; i < WIDTHS_MS.length; i++) {
+            tiers.add(new TreeMap<>());
+        }
+        Arrays.fill(cutoffs, Long.MIN_VALUE);
+    }
+
+    /**
+     * Aggiunge una media ai dati grezzi e a tutti i livelli che coprono ancora il suo timestamp.
+     * @param plant codice della centrale nel PlantDictionary
+     */
+    public void add(long timestamp, double value, int plant) {
+        if (ownsRaw() && timestamp >= cutoffs[0]) {
+            raw.add(timestamp, value, plant);
+        }
+        for (int i = minLevel; i < WIDTHS_MS.length; i++) {
+            if (timestamp < cutoffs[i + 1]) {
+                continue;
+            }
+            long bucket = Math.floorDiv(timestamp, WIDTHS_MS[i]) * WIDTHS_MS[i];
+            tiers.get(i).computeIfAbsent(bucket, b -> new Rollup()).add(value);
+        }
+    }
+
+    /**
+     * Aggiunge una media solo ai dati grezzi: usato in ripartenza per i record del log
+     * già contenuti nei rollup del checkpoint.
+     */
+    void addRaw(long timestamp, double value, int plant) {
+        if (ownsRaw() && timestamp >= cutoffs[0]) {
+            raw.add(timestamp, value, plant);
+        }
+    }
+
+    /**
+     * Aggrega le medie con timestamp in [from, to].
+     */
+    Rollup query(long from, long to) {
+        Rollup out = new Rollup();
+        if (from <= to) {
+            long end = to == Long.MAX_VALUE ? to : to + 1;
+            collect(WIDTHS_MS.length - 1, from, end, out);
+        }
+        return out;
+    }
+
+    /**
+     * Media su [from, to]: con le somme cumulative dei dati grezzi se coprono ancora
+     * l'intervallo, altrimenti dai rollup.
+     */
+    public double average(long from, long to) {
+        if (ownsRaw() && from >= cutoffs[0]) {
+            return raw.average(from, to);
+        }
+        Rollup result = query(from, to);
+        return result.count > 0 ? result.sum / result.count : 0.0;
+    }
+
+    /**
+     * Aggrega [from, end) usando i bucket del livello indicato interamente contenuti
+     * e delegando i bordi al livello inferiore.
+     */
+    private void collect(int level, long from, long end, Rollup out) {
+        if (from >= end) {
+            return;
+        }
+        if (level < minLevel) {
+            raw.scan(from, end - 1, plant, out);
+            return;
+        }
+        TreeMap<Long, Rollup> tier = tiers.get(level);
+        // Sotto minLevel si scende direttamente ai dati grezzi
+        long finerFrom = level == minLevel ? cutoffs[0] : cutoffs[level];
+        if (from < finerFrom) {
+            // Il livello inferiore è già stato eliminato qui: si usano i bucket di questo livello
+            long split = Math.min(end, finerFrom);
+            for (Rollup bucket : tier.subMap(from, true, split, false).values()) {
+                out.merge(bucket);
+            }
+            from = split;
+            if (from >= end) {
+                return;
+            }
+        }
+        long width = WIDTHS_MS[level];
+        long first = -Math.floorDiv(-from, width) * width;
+        long last = Math.floorDiv(end, width) * width;
+        if (first >= last) {
+            collect(level - 1, from, end, out);
+            return;
+        }
+        for (Rollup bucket : tier.subMap(first, true, last, false).values()) {
+            out.merge(bucket);
+        }
+        collect(level - 1, from, first, out);
+        collect(level - 1, last, end, out);
+    }
+
+    /**
+     * Elimina i dati del livello (RAW per i dati grezzi) precedenti a cutoff, arrotondato
+     * per difetto al bucket del livello superiore. Anche i livelli più fini vengono
+     * eliminati almeno fino allo stesso cutoff.
+     * @return numero di bucket (o punti grezzi) eliminati per livello, indice level + 1
+     */
+    long[] evictBefore(int level, long cutoff) {
+        long[] evicted = new long[WIDTHS_MS.length + 1];
+        long aligned = Math.floorDiv(cutoff, alignment(level)) * alignment(level);
+        for (int l = level; l >= RAW; l--) {
+            if (aligned <= cutoffs[l + 1]) {
+                continue;
+            }
+            cutoffs[l + 1] = aligned;
+            if (l == RAW) {
+                evicted[0] = ownsRaw() ? raw.evictBefore(aligned) : 0;
+            } else {
+                TreeMap<Long, Rollup> tier = tiers.get(l);
+                SortedMap<Long, Rollup> head = tier.headMap(aligned);
+                evicted[l + 1] = head.size();
+                head.clear();
+            }
+        }
+        return evicted;
+    }
+
+    /**
+     * @return larghezza a cui è allineato il cutoff del livello
+     */
+    static long alignment(int level) {
+        return level + 1 < WIDTHS_MS.length ? WIDTHS_MS[level + 1] : WIDTHS_MS[WIDTHS_MS.length - 1];
+    }
+
+    /**
+     * @return cutoff corrente del livello (RAW per i dati grezzi)
+     */
+    long getCutoff(int level) {
+        return cutoffs[level + 1];
+    }
+
+    /**
+     * @return timestamp del dato più vecchio del livello, Long.MAX_VALUE se vuoto
+     */
+    long oldest(int level) {
+        if (level == RAW) {
+            return ownsRaw() ? raw.getOldestTimestamp() : Long.MAX_VALUE;
+        }
+        TreeMap<Long, Rollup> tier = tiers.get(level);
+        return tier.isEmpty() ? Long.MAX_VALUE : tier.firstKey();
+    }
+
+    /**
+     * @return stima dei byte occupati da dati grezzi e rollup
+     */
+    public long memoryBytes() {
+        long bytes = ownsRaw() ? raw.memoryBytes() : 0;
+        for (TreeMap<Long, Rollup> tier : tiers) {
+            bytes += tier.size() * BYTES_PER_BUCKET;
+        }
+        return bytes;
+    }
+
+    /**
+     * Scrive cutoff e bucket di tutti i livelli (non i dati grezzi, che si ricostruiscono dal log).
+     */
+    void writeTo(DataOutputStream out) throws IOException {
+        for (long cutoff : cutoffs) {
+            out.writeLong(cutoff);
+        }
+        for (TreeMap<Long, Rollup> tier : tiers) {
+            out.writeInt(tier.size());
+            for (Map.Entry<Long, Rollup> entry : tier.entrySet()) {
+                Rollup bucket = entry.getValue();
+                out.writeLong(entry.getKey());
+                out.writeDouble(bucket.sum);
+                out.writeLong(bucket.count);
+                out.writeDouble(bucket.min);
+                out.writeDouble(bucket.max);
+            }
+        }
+    }
+
+    /**
+     * Ripristina cutoff e bucket scritti da writeTo.
+     */
+    void readFrom(DataInputStream in) throws IOException {
+        for (int i = 0; i < cutoffs.length; i++) {
+            cutoffs[i] = in.readLong();
+        }
+        for (TreeMap<Long, Rollup> tier : tiers) {
+            tier.clear();
+            int size = in.readInt();
+            for (int i = 0; i < size; i++) {
+                long key = in.readLong();
+                Rollup bucket = new Rollup();
+                bucket.sum = in.readDouble();
+                bucket.count = in.readLong();
+                bucket.min = in.readDouble();
+                bucket.max = in.readDouble();
+                tier.put(key, bucket);
+            }
+        }
+    }
+
+    /**
+     * @return byte dei dati grezzi allocati fuori heap
+     */
+    public long offHeapBytes() {
+        return ownsRaw() ? raw.offHeapBytes() : 0;
+    }
+
+    /**
+     * Copia i cutoff di un'altra istanza: un rollup per centrale creato dopo una retention
+     * non deve leggere dall'archivio grezzo condiviso i periodi già eliminati.
+     */
+    void inheritCutoffs(RollupTiers other) {
+        System.arraycopy(other.cutoffs, 0, cutoffs, 0, cutoffs.length);
+    }
+
+    PollutionStore getRaw() {
+        return raw;
+    }
+
+    private boolean ownsRaw() {
+        return plant == PollutionStore.ALL_PLANTS;
+    }
+
+    /**
+     * @return numero di bucket per livello, dal più fine al più grossolano
+     */
+    public int[] bucketCounts() {
+        int[] counts = new int[tiers.size()];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = tiers.get(i).size();
+        }
+        return counts;
+    }
+}
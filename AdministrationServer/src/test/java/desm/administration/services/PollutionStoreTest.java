@@ -0,0 +1,141 @@
+package desm.administration.services;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class PollutionStoreTest {
+
+    private static final int SEGMENT_SIZE = 1 << 16;
+
+    private static double value(long timestamp) {
+        return timestamp % 7 + 0.5;
+    }
+
+    private static double[] bruteForce(long first, long last, long from, long to) {
+        double sum = 0.0;
+        long count = 0;
+        for (long ts = Math.max(first, from); ts <= Math.min(last, to); ts++) {
+            sum += value(ts);
+            count++;
+        }
+        return new double[]{sum, count};
+    }
+
+    private static void assertRange(PollutionStore store, long first, long last, long from, long to) {
+        double[] expected = bruteForce(first, last, from, to);
+        double[] actual = store.sumAndCount(from, to);
+        assertEquals(expected[1], actual[1], "count in [" + from + ", " + to + "]");
+        assertEquals(expected[0], actual[0], 1e-6, "sum in [" + from + ", " + to + "]");
+    }
+
+    @Test
+    void sumAndCountAfterEvictingSegments() {
+        PollutionStore store = new PollutionStore(0);
+        long last = 3L * SEGMENT_SIZE + 100;
+        for (long ts = 0; ts <= last; ts++) {
+            store.add(ts, value(ts), 0);
+        }
+
+        long evicted = store.evictBefore(2L * SEGMENT_SIZE);
+        assertEquals(2L * SEGMENT_SIZE, evicted);
+        long first = 2L * SEGMENT_SIZE;
+
+        // Query che partono dal primo punto rimasto: indice sigillato 0
+        assertRange(store, first, last, 0, Long.MAX_VALUE);
+        assertRange(store, first, last, first, first);
+        assertRange(store, first, last, first, first + 1000);
+        assertRange(store, first, last, 0, first + SEGMENT_SIZE + 10);
+        // Query interne ai segmenti rimasti e a cavallo fra i due
+        assertRange(store, first, last, first + 10, first + 20);
+        assertRange(store, first, last, first + SEGMENT_SIZE - 5, first + SEGMENT_SIZE + 5);
+        assertEquals(bruteForce(first, last, 0, last)[0] / bruteForce(first, last, 0, last)[1],
+                store.average(0, last), 1e-9);
+    }
+
+    @Test
+    void sumAndCountAfterRepeatedEvictionAndNewData() {
+        PollutionStore store = new PollutionStore(0);
+        long last = 2L * SEGMENT_SIZE + 50;
+        for (long ts = 0; ts <= last; ts++) {
+            store.add(ts, value(ts), 0);
+        }
+        store.evictBefore(SEGMENT_SIZE);
+        long more = last + 2L * SEGMENT_SIZE;
+        for (long ts = last + 1; ts <= more; ts++) {
+            store.add(ts, value(ts), 0);
+        }
+        store.evictBefore(2L * SEGMENT_SIZE);
+        long first = 2L * SEGMENT_SIZE;
+
+        assertRange(store, first, more, 0, Long.MAX_VALUE);
+        assertRange(store, first, more, first, first + 3);
+        assertRange(store, first, more, last - 10, last + 10);
+    }
+
+    @Test
+    void lateSamplesAreMergedInBatches() {
+        PollutionStore store = new PollutionStore(0);
+        int n = 200_000;
+        long[] timestamps = new long[n + 5000];
+        double[] values = new double[n + 5000];
+        // Timestamp pari in ordine, poi i dispari in ritardo e in ordine casuale
+        for (int i = 0; i < n; i++) {
+            timestamps[i] = 2L * i;
+            values[i] = value(timestamps[i]);
+            store.add(timestamps[i], values[i], 0);
+        }
+        Random random = new Random(41);
+        int total = n;
+        for (int i = 0; i < 5000; i++) {
+            long ts = 2L * random.nextInt(n - SEGMENT_SIZE) + 1;
+            timestamps[total] = ts;
+            values[total] = value(ts) * 3;
+            store.add(ts, values[total], 0);
+            total++;
+            // Alcune query cadono con il buffer dei tardivi a metà
+            if (i % 977 == 0) {
+                assertLateRange(store, timestamps, values, total, ts - 1000, ts + 1000);
+            }
+        }
+        assertEquals(total, store.size());
+        for (int i = 0; i < 50; i++) {
+            long from = random.nextInt(2 * n);
+            long to = from + random.nextInt(20_000);
+            assertLateRange(store, timestamps, values, total, from, to);
+        }
+
+        long cutoff = 2L * SEGMENT_SIZE + 1;
+        store.evictBefore(cutoff);
+        int kept = 0;
+        for (int i = 0; i < total; i++) {
+            boolean sealedKept = i < n && timestamps[i] >= 2L * SEGMENT_SIZE;
+            boolean lateKept = i >= n && timestamps[i] >= cutoff;
+            if (sealedKept || lateKept) {
+                timestamps[kept] = timestamps[i];
+                values[kept] = values[i];
+                kept++;
+            }
+        }
+        assertEquals(kept, store.size());
+        assertLateRange(store, timestamps, values, kept, 0, Long.MAX_VALUE);
+        assertLateRange(store, timestamps, values, kept, cutoff - 10, cutoff + 10_000);
+    }
+
+    private static void assertLateRange(PollutionStore store, long[] timestamps, double[] values,
+                                        int size, long from, long to) {
+        double sum = 0.0;
+        long count = 0;
+        for (int i = 0; i < size; i++) {
+            if (timestamps[i] >= from && timestamps[i] <= to) {
+                sum += values[i];
+                count++;
+            }
+        }
+        double[] actual = store.sumAndCount(from, to);
+        assertEquals(count, actual[1], "count in [" + from + ", " + to + "]");
+        assertEquals(sum, actual[0], 1e-6 * Math.max(1.0, sum), "sum in [" + from + ", " + to + "]");
+    }
+}
@@ -0,0 +1,39 @@
+package desm.common;
+
+/**
+ * Lettura di sequenze di bit (MSB first) scritte da BitWriter.
+ */
+public class BitReader {
+
+    private final byte[] buffer;
+    private long bitPosition;
+
+    public BitReader(byte[] buffer) {
+        this.buffer = buffer;
+    }
+
+    public boolean readBit() {
+        return readBits(1) != 0;
+    }
+
+    /**
+     * @return bit ancora da leggere
+     */
+    public long remainingBits() {
+        return (long) buffer.length * 8 - bitPosition;
+    }
+
+    public long readBits(int bits) {
+        if (bitPosition + bits > (long) buffer.length * 8) {
+            throw new IllegalArgumentException("Truncated bit stream");
+        }
+        long value = 0;
+        for (int i = 0; i < bits; i++) {
+            int index = (int) (bitPosition >>> 3);
+            int bit = (buffer[index] >>> (7 - (bitPosition & 7))) & 1;
+            value = (value << 1) | bit;
+            bitPosition++;
+        }
+        return value;
+    }
+}
@@ -0,0 +1,48 @@
+package desm.common;
+
+import java.util.Arrays;
+
+/**
+ * Scrittura di sequenze di bit (MSB first) in un array di byte che cresce da solo.
+ */
+public class BitWriter {
+
+    private byte[] buffer;
+    private long bitPosition;
+
+    public BitWriter(int initialBytes) {
+        this.buffer = new byte[Math.max(initialBytes, 8)];
+    }
+
+    public void writeBit(boolean bit) {
+        writeBits(bit ? 1 : 0, 1);
+    }
+
+    /**
+     * Scrive i bits bit meno significativi di value, dal più significativo.
+     */
+    public void writeBits(long value, int bits) {
+        ensureCapacity(bitPosition + bits);
+        for (int i = bits - 1; i >= 0; i--) {
+            if (((value >>> i) & 1L) != 0) {
+                int index = (int) (bitPosition >>> 3);
+                buffer[index] |= (byte) (0x80 >>> (bitPosition & 7));
+            }
+            bitPosition++;
+        }
+    }
+
+    private void ensureCapacity(long bits) {
+        int bytes = (int) ((bits + 7) >>> 3);
+        if (bytes > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(bytes, buffer.length * 2));
+        }
+    }
+
+    /**
+     * @return i byte scritti, con l'ultimo completato da bit a zero
+     */
+    public byte[] toByteArray() {
+        return Arrays.copyOf(buffer, (int) ((bitPosition + 7) >>> 3));
+    }
+}
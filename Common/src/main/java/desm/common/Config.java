@@ -6,6 +6,7 @@ public class Config {
         public static final int MAX_ENERGY = 15000;
         public static final String ENERGY_REQUEST_TOPIC = "energy/requests";
         public static final String ENERGY_RESPONSE_TOPIC = "energy/responses";
+        public static final String ENERGY_REQUEST_BATCH_TOPIC = "energy/batches";
 
         public static final String PLANT_POLLUTION_TOPIC = "plant/pollution/sensor";
 
@@ -18,4 +19,209 @@ public class Config {
 
         public static final int POLLUTION_QOS = 1;
 
+        /**
+         * Intervallo del report periodico sui tempi di evasione delle richieste del provider
+         * e file in cui viene scritto lo snapshot JSON delle stesse metriche.
+         */
+        public static final long PROVIDER_REPORT_INTERVAL_MS = 30000;
+        public static final String PROVIDER_METRICS_FILE = "provider-metrics.json";
+
+        /**
+         * SLA delle richieste di energia: ogni richiesta deve essere evasa entro REQUEST_SLA_MS
+         * dalla pubblicazione. Scaduto lo SLA il provider la ripubblica con una nuova scadenza
+         * fino a REQUEST_MAX_REPUBLISH volte, poi la considera persa e la rimuove.
+         */
+        public static final long REQUEST_SLA_MS = 60000;
+        public static final int REQUEST_MAX_REPUBLISH = 2;
+        public static final long PROVIDER_SLA_CHECK_INTERVAL_MS = 1000;
+
+        /**
+         * Se true richieste di energia e dati di inquinamento vengono pubblicati in formato
+         * binario protobuf (vedi PayloadCodec), altrimenti in JSON. I subscriber accettano
+         * sempre entrambi i formati, riconoscendoli dal primo byte del payload.
+         * Disattivato di default: consumatori esterni dei topic si aspettano JSON, va attivato
+         * solo quando tutti i subscriber sono stati aggiornati.
+         */
+        public static final boolean BINARY_PAYLOADS = false;
+
+        /**
+         * Modalità batch del provider: le richieste create entro REQUEST_BATCH_WINDOW_MS
+         * dalla prima vengono pubblicate in un unico messaggio retained su
+         * ENERGY_REQUEST_BATCH_TOPIC/{batchId}, al massimo REQUEST_BATCH_MAX_SIZE per batch.
+         */
+        public static final boolean REQUEST_BATCHING = false;
+        public static final long REQUEST_BATCH_WINDOW_MS = 50;
+        public static final int REQUEST_BATCH_MAX_SIZE = 64;
+
+        /**
+         * Se true le centrali pubblicano tramite MqttAsyncClient: risposte al provider e dati
+         * di inquinamento non attendono l'ack del broker. Al massimo MQTT_MAX_INFLIGHT messaggi
+         * QoS 1 restano in volo, i successivi attendono in una coda locale di MQTT_MAX_QUEUED
+         * (a coda piena si scartano i dati di inquinamento più vecchi, che finiscono nello
+         * spool). Le risposte al provider non vengono mai scartate e, se falliscono, sono
+         * ripubblicate alla riconnessione; da disconnesso Paho accoda fino a MQTT_MAX_QUEUED
+         * messaggi nel proprio buffer offline.
+         */
+        public static final boolean PLANT_MQTT_ASYNC = true;
+        public static final int MQTT_MAX_INFLIGHT = 64;
+        public static final int MQTT_MAX_QUEUED = 1024;
+
+        /**
+         * Coda di ingest tra il callback MQTT e la coda delle elezioni sulle centrali.
+         * La policy (DROP_OLDEST, BLOCK, SHED_EXPIRED) decide cosa fare a coda piena;
+         * i messaggi rimasti in coda più di PLANT_INGEST_LAG_THRESHOLD_MS sono contati come in ritardo.
+         */
+        public static final boolean PLANT_INGEST_QUEUE = true;
+        public static final int PLANT_INGEST_CAPACITY = 1024;
+        public static final String PLANT_INGEST_OVERFLOW_POLICY = "SHED_EXPIRED";
+        public static final long PLANT_INGEST_LAG_THRESHOLD_MS = 500;
+
+        /**
+         * Numero di richieste di energia già ricevute o chiuse che ogni centrale ricorda per
+         * ignorarne le ricezioni ripetute (batch retained, riconnessioni); una ripubblicazione
+         * del provider con scadenza più lontana viene comunque accettata.
+         */
+        public static final int PLANT_SEEN_REQUESTS = 4096;
+
+        /**
+         * Pipeline del sensore di inquinamento sulle centrali. Le medie vengono pubblicate
+         * appena ne sono pronte POLLUTION_FLUSH_MAX_AVERAGES, appena una media si discosta
+         * di più di POLLUTION_SPIKE_SIGMAS deviazioni standard dalla storia del suo sensore,
+         * oppure dopo un ritardo che va da POLLUTION_FLUSH_MAX_DELAY_MS (centrale stabile)
+         * a POLLUTION_FLUSH_MIN_DELAY_MS (varianza recente in crescita). Il buffer del sensore
+         * contiene al più PLANT_SENSOR_BUFFER_CAPACITY misurazioni, poi blocca il sensore.
+         */
+        public static final int POLLUTION_FLUSH_MAX_AVERAGES = 64;
+        public static final long POLLUTION_FLUSH_MIN_DELAY_MS = 50;
+        public static final long POLLUTION_FLUSH_MAX_DELAY_MS = 10000;
+        public static final double POLLUTION_SPIKE_SIGMAS = 3.0;
+        public static final int PLANT_SENSOR_BUFFER_CAPACITY = 4096;
+
+        /**
+         * Sensori di inquinamento di ogni centrale, campionati da un unico scheduler.
+         * Per ogni tipo: media e varianza della distribuzione simulata. Le medie di tutti
+         * i tipi viaggiano in un solo messaggio; il campo averages contiene quelle di
+         * POLLUTION_PRIMARY_TYPE per i client che conoscono solo la CO2.
+         */
+        public static final String[] PLANT_SENSOR_TYPES = {"CO2", "NOx", "SO2", "PM2.5"};
+        public static final double[] PLANT_SENSOR_MEANS = {125000, 300, 150, 35};
+        public static final double[] PLANT_SENSOR_VARIANCES = {5000, 400, 100, 25};
+        public static final long PLANT_SENSOR_PERIOD_MS = 2000;
+        public static final String POLLUTION_PRIMARY_TYPE = "CO2";
+
+        /**
+         * Se true le centrali inviano ogni serie di medie compressa con GorillaCodec
+         * (timestamp di fine finestra in delta-of-delta, valori in XOR) invece della
+         * sola lista di medie. Ha effetto solo con BINARY_PAYLOADS.
+         */
+        public static final boolean POLLUTION_COMPRESSION = true;
+
+        /**
+         * Spool su file (mappato in memoria) dei dati di inquinamento che la centrale non
+         * riesce a consegnare al broker. Al più PLANT_SPOOL_SIZE_BYTES, poi si scartano i
+         * messaggi più vecchi; alla riconnessione vengono ripubblicati in ordine, al più
+         * PLANT_SPOOL_DRAIN_RATE messaggi al secondo.
+         */
+        public static final boolean PLANT_SPOOL_ENABLED = true;
+        public static final String PLANT_SPOOL_DIR = ".";
+        public static final int PLANT_SPOOL_SIZE_BYTES = 8 * 1024 * 1024;
+        public static final int PLANT_SPOOL_DRAIN_RATE = 50;
+
+        /**
+         * Sketch dei quantili (TDigest) inviati con ogni PollutionData e aggregati dal server
+         * in bucket di POLLUTION_SKETCH_BUCKET_MS. Una compressione maggiore dà quantili
+         * più precisi e sketch più grandi (circa compression / 2 centroidi da 16 byte).
+         */
+        public static final double POLLUTION_SKETCH_COMPRESSION = 100;
+        public static final long POLLUTION_SKETCH_BUCKET_MS = 60000;
+
+        /**
+         * Ritardo massimo atteso fra le medie di centrali diverse: il server riordina le medie
+         * più recenti di questa finestra prima di aggiungerle all'archivio ordinato per timestamp.
+         */
+        public static final long POLLUTION_REORDER_WINDOW_MS = 30000;
+
+        /**
+         * Retention dei dati di inquinamento sul server: le medie grezze, i rollup da 1 s, 1 min,
+         * 1 h e 1 giorno e gli sketch dei quantili sono conservati per il periodo indicato,
+         * poi restano solo nei rollup più grossolani. Oltre POLLUTION_MEMORY_BUDGET_BYTES
+         * (stima) vengono eliminati i dati più vecchi a partire dal livello più fine.
+         * Le medie grezze stanno in segmenti fuori heap che vengono liberati solo quando il GC
+         * raccoglie i buffer eliminati: -XX:MaxDirectMemorySize va impostato sopra il budget con
+         * margine. Quando il limite viene raggiunto la JVM chiama System.gc() prima di fallire,
+         * quindi con -XX:+DisableExplicitGC un'allocazione può fallire con OutOfMemoryError
+         * anche se i segmenti eliminati basterebbero.
+         */
+        public static final long POLLUTION_RAW_RETENTION_MS = 3_600_000L;
+        public static final long[] POLLUTION_ROLLUP_RETENTION_MS = {
+                6 * 3_600_000L, 7 * 86_400_000L, 90 * 86_400_000L, 5 * 365 * 86_400_000L};
+        public static final long POLLUTION_SKETCH_RETENTION_MS = 86_400_000L;
+        public static final long POLLUTION_MEMORY_BUDGET_BYTES = 256L * 1024 * 1024;
+        public static final long POLLUTION_RETENTION_INTERVAL_MS = 10000;
+
+        /**
+         * Persistenza dei dati di inquinamento sul server: log append-only in segmenti da
+         * POLLUTION_LOG_SEGMENT_BYTES (da non cambiare con un log esistente) con group commit
+         * ogni POLLUTION_LOG_COMMIT_DELAY_MS e checkpoint dei rollup ogni
+         * POLLUTION_CHECKPOINT_INTERVAL_MS, tutto nella directory POLLUTION_LOG_DIR.
+         */
+        public static final boolean POLLUTION_LOG_ENABLED = true;
+        public static final String POLLUTION_LOG_DIR = "pollution-log";
+        public static final int POLLUTION_LOG_SEGMENT_BYTES = 64 * 1024 * 1024;
+        public static final long POLLUTION_LOG_COMMIT_DELAY_MS = 2;
+        public static final long POLLUTION_CHECKPOINT_INTERVAL_MS = 60000;
+
+        /**
+         * Cache dei risultati delle query sul server (LRU, al più POLLUTION_CACHE_MAX_ENTRIES).
+         * Un risultato resta valido finché non arrivano dati nel suo intervallo; gli intervalli
+         * ancora aperti (che arrivano nella finestra di riordino) scadono dopo
+         * POLLUTION_CACHE_OPEN_TTL_MS.
+         */
+        public static final int POLLUTION_CACHE_MAX_ENTRIES = 4096;
+        public static final long POLLUTION_CACHE_OPEN_TTL_MS = 2000;
+
+        /**
+         * Streaming live delle medie (/client/stream): aggregati per finestre di almeno
+         * POLLUTION_STREAM_MIN_WINDOW_MS, inviati ogni POLLUTION_STREAM_FLUSH_MS da
+         * POLLUTION_STREAM_SENDER_THREADS thread. Ogni client ha un buffer di al più
+         * POLLUTION_STREAM_BUFFER_WINDOWS finestre: gli aggiornamenti della stessa finestra
+         * si fondono, oltre si scartano le più vecchie. Una finestra resta aggiornabile per
+         * POLLUTION_REORDER_WINDOW_MS dopo la più recente. Un client con un invio bloccato da
+         * più di POLLUTION_STREAM_SEND_TIMEOUT_MS viene staccato e il suo thread sostituito.
+         */
+        public static final long POLLUTION_STREAM_MIN_WINDOW_MS = 100;
+        public static final long POLLUTION_STREAM_FLUSH_MS = 500;
+        public static final int POLLUTION_STREAM_SENDER_THREADS = 4;
+        public static final int POLLUTION_STREAM_BUFFER_WINDOWS = 64;
+        public static final long POLLUTION_STREAM_TIMEOUT_MS = 30 * 60_000L;
+        public static final long POLLUTION_STREAM_SEND_TIMEOUT_MS = 5000;
+
+        /**
+         * Pipeline di ingestione del server: il callback MQTT accoda i messaggi grezzi in un
+         * ring da POLLUTION_INGEST_QUEUE_CAPACITY (a coda piena il callback attende);
+         * POLLUTION_INGEST_WORKERS thread li decodificano e li archiviano a blocchi di al
+         * più POLLUTION_INGEST_BATCH con un'unica acquisizione del lock dello store.
+         * L'ack MQTT di ogni messaggio parte solo dopo la fsync del suo blocco.
+         */
+        public static final int POLLUTION_INGEST_QUEUE_CAPACITY = 65536;
+        public static final int POLLUTION_INGEST_WORKERS = 4;
+        public static final int POLLUTION_INGEST_BATCH = 512;
+
+        /**
+         * Distribuzione dei dati di inquinamento fra le connessioni MQTT del server
+         * (PollutionSubscriptionMode, uguale su centrali e server):
+         * SINGLE una connessione su PLANT_POLLUTION_TOPIC;
+         * SHARED POLLUTION_SUBSCRIBER_CONNECTIONS connessioni sulla shared subscription
+         * $share/POLLUTION_SHARE_GROUP/PLANT_POLLUTION_TOPIC (es. Mosquitto 2.x), fra cui il
+         * broker distribuisce i messaggi;
+         * PARTITIONED le centrali pubblicano su PLANT_POLLUTION_TOPIC/{shard} con
+         * shard = hash(plantId) % POLLUTION_TOPIC_SHARDS e ognuna delle
+         * POLLUTION_SUBSCRIBER_CONNECTIONS connessioni sottoscrive una parte delle partizioni,
+         * per i broker senza shared subscription.
+         */
+        public static final String POLLUTION_SUBSCRIPTION_MODE = "SINGLE";
+        public static final int POLLUTION_SUBSCRIBER_CONNECTIONS = 4;
+        public static final String POLLUTION_SHARE_GROUP = "desm-admin";
+        public static final int POLLUTION_TOPIC_SHARDS = 16;
+
 }
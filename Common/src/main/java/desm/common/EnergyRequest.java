@@ -5,11 +5,26 @@ public class EnergyRequest {
     private final String requestId;
     private final long timestamp;
     private final double energyAmount;
+    /**
+     * Istante (epoch ms) entro cui la richiesta deve essere evasa. 0 indica nessuna scadenza,
+     * così i messaggi JSON senza il campo restano compatibili.
+     */
+    private final long deadline;
+    /**
+     * Numero di ripubblicazioni già effettuate dal provider per questa richiesta.
+     */
+    private final int attempt;
 
     public EnergyRequest(String requestId, long timestamp, double energyAmount) {
+        this(requestId, timestamp, energyAmount, 0L, 0);
+    }
+
+    public EnergyRequest(String requestId, long timestamp, double energyAmount, long deadline, int attempt) {
         this.requestId = requestId;
         this.timestamp = timestamp;
         this.energyAmount = energyAmount;
+        this.deadline = deadline;
+        this.attempt = attempt;
     }
 
     public String getRequestId() {
@@ -24,10 +39,38 @@ public class EnergyRequest {
         return energyAmount;
     }
 
+    public long getDeadline() {
+        return deadline;
+    }
+
+    public int getAttempt() {
+        return attempt;
+    }
+
+    public boolean hasDeadline() {
+        return deadline > 0;
+    }
+
+    /**
+     * @param now istante corrente in epoch ms
+     * @return true se la richiesta ha una scadenza ed è già stata superata
+     */
+    public boolean isExpired(long now) {
+        return deadline > 0 && now > deadline;
+    }
+
+    /**
+     * Crea una copia della richiesta con una nuova scadenza, usata dal provider
+     * quando ripubblica una richiesta che ha mancato lo SLA.
+     */
+    public EnergyRequest republish(long newDeadline) {
+        return new EnergyRequest(requestId, timestamp, energyAmount, newDeadline, attempt + 1);
+    }
+
     public String toJson() {
         return String.format(
-                "{\"requestId\":\"%s\",\"timestamp\":\"%s\",\"energyAmount\":%d}",
-                requestId, timestamp, energyAmount
+                "{\"requestId\":\"%s\",\"timestamp\":%d,\"energyAmount\":%s,\"deadline\":%d,\"attempt\":%d}",
+                requestId, timestamp, energyAmount, deadline, attempt
         );
     }
 
@@ -0,0 +1,25 @@
+package desm.common;
+
+import java.util.List;
+
+/**
+ * Gruppo di richieste di energia pubblicate insieme dal provider in modalità batch.
+ */
+public class EnergyRequestBatch {
+
+    private final String batchId;
+    private final List<EnergyRequest> requests;
+
+    public EnergyRequestBatch(String batchId, List<EnergyRequest> requests) {
+        this.batchId = batchId;
+        this.requests = requests;
+    }
+
+    public String getBatchId() {
+        return batchId;
+    }
+
+    public List<EnergyRequest> getRequests() {
+        return requests;
+    }
+}
@@ -0,0 +1,173 @@
+package desm.common;
+
+/**
+ * Compressione di serie temporali in stile Gorilla (Pelkonen et al., VLDB 2015).
+ * I timestamp sono codificati come delta-of-delta: per campioni a intervallo regolare
+ * ognuno occupa un solo bit. I valori sono codificati come XOR con il precedente:
+ * un valore uguale occupa un bit, uno vicino solo i bit significativi dello XOR.
+ *
+ * Formato: numero di campioni (32 bit), primo timestamp e primo valore (64 bit ciascuno),
+ * poi per ogni campione successivo il delta-of-delta del timestamp e lo XOR del valore.
+ * L'intestazione costa 20 byte: per le serie di pochi campioni PayloadCodec usa il
+ * formato non compresso.
+ */
+public class GorillaCodec {
+
+    private GorillaCodec() {
+    }
+
+    /**
+     * Serie decodificata: timestamp e valori in array paralleli di lunghezza count.
+     */
+    public static final class Series {
+        public final long[] timestamps;
+        public final double[] values;
+        public final int count;
+
+        Series(long[] timestamps, double[] values, int count) {
+            this.timestamps = timestamps;
+            this.values = values;
+            this.count = count;
+        }
+    }
+
+    public static byte[] encode(long[] timestamps, double[] values, int count) {
+        BitWriter out = new BitWriter(16 + count * 2);
+        out.writeBits(count, 32);
+        if (count == 0) {
+            return out.toByteArray();
+        }
+        out.writeBits(timestamps[0], 64);
+        out.writeBits(Double.doubleToRawLongBits(values[0]), 64);
+
+        long previousTimestamp = timestamps[0];
+        long previousDelta = 0;
+        long previousBits = Double.doubleToRawLongBits(values[0]);
+        int previousLeading = -1;
+        int previousTrailing = 0;
+        for (int i = 1; i < count; i++) {
+            long delta = timestamps[i] - previousTimestamp;
+            writeDeltaOfDelta(out, delta - previousDelta);
+            previousTimestamp = timestamps[i];
+            previousDelta = delta;
+
+            long bits = Double.doubleToRawLongBits(values[i]);
+            long xor = bits ^ previousBits;
+            previousBits = bits;
+            if (xor == 0) {
+                out.writeBit(false);
+                continue;
+            }
+            out.writeBit(true);
+            int leading = Math.min(Long.numberOfLeadingZeros(xor), 31);
+            int trailing = Long.numberOfTrailingZeros(xor);
+            if (previousLeading >= 0 && leading >= previousLeading && trailing >= previousTrailing) {
+                // I bit significativi stanno nel blocco del valore precedente
+                out.writeBit(false);
+                out.writeBits(xor >>> previousTrailing, 64 - previousLeading - previousTrailing);
+            } else {
+                int significant = 64 - leading - trailing;
+                out.writeBit(true);
+                out.writeBits(leading, 5);
+                // 64 bit significativi non stanno in 6 bit: si scrive 0
+                out.writeBits(significant == 64 ? 0 : significant, 6);
+                out.writeBits(xor >>> trailing, significant);
+                previousLeading = leading;
+                previousTrailing = trailing;
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static void writeDeltaOfDelta(BitWriter out, long dod) {
+        if (dod == 0) {
+            out.writeBit(false);
+        } else if (dod >= -64 && dod <= 63) {
+            out.writeBits(0b10, 2);
+            out.writeBits(dod, 7);
+        } else if (dod >= -256 && dod <= 255) {
+            out.writeBits(0b110, 3);
+            out.writeBits(dod, 9);
+        } else if (dod >= -2048 && dod <= 2047) {
+            out.writeBits(0b1110, 4);
+            out.writeBits(dod, 12);
+        } else {
+            out.writeBits(0b1111, 4);
+            out.writeBits(dod, 64);
+        }
+    }
+
+    /**
+     * @throws IllegalArgumentException se i dati sono troncati o il numero di campioni
+     *         dichiarato non può stare nei bit ricevuti
+     */
+    public static Series decode(byte[] data) {
+        BitReader in = new BitReader(data);
+        long count = in.readBits(32);
+        // Il primo campione occupa 128 bit, ogni successivo almeno 2: il conteggio arriva
+        // dalla rete e va limitato prima di allocare
+        if (count > 0 && (in.remainingBits() < 128 || count - 1 > (in.remainingBits() - 128) / 2)) {
+            throw new IllegalArgumentException("Invalid sample count " + count + " for "
+                    + in.remainingBits() + " bits");
+        }
+        return decode(in, (int) count);
+    }
+
+    private static Series decode(BitReader in, int count) {
+        long[] timestamps = new long[count];
+        double[] values = new double[count];
+        if (count == 0) {
+            return new Series(timestamps, values, 0);
+        }
+        timestamps[0] = in.readBits(64);
+        long previousBits = in.readBits(64);
+        values[0] = Double.longBitsToDouble(previousBits);
+
+        long previousDelta = 0;
+        int previousLeading = 0;
+        int previousTrailing = 0;
+        for (int i = 1; i < count; i++) {
+            long delta = previousDelta + readDeltaOfDelta(in);
+            timestamps[i] = timestamps[i - 1] + delta;
+            previousDelta = delta;
+
+            if (in.readBit()) {
+                long xor;
+                if (in.readBit()) {
+                    previousLeading = (int) in.readBits(5);
+                    int significant = (int) in.readBits(6);
+                    if (significant == 0) {
+                        significant = 64;
+                    }
+                    previousTrailing = 64 - previousLeading - significant;
+                    xor = in.readBits(significant) << previousTrailing;
+                } else {
+                    xor = in.readBits(64 - previousLeading - previousTrailing) << previousTrailing;
+                }
+                previousBits ^= xor;
+            }
+            values[i] = Double.longBitsToDouble(previousBits);
+        }
+        return new Series(timestamps, values, count);
+    }
+
+    private static long readDeltaOfDelta(BitReader in) {
+        if (!in.readBit()) {
+            return 0;
+        }
+        if (!in.readBit()) {
+            return signExtend(in.readBits(7), 7);
+        }
+        if (!in.readBit()) {
+            return signExtend(in.readBits(9), 9);
+        }
+        if (!in.readBit()) {
+            return signExtend(in.readBits(12), 12);
+        }
+        return in.readBits(64);
+    }
+
+    private static long signExtend(long value, int bits) {
+        return (value << (64 - bits)) >> (64 - bits);
+    }
+}
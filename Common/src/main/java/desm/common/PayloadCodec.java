@@ -0,0 +1,219 @@
+package desm.common;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.MessageLite;
+import desm.proto.common.Payloads.EnergyRequestBatchMessage;
+import desm.proto.common.Payloads.EnergyRequestMessage;
+import desm.proto.common.Payloads.PollutionDataMessage;
+import desm.proto.common.Payloads.SensorSeriesMessage;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Codifica binaria (protobuf) dei payload MQTT.
+ * Il formato è negoziato tramite il primo byte del payload: i messaggi binari iniziano
+ * con BINARY_MAGIC, che non può essere il primo byte di un testo JSON, quindi chi riceve
+ * può accettare entrambi i formati e i vecchi client JSON continuano a funzionare.
+ */
+public class PayloadCodec {
+
+    public static final byte BINARY_MAGIC = (byte) 0xB1;
+
+    private PayloadCodec() {
+    }
+
+    /**
+     * @return true se il payload è in formato binario protobuf
+     */
+    public static boolean isBinary(byte[] payload) {
+        return payload != null && payload.length > 0 && payload[0] == BINARY_MAGIC;
+    }
+
+    public static byte[] encodeEnergyRequest(EnergyRequest request) {
+        return frame(toMessage(request));
+    }
+
+    public static EnergyRequest decodeEnergyRequest(byte[] payload) throws InvalidProtocolBufferException {
+        return fromMessage(EnergyRequestMessage.parser().parseFrom(payload, 1, payload.length - 1));
+    }
+
+    public static byte[] encodeEnergyRequestBatch(EnergyRequestBatch batch) {
+        EnergyRequestBatchMessage.Builder builder = EnergyRequestBatchMessage.newBuilder()
+                .setBatchId(batch.getBatchId());
+        for (EnergyRequest request : batch.getRequests()) {
+            builder.addRequests(toMessage(request));
+        }
+        return frame(builder.build());
+    }
+
+    public static EnergyRequestBatch decodeEnergyRequestBatch(byte[] payload) throws InvalidProtocolBufferException {
+        EnergyRequestBatchMessage message = EnergyRequestBatchMessage.parser()
+                .parseFrom(payload, 1, payload.length - 1);
+        List<EnergyRequest> requests = new ArrayList<>(message.getRequestsCount());
+        for (EnergyRequestMessage request : message.getRequestsList()) {
+            requests.add(fromMessage(request));
+        }
+        return new EnergyRequestBatch(message.getBatchId(), requests);
+    }
+
+    private static EnergyRequestMessage toMessage(EnergyRequest request) {
+        return EnergyRequestMessage.newBuilder()
+                .setRequestId(request.getRequestId())
+                .setTimestamp(request.getTimestamp())
+                .setEnergyAmount(request.getEnergyAmount())
+                .setDeadline(request.getDeadline())
+                .setAttempt(request.getAttempt())
+                .build();
+    }
+
+    private static EnergyRequest fromMessage(EnergyRequestMessage message) {
+        return new EnergyRequest(
+                message.getRequestId(),
+                message.getTimestamp(),
+                message.getEnergyAmount(),
+                message.getDeadline(),
+                message.getAttempt());
+    }
+
+    public static byte[] encodePollutionData(PollutionData data) {
+        PollutionDataMessage.Builder builder = PollutionDataMessage.newBuilder()
+                .setPlantId(data.getPlantId())
+                .addAllAverages(data.getAverages())
+                .setTimestamp(data.getTimestamp());
+        for (SensorSeries series : data.getSeries()) {
+            List<Double> averages = series.getAverages();
+            List<Long> timestamps = series.getTimestamps();
+            if (timestamps.size() == averages.size() && !timestamps.isEmpty()) {
+                long[] ts = new long[averages.size()];
+                double[] values = new double[averages.size()];
+                for (int i = 0; i < values.length; i++) {
+                    ts[i] = timestamps.get(i);
+                    values[i] = averages.get(i);
+                }
+                builder.addSeries(encodeSeries(series.getType(), ts, values, values.length, series.getSketch()));
+            } else {
+                SensorSeriesMessage.Builder item = SensorSeriesMessage.newBuilder()
+                        .setType(series.getType())
+                        .addAllAverages(averages);
+                if (series.getSketch() != null) {
+                    item.setSketch(ByteString.copyFrom(series.getSketch()));
+                }
+                builder.addSeries(item.build());
+            }
+        }
+        return frame(builder.build());
+    }
+
+    /**
+     * Variante colonnare: chi produce le medie in array di primitive costruisce
+     * direttamente il messaggio (con encodeSeries per le serie compresse)
+     * e lo fa solo incorniciare, senza passare per List&lt;Double&gt;.
+     */
+    public static byte[] encodePollutionData(PollutionDataMessage message) {
+        return frame(message);
+    }
+
+    /**
+     * Serie di un sensore con timestamp di fine finestra e medie compressi con GorillaCodec.
+     * Con pochi campioni l'intestazione di GorillaCodec pesa più di quanto fa risparmiare:
+     * se più corte, medie e timestamp vanno in averages e timestamp_deltas non compressi.
+     * @param sketch TDigest serializzato dell'intervallo, null se assente
+     */
+    public static SensorSeriesMessage encodeSeries(String type, long[] timestamps, double[] averages, int count,
+                                                   byte[] sketch) {
+        SensorSeriesMessage.Builder item = SensorSeriesMessage.newBuilder().setType(type);
+        byte[] gorilla = GorillaCodec.encode(timestamps, averages, count);
+        if (rawSeriesSize(timestamps, count) < gorilla.length) {
+            long previous = 0;
+            for (int i = 0; i < count; i++) {
+                item.addAverages(averages[i]);
+                item.addTimestampDeltas(timestamps[i] - previous);
+                previous = timestamps[i];
+            }
+        } else {
+            item.setGorilla(ByteString.copyFrom(gorilla));
+        }
+        if (sketch != null) {
+            item.setSketch(ByteString.copyFrom(sketch));
+        }
+        return item.build();
+    }
+
+    /**
+     * Decodifica un PollutionData binario. Le serie compresse vengono espanse con i
+     * timestamp di ogni finestra; se il campo averages è vuoto viene ricostruito dalla
+     * serie di Config.POLLUTION_PRIMARY_TYPE.
+     */
+    public static PollutionData decodePollutionData(byte[] payload) throws InvalidProtocolBufferException {
+        PollutionDataMessage message = PollutionDataMessage.parser()
+                .parseFrom(payload, 1, payload.length - 1);
+        List<SensorSeries> series = new ArrayList<>(message.getSeriesCount());
+        List<Double> primaryAverages = message.getAveragesList();
+        for (SensorSeriesMessage item : message.getSeriesList()) {
+            SensorSeries decoded = decodeSeries(item);
+            series.add(decoded);
+            if (message.getAveragesCount() == 0 && Config.POLLUTION_PRIMARY_TYPE.equals(decoded.getType())) {
+                primaryAverages = decoded.getAverages();
+            }
+        }
+        return new PollutionData(message.getPlantId(), primaryAverages, message.getTimestamp(), series);
+    }
+
+    /**
+     * @return byte di averages e timestamp_deltas non compressi, confrontabili con la
+     *         lunghezza di GorillaCodec (i 2 byte in più sono l'intestazione del secondo campo)
+     */
+    private static int rawSeriesSize(long[] timestamps, int count) {
+        int size = 2 + 8 * count;
+        long previous = 0;
+        for (int i = 0; i < count; i++) {
+            size += CodedOutputStream.computeSInt64SizeNoTag(timestamps[i] - previous);
+            previous = timestamps[i];
+        }
+        return size;
+    }
+
+    private static SensorSeries decodeSeries(SensorSeriesMessage item) {
+        byte[] sketch = item.getSketch().isEmpty() ? null : item.getSketch().toByteArray();
+        if (item.getGorilla().isEmpty()) {
+            // Senza timestamp_deltas (vecchio formato) vale il timestamp del messaggio
+            List<Long> timestamps = new ArrayList<>(item.getTimestampDeltasCount());
+            long timestamp = 0;
+            for (long delta : item.getTimestampDeltasList()) {
+                timestamp += delta;
+                timestamps.add(timestamp);
+            }
+            return new SensorSeries(item.getType(), item.getAveragesList(), timestamps, sketch);
+        }
+        GorillaCodec.Series decoded = GorillaCodec.decode(item.getGorilla().toByteArray());
+        List<Double> averages = new ArrayList<>(decoded.count);
+        List<Long> timestamps = new ArrayList<>(decoded.count);
+        for (int i = 0; i < decoded.count; i++) {
+            averages.add(decoded.values[i]);
+            timestamps.add(decoded.timestamps[i]);
+        }
+        return new SensorSeries(item.getType(), averages, timestamps, sketch);
+    }
+
+    /**
+     * Serializza il messaggio in un unico array preceduto dal byte di intestazione,
+     * senza copie intermedie.
+     */
+    private static byte[] frame(MessageLite message) {
+        int size = message.getSerializedSize();
+        byte[] out = new byte[size + 1];
+        out[0] = BINARY_MAGIC;
+        try {
+            CodedOutputStream output = CodedOutputStream.newInstance(out, 1, size);
+            message.writeTo(output);
+            output.checkNoSpaceLeft();
+        } catch (IOException e) {
+            throw new IllegalStateException("Serializzazione protobuf fallita", e);
+        }
+        return out;
+    }
+}
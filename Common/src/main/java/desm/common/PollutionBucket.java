@@ -0,0 +1,31 @@
+package desm.common;
+
+/**
+ * Un punto di una serie temporale a bucket: statistiche delle medie con timestamp
+ * in [start, start + width).
+ */
+public class PollutionBucket {
+    private long start;
+    private long count;
+    private double average;
+    private double min;
+    private double max;
+
+    public PollutionBucket(long start, long count, double average, double min, double max) {
+        this.start = start;
+        this.count = count;
+        this.average = average;
+        this.min = min;
+        this.max = max;
+    }
+
+    public PollutionBucket(){
+
+    }
+
+    public long getStart() { return start; }
+    public long getCount() { return count; }
+    public double getAverage() { return average; }
+    public double getMin() { return min; }
+    public double getMax() { return max; }
+}
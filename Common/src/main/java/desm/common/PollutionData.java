@@ -1,20 +1,30 @@
 package desm.common;
 
+import java.util.ArrayList;
 import java.util.List;
 
 public class PollutionData {
     private String plantId;
+    // Medie del sensore principale (CO2), mantenute per i client che non leggono series
     private List<Double> averages;
     private long timestamp;
+    // Medie di tutti i sensori della centrale, una serie per tipo di inquinante
+    private List<SensorSeries> series;
 
     public PollutionData(String plantId, List<Double> averages, long timestamp) {
+        this(plantId, averages, timestamp, new ArrayList<>());
+    }
+
+    public PollutionData(String plantId, List<Double> averages, long timestamp, List<SensorSeries> series) {
         this.plantId = plantId;
         this.averages = averages;
         this.timestamp = timestamp;
+        this.series = series;
     }
 
 
     public String getPlantId() { return plantId; }
     public List<Double> getAverages() { return averages; }
     public long getTimestamp() { return timestamp; }
+    public List<SensorSeries> getSeries() { return series == null ? new ArrayList<>() : series; }
 }
@@ -0,0 +1,39 @@
+package desm.common;
+
+/**
+ * Statistiche (numero, media, minimo e massimo) delle medie di un tipo di inquinante
+ * in un intervallo di tempo, calcolate dal server a partire dai rollup.
+ * plantId è null per le statistiche di tutte le centrali.
+ */
+public class PollutionStats {
+    private String type;
+    private String plantId;
+    private long count;
+    private double average;
+    private double min;
+    private double max;
+
+    public PollutionStats(String type, long count, double average, double min, double max) {
+        this(type, null, count, average, min, max);
+    }
+
+    public PollutionStats(String type, String plantId, long count, double average, double min, double max) {
+        this.type = type;
+        this.plantId = plantId;
+        this.count = count;
+        this.average = average;
+        this.min = min;
+        this.max = max;
+    }
+
+    public PollutionStats(){
+
+    }
+
+    public String getType() { return type; }
+    public String getPlantId() { return plantId; }
+    public long getCount() { return count; }
+    public double getAverage() { return average; }
+    public double getMin() { return min; }
+    public double getMax() { return max; }
+}
@@ -0,0 +1,71 @@
+package desm.common;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Modalità con cui i dati di inquinamento vengono distribuiti fra le connessioni MQTT
+ * del server (Config.POLLUTION_SUBSCRIPTION_MODE), con i topic usati da centrali e server.
+ */
+public enum PollutionSubscriptionMode {
+    /** Una sola connessione sul topic PLANT_POLLUTION_TOPIC. */
+    SINGLE,
+    /** Più connessioni sulla stessa shared subscription: il broker distribuisce i messaggi. */
+    SHARED,
+    /** Le centrali pubblicano su una partizione del topic, ogni connessione ne ascolta una parte. */
+    PARTITIONED;
+
+    public static PollutionSubscriptionMode fromConfig() {
+        return valueOf(Config.POLLUTION_SUBSCRIPTION_MODE);
+    }
+
+    /**
+     * @return partizione della centrale, stabile fra riavvii (String.hashCode è specificato)
+     */
+    public static int shardOf(String plantId) {
+        return Math.floorMod(plantId.hashCode(), Config.POLLUTION_TOPIC_SHARDS);
+    }
+
+    /**
+     * @return topic su cui la centrale pubblica i dati di inquinamento
+     */
+    public String publishTopic(String plantId) {
+        if (this == PARTITIONED) {
+            return Config.PLANT_POLLUTION_TOPIC + "/" + shardOf(plantId);
+        }
+        return Config.PLANT_POLLUTION_TOPIC;
+    }
+
+    /**
+     * @return numero di connessioni del server
+     */
+    public int connections() {
+        return this == SINGLE ? 1 : Math.max(1, Config.POLLUTION_SUBSCRIBER_CONNECTIONS);
+    }
+
+    /**
+     * @param connection indice della connessione, da 0 a connections() - 1
+     * @return topic filter sottoscritti dalla connessione
+     */
+    public List<String> subscriptionTopics(int connection) {
+        List<String> topics = new ArrayList<>();
+        switch (this) {
+            case SHARED:
+                topics.add("$share/" + Config.POLLUTION_SHARE_GROUP + "/" + Config.PLANT_POLLUTION_TOPIC);
+                break;
+            case PARTITIONED:
+                for (int shard = connection; shard < Config.POLLUTION_TOPIC_SHARDS; shard += connections()) {
+                    topics.add(Config.PLANT_POLLUTION_TOPIC + "/" + shard);
+                }
+                // Centrali non ancora aggiornate che pubblicano sul topic non partizionato
+                if (connection == 0) {
+                    topics.add(Config.PLANT_POLLUTION_TOPIC);
+                }
+                break;
+            case SINGLE:
+            default:
+                topics.add(Config.PLANT_POLLUTION_TOPIC);
+        }
+        return topics;
+    }
+}
@@ -0,0 +1,34 @@
+package desm.common;
+
+import java.util.List;
+
+/**
+ * Evento dello streaming live del server: statistiche, di tutte le centrali e per
+ * centrale, delle medie di un tipo di inquinante con timestamp in [start, start + window)
+ * ricevute finora. Un evento successivo con lo stesso start sostituisce il precedente.
+ */
+public class PollutionWindow {
+    private String type;
+    private long start;
+    private long window;
+    private PollutionStats fleet;
+    private List<PollutionStats> plants;
+
+    public PollutionWindow(String type, long start, long window, PollutionStats fleet, List<PollutionStats> plants) {
+        this.type = type;
+        this.start = start;
+        this.window = window;
+        this.fleet = fleet;
+        this.plants = plants;
+    }
+
+    public PollutionWindow(){
+
+    }
+
+    public String getType() { return type; }
+    public long getStart() { return start; }
+    public long getWindow() { return window; }
+    public PollutionStats getFleet() { return fleet; }
+    public List<PollutionStats> getPlants() { return plants; }
+}
@@ -0,0 +1,37 @@
+package desm.common;
+
+/**
+ * Quantili delle misurazioni di un tipo di inquinante in un intervallo di tempo,
+ * calcolati dal server fondendo gli sketch inviati dalle centrali.
+ */
+public class QuantileSummary {
+    private String type;
+    private long count;
+    private double min;
+    private double max;
+    private double p50;
+    private double p95;
+    private double p99;
+
+    public QuantileSummary(String type, long count, double min, double max, double p50, double p95, double p99) {
+        this.type = type;
+        this.count = count;
+        this.min = min;
+        this.max = max;
+        this.p50 = p50;
+        this.p95 = p95;
+        this.p99 = p99;
+    }
+
+    public QuantileSummary(){
+
+    }
+
+    public String getType() { return type; }
+    public long getCount() { return count; }
+    public double getMin() { return min; }
+    public double getMax() { return max; }
+    public double getP50() { return p50; }
+    public double getP95() { return p95; }
+    public double getP99() { return p99; }
+}
@@ -0,0 +1,37 @@
+package desm.common;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Medie di un singolo tipo di inquinante (CO2, NOx, SO2, PM2.5...) all'interno
+ * di un PollutionData multiplexato.
+ */
+public class SensorSeries {
+    private String type;
+    private List<Double> averages;
+    // Timestamp di fine finestra di ogni media, vuoto se il mittente non li invia
+    private List<Long> timestamps;
+    // TDigest serializzato delle misurazioni grezze dell'intervallo, null se assente
+    private byte[] sketch;
+
+    public SensorSeries(String type, List<Double> averages) {
+        this(type, averages, new ArrayList<>());
+    }
+
+    public SensorSeries(String type, List<Double> averages, List<Long> timestamps) {
+        this(type, averages, timestamps, null);
+    }
+
+    public SensorSeries(String type, List<Double> averages, List<Long> timestamps, byte[] sketch) {
+        this.type = type;
+        this.averages = averages;
+        this.timestamps = timestamps;
+        this.sketch = sketch;
+    }
+
+    public String getType() { return type; }
+    public List<Double> getAverages() { return averages; }
+    public List<Long> getTimestamps() { return timestamps == null ? new ArrayList<>() : timestamps; }
+    public byte[] getSketch() { return sketch; }
+}
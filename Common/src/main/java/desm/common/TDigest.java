@@ -0,0 +1,250 @@
+package desm.common;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Sketch dei quantili (t-digest "merging", Dunning & Ertl) con memoria limitata:
+ * al più circa 2 * compression centroidi, indipendentemente dal numero di valori.
+ * I centroidi vicini alle code restano piccoli, quindi p95/p99 sono più precisi
+ * della mediana. Due digest si possono fondere (merge), il che permette di
+ * aggregare sketch di centrali e intervalli diversi.
+ *
+ * Non è thread-safe.
+ */
+public class TDigest {
+
+    /**
+     * Limiti accettati per la compression di uno sketch ricevuto: fissa la dimensione degli
+     * array allocati, quindi non ci si può fidare del valore arrivato dalla rete.
+     */
+    public static final double MIN_COMPRESSION = 10;
+    public static final double MAX_COMPRESSION = 1000;
+
+    private final double compression;
+    private double[] means;
+    private double[] weights;
+    private int centroids;
+    private final double[] bufferValues;
+    private final double[] bufferWeights;
+    private int buffered;
+    private double totalWeight;
+    private double min = Double.POSITIVE_INFINITY;
+    private double max = Double.NEGATIVE_INFINITY;
+
+    public TDigest(double compression) {
+        this.compression = compression;
+        int capacity = (int) Math.ceil(2 * compression) + 10;
+        this.means = new double[capacity];
+        this.weights = new double[capacity];
+        this.bufferValues = new double[(int) Math.ceil(5 * compression)];
+        this.bufferWeights = new double[bufferValues.length];
+    }
+
+    public void add(double value) {
+        add(value, 1);
+    }
+
+    public void add(double value, double weight) {
+        if (Double.isNaN(value)) {
+            return;
+        }
+        if (buffered == bufferValues.length) {
+            compress();
+        }
+        bufferValues[buffered] = value;
+        bufferWeights[buffered] = weight;
+        buffered++;
+        totalWeight += weight;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+    }
+
+    /**
+     * Aggiunge a questo digest tutti i valori rappresentati da other.
+     */
+    public void merge(TDigest other) {
+        other.compress();
+        for (int i = 0; i < other.centroids; i++) {
+            add(other.means[i], other.weights[i]);
+        }
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+    }
+
+    /**
+     * Fonde i valori in attesa con i centroidi esistenti. Un centroide può crescere finché
+     * copre al più un'unità della scala k(q) = compression / (2 pi) * asin(2q - 1), che è
+     * ripida alle code: i centroidi restano piccoli vicino a 0 e 1 e il loro numero è
+     * limitato da compression.
+     */
+    private void compress() {
+        if (buffered == 0) {
+            return;
+        }
+        int n = centroids + buffered;
+        double[] allMeans = new double[n];
+        double[] allWeights = new double[n];
+        System.arraycopy(means, 0, allMeans, 0, centroids);
+        System.arraycopy(weights, 0, allWeights, 0, centroids);
+        System.arraycopy(bufferValues, 0, allMeans, centroids, buffered);
+        System.arraycopy(bufferWeights, 0, allWeights, centroids, buffered);
+        buffered = 0;
+
+        Integer[] order = new Integer[n];
+        for (int i = 0; i < n; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, Comparator.comparingDouble(i -> allMeans[i]));
+
+        double total = 0;
+        for (int i = 0; i < n; i++) {
+            total += allWeights[i];
+        }
+        centroids = 0;
+        double currentMean = allMeans[order[0]];
+        double currentWeight = allWeights[order[0]];
+        double weightSoFar = 0;
+        double kStart = scale(0);
+        for (int k = 1; k < n; k++) {
+            int i = order[k];
+            double proposed = currentWeight + allWeights[i];
+            if (scale((weightSoFar + proposed) / total) - kStart <= 1) {
+                currentMean += (allMeans[i] - currentMean) * allWeights[i] / proposed;
+                currentWeight = proposed;
+            } else {
+                emit(currentMean, currentWeight);
+                weightSoFar += currentWeight;
+                kStart = scale(weightSoFar / total);
+                currentMean = allMeans[i];
+                currentWeight = allWeights[i];
+            }
+        }
+        emit(currentMean, currentWeight);
+    }
+
+    private double scale(double q) {
+        return compression / (2 * Math.PI) * Math.asin(2 * Math.min(1.0, q) - 1);
+    }
+
+    private void emit(double mean, double weight) {
+        if (centroids == means.length) {
+            means = Arrays.copyOf(means, centroids * 2);
+            weights = Arrays.copyOf(weights, centroids * 2);
+        }
+        means[centroids] = mean;
+        weights[centroids] = weight;
+        centroids++;
+    }
+
+    /**
+     * @param q quantile in [0, 1]
+     * @return stima del quantile, NaN se il digest è vuoto
+     */
+    public double quantile(double q) {
+        compress();
+        if (centroids == 0) {
+            return Double.NaN;
+        }
+        if (centroids == 1 || q <= 0) {
+            return q <= 0 ? min : means[0];
+        }
+        if (q >= 1) {
+            return max;
+        }
+        double index = q * totalWeight;
+        // Prima del centro del primo centroide si interpola dal minimo
+        if (index < weights[0] / 2) {
+            return min + (means[0] - min) * index / (weights[0] / 2);
+        }
+        double cumulative = weights[0] / 2;
+        for (int i = 0; i < centroids - 1; i++) {
+            double step = (weights[i] + weights[i + 1]) / 2;
+            if (cumulative + step > index) {
+                double fraction = (index - cumulative) / step;
+                return means[i] + (means[i + 1] - means[i]) * fraction;
+            }
+            cumulative += step;
+        }
+        // Dopo il centro dell'ultimo centroide si interpola verso il massimo
+        double last = weights[centroids - 1] / 2;
+        double fraction = Math.min(1.0, (index - cumulative) / last);
+        return means[centroids - 1] + (max - means[centroids - 1]) * fraction;
+    }
+
+    public double getMin() {
+        return min;
+    }
+
+    public double getMax() {
+        return max;
+    }
+
+    /**
+     * @return numero di valori rappresentati
+     */
+    public long size() {
+        return (long) totalWeight;
+    }
+
+    /**
+     * @return stima dei byte occupati in memoria (array dei centroidi e del buffer)
+     */
+    public long memoryBytes() {
+        return 64L + 8L * (means.length + weights.length + bufferValues.length + bufferWeights.length);
+    }
+
+    /**
+     * Formato: compression, min, max, numero di centroidi, poi coppie (media, peso).
+     */
+    public byte[] toBytes() {
+        compress();
+        ByteBuffer out = ByteBuffer.allocate(8 * 3 + 4 + centroids * 16);
+        out.putDouble(compression);
+        out.putDouble(min);
+        out.putDouble(max);
+        out.putInt(centroids);
+        for (int i = 0; i < centroids; i++) {
+            out.putDouble(means[i]);
+            out.putDouble(weights[i]);
+        }
+        return out.array();
+    }
+
+    /**
+     * Ricostruisce uno sketch serializzato con toBytes, validando i campi prima di allocare.
+     * @throws IllegalArgumentException se compression è fuori da [MIN_COMPRESSION,
+     *         MAX_COMPRESSION], i centroidi dichiarati non stanno nei byte ricevuti o un
+     *         peso non è un numero positivo
+     */
+    public static TDigest fromBytes(byte[] bytes) {
+        ByteBuffer in = ByteBuffer.wrap(bytes);
+        double compression = in.getDouble();
+        // Scritto così anche NaN viene rifiutato
+        if (!(compression >= MIN_COMPRESSION && compression <= MAX_COMPRESSION)) {
+            throw new IllegalArgumentException("Invalid t-digest compression: " + compression);
+        }
+        double min = in.getDouble();
+        double max = in.getDouble();
+        int n = in.getInt();
+        if (n < 0 || n > in.remaining() / 16) {
+            throw new IllegalArgumentException("Invalid t-digest centroid count: " + n
+                    + " with " + in.remaining() + " bytes left");
+        }
+        TDigest digest = new TDigest(compression);
+        for (int i = 0; i < n; i++) {
+            double mean = in.getDouble();
+            double weight = in.getDouble();
+            if (!(weight > 0) || Double.isInfinite(weight)) {
+                throw new IllegalArgumentException("Invalid t-digest centroid weight: " + weight);
+            }
+            digest.add(mean, weight);
+        }
+        if (n > 0) {
+            digest.min = min;
+            digest.max = max;
+        }
+        return digest;
+    }
+}
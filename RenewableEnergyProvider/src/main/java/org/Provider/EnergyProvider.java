@@ -1,9 +1,15 @@
 package org.Provider;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.time.Instant;
 import java.util.*;
 import java.util.logging.Logger;
 import desm.common.Config;
 import desm.common.EnergyRequest;
+import desm.common.EnergyRequestBatch;
+import desm.common.PayloadCodec;
 import org.eclipse.paho.client.mqttv3.*;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
@@ -27,12 +33,21 @@ public class EnergyProvider implements MqttCallback {
 
     // Gson instance for JSON serialization/deserialization
     private final Gson gson = new GsonBuilder()
-            .setPrettyPrinting()
             .create();
 
     private Map<String, EnergyRequest> pendingRequests = new HashMap<>();
     private Object pendingLock = new Object();
 
+    private final FulfilmentTracker fulfilmentTracker = new FulfilmentTracker();
+
+    // Modalità batch: batch di appartenenza di ogni richiesta e richieste ancora aperte per batch,
+    // protetti da pendingLock. Il retained del batch viene cancellato quando non restano
+    // richieste aperte e ripubblicato con le sole aperte solo dal controllo SLA.
+    private final String batchTopic = Config.ENERGY_REQUEST_BATCH_TOPIC;
+    private final Map<String, String> batchByRequest = new HashMap<>();
+    private final Map<String, Map<String, EnergyRequest>> openRequestsByBatch = new HashMap<>();
+    private RequestBatcher requestBatcher;
+
     public EnergyProvider(){
         try {
             client = new MqttClient(broker, clientId);
@@ -59,6 +74,13 @@ public class EnergyProvider implements MqttCallback {
             System.out.println(clientId + " Energy provider Connected and subscribed to responses");
             // Pulisce tutto quello che trova
             clearAllRetainedRequests();
+            startMetricsReporter();
+            startSlaMonitor();
+            if (Config.REQUEST_BATCHING) {
+                requestBatcher = new RequestBatcher(this::publishBatch,
+                        Config.REQUEST_BATCH_WINDOW_MS, Config.REQUEST_BATCH_MAX_SIZE);
+                requestBatcher.start();
+            }
 
 
             Thread.sleep(5000);
@@ -96,7 +118,7 @@ public class EnergyProvider implements MqttCallback {
         long timestamp = Instant.now().toEpochMilli();
         String requestId = UUID.randomUUID().toString();
 
-        return new EnergyRequest(requestId, timestamp, energyAmount);
+        return new EnergyRequest(requestId, timestamp, energyAmount, timestamp + Config.REQUEST_SLA_MS, 0);
     }
 
     /**
@@ -106,24 +128,225 @@ public class EnergyProvider implements MqttCallback {
      */
     private void publishEnergyRequest(EnergyRequest request) throws MqttException {
         String requestId = request.getRequestId();
-        // Use Gson to serialize the EnergyRequest
-        String messageJson = gson.toJson(request);
-        String specificTopic = topic + "/" + requestId;
-
         LOGGER.info("\033[96m=== PUBLISHING REQUEST ===\033[0m");
-        LOGGER.info("\033[96mMessage JSON: " + messageJson+"\033[0m");
         LOGGER.info("\033[95mPending request:" + pendingRequests.size()+ "\033[0m");
-        MqttMessage mqttMessage = new MqttMessage(messageJson.getBytes());
-        mqttMessage.setQos(qos);
-        mqttMessage.setRetained(true);
 
         synchronized (pendingLock) {
             pendingRequests.put(requestId, request);
         }
+        fulfilmentTracker.onPublished(requestId);
+
+        if (requestBatcher != null) {
+            requestBatcher.add(request);
+        } else {
+            sendEnergyRequest(request);
+        }
+    }
+
+    /**
+     * Pubblica un batch di richieste come unico messaggio retained su energy/batches/{batchId}.
+     * Le richieste già evase o scadute nel frattempo vengono escluse.
+     */
+    private void publishBatch(EnergyRequestBatch batch) throws MqttException {
+        synchronized (pendingLock) {
+            Map<String, EnergyRequest> open = new LinkedHashMap<>();
+            for (EnergyRequest request : batch.getRequests()) {
+                // Versione corrente: il controllo SLA può averla già ripubblicata
+                EnergyRequest current = pendingRequests.get(request.getRequestId());
+                if (current != null) {
+                    open.put(current.getRequestId(), current);
+                    batchByRequest.put(current.getRequestId(), batch.getBatchId());
+                }
+            }
+            if (open.isEmpty()) {
+                return;
+            }
+            openRequestsByBatch.put(batch.getBatchId(), open);
+            sendBatch(batch.getBatchId(), open.values());
+        }
+    }
+
+    /**
+     * Pubblica come retained su energy/batches/{batchId} le richieste indicate, sostituendo
+     * il messaggio precedente del batch. Deve essere chiamato tenendo pendingLock, così una
+     * ripubblicazione non può sovrascrivere quella successiva a una chiusura.
+     */
+    private void sendBatch(String batchId, Collection<EnergyRequest> requests) throws MqttException {
+        EnergyRequestBatch toSend = new EnergyRequestBatch(batchId, new ArrayList<>(requests));
+        byte[] payload = Config.BINARY_PAYLOADS
+                ? PayloadCodec.encodeEnergyRequestBatch(toSend)
+                : gson.toJson(toSend).getBytes(StandardCharsets.UTF_8);
+
+        LOGGER.info("\033[96m=== PUBLISHING BATCH " + batchId + " (" + requests.size()
+                + " requests, " + payload.length + " bytes) ===\033[0m");
+        MqttMessage mqttMessage = new MqttMessage(payload);
+        mqttMessage.setQos(qos);
+        mqttMessage.setRetained(true);
+        client.publish(batchTopic + "/" + batchId, mqttMessage);
+    }
+
+    /**
+     * Segna come chiusa una richiesta appartenente a un batch; quando non ne restano aperte
+     * cancella il messaggio retained del batch. Il batch non viene ripubblicato a ogni
+     * chiusura: tutte le centrali riceverebbero di nuovo le richieste ancora aperte (N^2
+     * messaggi per un batch di N). Le centrali rimuovono la richiesta chiusa tramite il
+     * messaggio vuoto su energy/requests/{id} e ignorano le ricezioni ripetute di richieste
+     * già viste (NewElectionQueue).
+     * Deve essere chiamato tenendo pendingLock.
+     */
+    private void releaseFromBatch(String requestId) throws MqttException {
+        String batchId = batchByRequest.remove(requestId);
+        if (batchId == null) {
+            return;
+        }
+        Map<String, EnergyRequest> open = openRequestsByBatch.get(batchId);
+        open.remove(requestId);
+        if (!open.isEmpty()) {
+            return;
+        }
+        openRequestsByBatch.remove(batchId);
+        MqttMessage clearMessage = new MqttMessage(new byte[0]);
+        clearMessage.setRetained(true);
+        clearMessage.setQos(qos);
+        client.publish(batchTopic + "/" + batchId, clearMessage);
+    }
+
+    /**
+     * Serializza la richiesta (protobuf o JSON in base a Config.BINARY_PAYLOADS)
+     * e la pubblica come retained su energy/requests/{id}.
+     * Una ripubblicazione sostituisce il messaggio retained precedente.
+     */
+    private void sendEnergyRequest(EnergyRequest request) throws MqttException {
+        String specificTopic = topic + "/" + request.getRequestId();
+
+        LOGGER.info("\033[96mRequest " + request.getRequestId() + ": " + request.getEnergyAmount()
+                + " kWh, deadline " + request.getDeadline() + "\033[0m");
+        MqttMessage mqttMessage = new MqttMessage(encodeRequest(request));
+        mqttMessage.setQos(qos);
+        mqttMessage.setRetained(true);
 
         client.publish(specificTopic, mqttMessage);
     }
 
+    private byte[] encodeRequest(EnergyRequest request) {
+        if (Config.BINARY_PAYLOADS) {
+            return PayloadCodec.encodeEnergyRequest(request);
+        }
+        // Use Gson to serialize the EnergyRequest
+        return gson.toJson(request).getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Avvia un thread daemon che controlla periodicamente le richieste in attesa.
+     * Le richieste che hanno superato la scadenza vengono ripubblicate con una nuova
+     * scadenza; esaurite le ripubblicazioni vengono escalate nei log e rimosse,
+     * cancellando il messaggio retained così che le centrali le tolgano dalle code.
+     */
+    private void startSlaMonitor() {
+        Thread monitor = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(Config.PROVIDER_SLA_CHECK_INTERVAL_MS);
+                    enforceSla(Instant.now().toEpochMilli());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } catch (Exception e) {
+                    LOGGER.severe("Errore nel controllo SLA: " + e.getMessage());
+                }
+            }
+        }, "SlaMonitor");
+        monitor.setDaemon(true);
+        monitor.start();
+    }
+
+    /**
+     * Le ripubblicazioni e le cancellazioni avvengono tenendo pendingLock, come in
+     * messageArrived: una risposta arrivata nel frattempo non può far ripubblicare come
+     * retained una richiesta già evasa. Una richiesta che fa parte di un batch viene
+     * ripubblicata con il suo batch, una sola volta per batch.
+     */
+    private void enforceSla(long now) throws MqttException {
+        synchronized (pendingLock) {
+            List<EnergyRequest> toRepublish = new ArrayList<>();
+            List<EnergyRequest> toExpire = new ArrayList<>();
+            Set<String> batchesToRepublish = new LinkedHashSet<>();
+            for (EnergyRequest request : pendingRequests.values()) {
+                if (!request.isExpired(now)) {
+                    continue;
+                }
+                if (request.getAttempt() < Config.REQUEST_MAX_REPUBLISH) {
+                    toRepublish.add(request.republish(now + Config.REQUEST_SLA_MS));
+                } else {
+                    toExpire.add(request);
+                }
+            }
+
+            for (EnergyRequest request : toRepublish) {
+                pendingRequests.put(request.getRequestId(), request);
+                LOGGER.warning("\033[93m[SLA] Richiesta " + request.getRequestId() + " non evasa, ripubblico (tentativo "
+                        + request.getAttempt() + "/" + Config.REQUEST_MAX_REPUBLISH + ")\033[0m");
+                fulfilmentTracker.onRepublished(request.getRequestId());
+                String batchId = batchByRequest.get(request.getRequestId());
+                if (batchId != null) {
+                    openRequestsByBatch.get(batchId).put(request.getRequestId(), request);
+                    batchesToRepublish.add(batchId);
+                } else {
+                    sendEnergyRequest(request);
+                }
+            }
+            for (EnergyRequest request : toExpire) {
+                pendingRequests.remove(request.getRequestId());
+                LOGGER.severe("\033[91m[SLA] Richiesta " + request.getRequestId() + " scaduta dopo "
+                        + request.getAttempt() + " ripubblicazioni, " + request.getEnergyAmount() + " kWh non forniti\033[0m");
+                fulfilmentTracker.onExpired(request.getRequestId());
+                clearRetainedRequest(request.getRequestId());
+                releaseFromBatch(request.getRequestId());
+            }
+            for (String batchId : batchesToRepublish) {
+                Map<String, EnergyRequest> open = openRequestsByBatch.get(batchId);
+                if (open != null) {
+                    sendBatch(batchId, open.values());
+                }
+            }
+        }
+    }
+
+    private void clearRetainedRequest(String requestId) throws MqttException {
+        MqttMessage clearMessage = new MqttMessage(new byte[0]);
+        clearMessage.setRetained(true);
+        clearMessage.setQos(qos);
+        client.publish(topic + "/" + requestId, clearMessage);
+    }
+
+    /**
+     * Avvia un thread daemon che stampa periodicamente il report sui tempi di evasione
+     * e scrive lo snapshot JSON delle metriche su file.
+     */
+    private void startMetricsReporter() {
+        Thread reporter = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(Config.PROVIDER_REPORT_INTERVAL_MS);
+                    LOGGER.info("\033[93m" + fulfilmentTracker.report() + "\033[0m");
+                    Files.write(Paths.get(Config.PROVIDER_METRICS_FILE),
+                            fulfilmentTracker.toJson().getBytes(StandardCharsets.UTF_8));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } catch (IOException e) {
+                    LOGGER.warning("Impossibile scrivere le metriche: " + e.getMessage());
+                }
+            }
+        }, "FulfilmentReporter");
+        reporter.setDaemon(true);
+        reporter.start();
+    }
+
+    public FulfilmentTracker getFulfilmentTracker() {
+        return fulfilmentTracker;
+    }
+
     @Override
     public void connectionLost(Throwable throwable) {
         System.out.println("Connessione MQTT persa: " + throwable.getMessage());
@@ -146,6 +369,7 @@ public class EnergyProvider implements MqttCallback {
                 String plantId = topicParts[3];
 
                 synchronized (pendingLock) {
+                    fulfilmentTracker.onResponse(requestId, plantId);
                     if (pendingRequests.containsKey(requestId)) {
                         String responseJson = new String(mqttMessage.getPayload());
 
@@ -160,12 +384,10 @@ public class EnergyProvider implements MqttCallback {
 
                         pendingRequests.remove(requestId);
 
-                        // Pulizia messaggio retained sul topic della richiesta
-                        MqttMessage clearMessage = new MqttMessage(new byte[0]);
-                        clearMessage.setRetained(true);
-                        clearMessage.setQos(qos);
-                        String topicToClear = topic + "/" + requestId;
-                        client.publish(topicToClear, clearMessage);
+                        // Pulizia messaggio retained sul topic della richiesta (e del batch, se chiuso).
+                        // In modalità batch il messaggio vuoto segnala comunque alle centrali di rimuoverla.
+                        clearRetainedRequest(requestId);
+                        releaseFromBatch(requestId);
                     }
                 }
             }
@@ -219,6 +441,7 @@ public class EnergyProvider implements MqttCallback {
 
         // Sottoscrizione a tutti i topic energy/requests per trovare messaggi retained
         tempClient.subscribe("energy/requests/+", 0);
+        tempClient.subscribe(batchTopic + "/+", 0);
 
 
         Thread.sleep(2000);
@@ -0,0 +1,185 @@
+package org.Provider;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Misura il tempo di evasione delle richieste energetiche, dalla pubblicazione
+ * alla prima risposta vincente su energy/responses/{req}/{plant}.
+ * Tiene traccia di:
+ * - istogramma delle latenze (p50/p99/p999)
+ * - vittorie per centrale
+ * - età delle richieste ancora in attesa
+ * - risposte duplicate (arrivate dopo che la richiesta era già stata evasa)
+ * - risposte sconosciute (es. retained di un'esecuzione precedente)
+ */
+public class FulfilmentTracker {
+
+    private static final long HIGHEST_TRACKABLE_LATENCY_MS = 60L * 60 * 1000;
+    private static final int RECENTLY_FULFILLED_CAPACITY = 4096;
+
+    private final Object lock = new Object();
+    private final LatencyHistogram latencies = new LatencyHistogram(HIGHEST_TRACKABLE_LATENCY_MS);
+    private final Map<String, Long> publishedAt = new HashMap<>();
+    private final Map<String, Long> winsByPlant = new TreeMap<>();
+    private final Map<String, Long> duplicatesByPlant = new TreeMap<>();
+    private final Map<String, String> recentlyFulfilled = new LinkedHashMap<String, String>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > RECENTLY_FULFILLED_CAPACITY;
+        }
+    };
+    private long published;
+    private long fulfilled;
+    private long duplicates;
+    private long unknownResponses;
+    private long republished;
+    private long expired;
+
+    private final Gson gson = new GsonBuilder().create();
+
+    /**
+     * Registra l'istante di pubblicazione di una richiesta.
+     * @param requestId id della richiesta pubblicata
+     */
+    public void onPublished(String requestId) {
+        long now = System.nanoTime();
+        synchronized (lock) {
+            publishedAt.put(requestId, now);
+            published++;
+        }
+    }
+
+    /**
+     * Registra una risposta ricevuta da una centrale. La prima risposta per una richiesta
+     * in attesa chiude la misura di latenza; le successive vengono contate come duplicate.
+     * @param requestId id della richiesta a cui la centrale risponde
+     * @param plantId id della centrale che risponde
+     * @return true se è la prima risposta (vincente) per la richiesta
+     */
+    public boolean onResponse(String requestId, String plantId) {
+        long now = System.nanoTime();
+        synchronized (lock) {
+            Long start = publishedAt.remove(requestId);
+            if (start != null) {
+                latencies.record((now - start) / 1_000_000L);
+                winsByPlant.merge(plantId, 1L, Long::sum);
+                recentlyFulfilled.put(requestId, plantId);
+                fulfilled++;
+                return true;
+            }
+            if (recentlyFulfilled.containsKey(requestId)) {
+                duplicatesByPlant.merge(plantId, 1L, Long::sum);
+                duplicates++;
+            } else {
+                unknownResponses++;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Registra la ripubblicazione di una richiesta che ha mancato lo SLA.
+     * La misura di latenza continua a partire dalla prima pubblicazione; se nel frattempo
+     * la richiesta è già stata evasa o abbandonata la ripubblicazione non viene contata.
+     */
+    public void onRepublished(String requestId) {
+        synchronized (lock) {
+            if (publishedAt.containsKey(requestId)) {
+                republished++;
+            }
+        }
+    }
+
+    /**
+     * Registra una richiesta abbandonata dopo aver esaurito le ripubblicazioni.
+     */
+    public void onExpired(String requestId) {
+        synchronized (lock) {
+            publishedAt.remove(requestId);
+            expired++;
+        }
+    }
+
+    /**
+     * Crea uno snapshot coerente delle metriche correnti.
+     */
+    public Snapshot snapshot() {
+        long now = System.nanoTime();
+        synchronized (lock) {
+            Snapshot s = new Snapshot();
+            s.timestamp = System.currentTimeMillis();
+            s.published = published;
+            s.fulfilled = fulfilled;
+            s.duplicates = duplicates;
+            s.unknownResponses = unknownResponses;
+            s.republished = republished;
+            s.expired = expired;
+            s.pending = publishedAt.size();
+            long oldest = 0;
+            for (long start : publishedAt.values()) {
+                oldest = Math.max(oldest, now - start);
+            }
+            s.oldestPendingAgeMs = oldest / 1_000_000L;
+            s.latencyP50Ms = latencies.getValueAtPercentile(50.0);
+            s.latencyP99Ms = latencies.getValueAtPercentile(99.0);
+            s.latencyP999Ms = latencies.getValueAtPercentile(99.9);
+            s.latencyMinMs = latencies.getMin();
+            s.latencyMaxMs = latencies.getMax();
+            s.latencyMeanMs = latencies.getMean();
+            s.winsByPlant = new TreeMap<>(winsByPlant);
+            s.duplicatesByPlant = new TreeMap<>(duplicatesByPlant);
+            return s;
+        }
+    }
+
+    /**
+     * Report leggibile da stampare nei log.
+     */
+    public String report() {
+        Snapshot s = snapshot();
+        return String.format(
+                "=== FULFILMENT REPORT ===%n" +
+                        "published=%d fulfilled=%d pending=%d oldestPendingAge=%d ms%n" +
+                        "latency ms: p50=%d p99=%d p999=%d min=%d max=%d mean=%.1f%n" +
+                        "duplicates=%d unknown=%d republished=%d expired=%d%n" +
+                        "wins by plant: %s%n" +
+                        "duplicates by plant: %s",
+                s.published, s.fulfilled, s.pending, s.oldestPendingAgeMs,
+                s.latencyP50Ms, s.latencyP99Ms, s.latencyP999Ms, s.latencyMinMs, s.latencyMaxMs, s.latencyMeanMs,
+                s.duplicates, s.unknownResponses, s.republished, s.expired,
+                s.winsByPlant, s.duplicatesByPlant);
+    }
+
+    /**
+     * Dump delle metriche in formato JSON, leggibile da strumenti esterni.
+     */
+    public String toJson() {
+        return gson.toJson(snapshot());
+    }
+
+    public static class Snapshot {
+        long timestamp;
+        long published;
+        long fulfilled;
+        long pending;
+        long oldestPendingAgeMs;
+        long duplicates;
+        long unknownResponses;
+        long republished;
+        long expired;
+        long latencyP50Ms;
+        long latencyP99Ms;
+        long latencyP999Ms;
+        long latencyMinMs;
+        long latencyMaxMs;
+        double latencyMeanMs;
+        Map<String, Long> winsByPlant;
+        Map<String, Long> duplicatesByPlant;
+    }
+}
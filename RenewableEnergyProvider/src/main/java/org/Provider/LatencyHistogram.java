@@ -0,0 +1,107 @@
+package org.Provider;
+
+/**
+ * Istogramma di latenze a bucket log-lineari in stile HDR.
+ * Ogni potenza di due è suddivisa in 128 sotto-bucket, quindi l'errore relativo
+ * sui percentili è al più 1/128 (circa 0,8%) indipendentemente dall'ordine di grandezza.
+ * La registrazione è O(1) e non alloca. Non è thread-safe: la sincronizzazione
+ * è a carico del chiamante.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 8;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int SUB_BUCKET_HALF_BITS = SUB_BUCKET_BITS - 1;
+
+    private final long highestTrackableValue;
+    private final long[] counts;
+    private long totalCount;
+    private long min = Long.MAX_VALUE;
+    private long max;
+    private double sum;
+
+    public LatencyHistogram(long highestTrackableValue) {
+        if (highestTrackableValue < SUB_BUCKET_COUNT) {
+            throw new IllegalArgumentException("highestTrackableValue must be >= " + SUB_BUCKET_COUNT);
+        }
+        this.highestTrackableValue = highestTrackableValue;
+        this.counts = new long[countsIndex(highestTrackableValue) + 1];
+    }
+
+    /**
+     * Registra un valore. I valori negativi vengono portati a zero, quelli oltre
+     * il massimo tracciabile vengono saturati sull'ultimo bucket.
+     */
+    public void record(long value) {
+        long v = Math.max(0, Math.min(value, highestTrackableValue));
+        counts[countsIndex(v)]++;
+        totalCount++;
+        sum += v;
+        if (v < min) min = v;
+        if (v > max) max = v;
+    }
+
+    /**
+     * Restituisce il valore sotto cui ricade la percentuale indicata dei campioni.
+     * @param percentile percentile in [0, 100]
+     * @return limite superiore del bucket che contiene il percentile, 0 se vuoto
+     */
+    public long getValueAtPercentile(double percentile) {
+        if (totalCount == 0) {
+            return 0;
+        }
+        double p = Math.min(Math.max(percentile, 0.0), 100.0);
+        long target = Math.max(1, (long) Math.ceil(p / 100.0 * totalCount));
+        long cumulative = 0;
+        for (int i = 0; i < counts.length; i++) {
+            cumulative += counts[i];
+            if (cumulative >= target) {
+                return Math.min(highestEquivalentValue(i), max);
+            }
+        }
+        return max;
+    }
+
+    public long getTotalCount() {
+        return totalCount;
+    }
+
+    public long getMin() {
+        return totalCount == 0 ? 0 : min;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    public double getMean() {
+        return totalCount == 0 ? 0.0 : sum / totalCount;
+    }
+
+    public void reset() {
+        java.util.Arrays.fill(counts, 0);
+        totalCount = 0;
+        min = Long.MAX_VALUE;
+        max = 0;
+        sum = 0.0;
+    }
+
+    private static int countsIndex(long value) {
+        int bucketIndex = bucketIndex(value);
+        int subBucketIndex = (int) (value >>> bucketIndex);
+        return (bucketIndex << SUB_BUCKET_HALF_BITS) + subBucketIndex;
+    }
+
+    private static int bucketIndex(long value) {
+        return Math.max(0, 63 - Long.numberOfLeadingZeros(value | (SUB_BUCKET_COUNT - 1)) - SUB_BUCKET_HALF_BITS);
+    }
+
+    private static long highestEquivalentValue(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int bucketIndex = (index >> SUB_BUCKET_HALF_BITS) - 1;
+        long subBucketIndex = index - ((long) bucketIndex << SUB_BUCKET_HALF_BITS);
+        return ((subBucketIndex + 1) << bucketIndex) - 1;
+    }
+}
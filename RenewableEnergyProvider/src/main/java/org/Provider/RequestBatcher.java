@@ -0,0 +1,101 @@
+package org.Provider;
+
+import desm.common.EnergyRequest;
+import desm.common.EnergyRequestBatch;
+import org.eclipse.paho.client.mqttv3.MqttException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.logging.Logger;
+
+/**
+ * Raggruppa le richieste di energia create in una breve finestra temporale.
+ * Il batch viene chiuso quando sono trascorsi windowMs dalla prima richiesta
+ * o quando raggiunge maxSize richieste, e viene consegnato al publisher
+ * da un thread dedicato così che chi crea le richieste non si blocchi.
+ */
+public class RequestBatcher implements Runnable {
+
+    private static final Logger LOGGER = Logger.getLogger(RequestBatcher.class.getName());
+
+    public interface BatchPublisher {
+        void publish(EnergyRequestBatch batch) throws MqttException;
+    }
+
+    private final BatchPublisher publisher;
+    private final long windowMs;
+    private final int maxSize;
+    private final Object lock = new Object();
+    private List<EnergyRequest> current = new ArrayList<>();
+    private long firstArrival;
+    private volatile boolean running;
+
+    public RequestBatcher(BatchPublisher publisher, long windowMs, int maxSize) {
+        this.publisher = publisher;
+        this.windowMs = windowMs;
+        this.maxSize = maxSize;
+    }
+
+    public void start() {
+        running = true;
+        Thread flusher = new Thread(this, "RequestBatcher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    public void add(EnergyRequest request) {
+        synchronized (lock) {
+            if (current.isEmpty()) {
+                firstArrival = System.currentTimeMillis();
+            }
+            current.add(request);
+            lock.notifyAll();
+        }
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                List<EnergyRequest> ready = awaitBatch();
+                publisher.publish(new EnergyRequestBatch(UUID.randomUUID().toString(), ready));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                LOGGER.severe("Errore nella pubblicazione del batch: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Attende che il batch corrente sia pronto (finestra scaduta o dimensione massima)
+     * e lo sostituisce con uno vuoto.
+     */
+    private List<EnergyRequest> awaitBatch() throws InterruptedException {
+        synchronized (lock) {
+            while (current.isEmpty()) {
+                lock.wait();
+            }
+            long remaining = firstArrival + windowMs - System.currentTimeMillis();
+            while (current.size() < maxSize && remaining > 0) {
+                lock.wait(remaining);
+                remaining = firstArrival + windowMs - System.currentTimeMillis();
+            }
+            List<EnergyRequest> ready = current;
+            if (ready.size() > maxSize) {
+                current = new ArrayList<>(ready.subList(maxSize, ready.size()));
+                ready = new ArrayList<>(ready.subList(0, maxSize));
+                firstArrival = System.currentTimeMillis();
+            } else {
+                current = new ArrayList<>();
+            }
+            return ready;
+        }
+    }
+
+    public void shutdown() {
+        running = false;
+    }
+}
@@ -0,0 +1,117 @@
+package desm.powerplant.pollutionSensor;
+
+import desm.powerplant.pollutionSensor.simulator.Buffer;
+import desm.powerplant.pollutionSensor.simulator.Measurement;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Confronto fra il vecchio WindowBuffer (riportato qui sotto come riferimento, non è più
+ * usato dalla centrale) e PrimitiveRingBuffer su un secondo di dati di un sensore
+ * a 10k campioni/s: ogni invocazione inserisce 10.000 misurazioni, una su 50 in ritardo
+ * di 3 ms, e il lettore svuota il buffer ogni READ_EVERY inserimenti.
+ * Si esegue con ./gradlew :ThermalPowerPlant:jmh
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 2)
+@org.openjdk.jmh.annotations.Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms512m", "-Xmx512m"})
+public class BufferBenchmark {
+
+    private static final int SAMPLES_PER_SECOND = 10_000;
+    private static final int READ_EVERY = 100;
+    private static final String ID = "sensor-0";
+    private static final String TYPE = "CO2";
+
+    /**
+     * WindowBuffer come era prima di PrimitiveRingBuffer: lista di Measurement
+     * riordinata con Collections.sort a ogni inserimento.
+     */
+    static final class WindowBuffer implements Buffer {
+
+        private static final int WINDOW_SIZE = 8;
+        private final List<Measurement> buffer = new ArrayList<>();
+        private final Object lock = new Object();
+
+        @Override
+        public void addMeasurement(Measurement m) {
+            synchronized (lock) {
+                buffer.add(m);
+                Collections.sort(buffer);
+                lock.notifyAll();
+            }
+        }
+
+        @Override
+        public List<Measurement> readAllAndClean() {
+            synchronized (lock) {
+                while (buffer.size() < WINDOW_SIZE) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return new ArrayList<>();
+                    }
+                }
+                List<Measurement> snap = new ArrayList<>(buffer);
+                buffer.clear();
+                return snap;
+            }
+        }
+    }
+
+    private final long[] timestamps = new long[SAMPLES_PER_SECOND];
+    private final double[] values = new double[SAMPLES_PER_SECOND];
+
+    private WindowBuffer windowBuffer;
+    private PrimitiveRingBuffer ringBuffer;
+    private MeasurementBatch batch;
+    private long second;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        for (int i = 0; i < SAMPLES_PER_SECOND; i++) {
+            // 10 campioni per millisecondo, uno su 50 arriva con 3 ms di ritardo
+            long timestamp = i / 10;
+            timestamps[i] = i % 50 == 49 ? Math.max(0, timestamp - 3) : timestamp;
+            values[i] = 400 + i % 37;
+        }
+        windowBuffer = new WindowBuffer();
+        ringBuffer = new PrimitiveRingBuffer();
+        batch = new MeasurementBatch(256);
+    }
+
+    @Benchmark
+    public double windowBuffer() {
+        long base = 1000 * second++;
+        double sum = 0.0;
+        for (int i = 0; i < SAMPLES_PER_SECOND; i++) {
+            windowBuffer.addMeasurement(new Measurement(ID, TYPE, values[i], base + timestamps[i]));
+            if (i % READ_EVERY == READ_EVERY - 1) {
+                List<Measurement> window = windowBuffer.readAllAndClean();
+                sum += window.get(window.size() - 1).getValue();
+            }
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public double primitiveRingBuffer() {
+        long base = 1000 * second++;
+        double sum = 0.0;
+        for (int i = 0; i < SAMPLES_PER_SECOND; i++) {
+            ringBuffer.addSample(ID, TYPE, values[i], base + timestamps[i]);
+            if (i % READ_EVERY == READ_EVERY - 1) {
+                int n = ringBuffer.drainTo(batch);
+                sum += batch.values()[n - 1];
+            }
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,238 @@
+package desm.powerplant.communication;
+
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+import java.util.ArrayDeque;
+import java.util.logging.Logger;
+
+/**
+ * Pubblicazione non bloccante su un MqttAsyncClient con finestra di messaggi in volo.
+ * Al massimo maxInflight pubblicazioni attendono l'ack del broker; le successive
+ * vengono accodate localmente (fino a maxQueued, poi si scartano le più vecchie)
+ * e inviate man mano che arrivano gli ack. Il thread chiamante non attende mai il broker:
+ * l'esito arriva tramite PublishCallback sul thread di Paho.
+ *
+ * I messaggi pubblicati con publishReliable (le risposte al provider) hanno una coda
+ * propria, servita per prima e mai soggetta allo scarto. Se la pubblicazione fallisce,
+ * per esempio perché il client è disconnesso e il buffer offline di Paho è pieno, restano
+ * parcheggiati e vengono ripubblicati da resendParked alla riconnessione: il loro
+ * callback riceve solo onComplete.
+ */
+public class AsyncPublisher {
+    private static final Logger logger = Logger.getLogger(AsyncPublisher.class.getName());
+
+    /**
+     * Esito di una pubblicazione. Invocato sul thread di callback di Paho,
+     * quindi le implementazioni non devono bloccare.
+     */
+    public interface PublishCallback {
+        void onComplete();
+
+        void onFailure(Throwable cause);
+    }
+
+    private static class PendingPublish {
+        final String topic;
+        final MqttMessage message;
+        final PublishCallback callback;
+        final boolean reliable;
+        long sentAtNanos;
+
+        PendingPublish(String topic, MqttMessage message, PublishCallback callback, boolean reliable) {
+            this.topic = topic;
+            this.message = message;
+            this.callback = callback;
+            this.reliable = reliable;
+        }
+    }
+
+    private final MqttAsyncClient client;
+    private final int maxInflight;
+    private final int maxQueued;
+    private final Object lock = new Object();
+    private final ArrayDeque<PendingPublish> queued = new ArrayDeque<>();
+    // Messaggi affidabili in attesa della finestra e di quelli falliti in attesa di riconnessione
+    private final ArrayDeque<PendingPublish> reliableQueued = new ArrayDeque<>();
+    private final ArrayDeque<PendingPublish> parked = new ArrayDeque<>();
+    private int inflight;
+
+    // Metriche, protette da lock
+    private long completed;
+    private long failed;
+    private long dropped;
+    private long retried;
+    private long totalLatencyNanos;
+    private long maxLatencyNanos;
+    private int maxInflightSeen;
+    private int maxQueuedSeen;
+
+    private final IMqttActionListener listener = new IMqttActionListener() {
+        @Override
+        public void onSuccess(IMqttToken token) {
+            PendingPublish publish = (PendingPublish) token.getUserContext();
+            long latency = System.nanoTime() - publish.sentAtNanos;
+            synchronized (lock) {
+                completed++;
+                totalLatencyNanos += latency;
+                maxLatencyNanos = Math.max(maxLatencyNanos, latency);
+                inflight--;
+            }
+            notifyComplete(publish);
+            pump();
+        }
+
+        @Override
+        public void onFailure(IMqttToken token, Throwable cause) {
+            PendingPublish publish = (PendingPublish) token.getUserContext();
+            synchronized (lock) {
+                inflight--;
+            }
+            failed(publish, cause);
+            pump();
+        }
+    };
+
+    public AsyncPublisher(MqttAsyncClient client, int maxInflight, int maxQueued) {
+        this.client = client;
+        this.maxInflight = maxInflight;
+        this.maxQueued = maxQueued;
+    }
+
+    /**
+     * Pubblica il messaggio se la finestra lo consente, altrimenti lo accoda.
+     * Non blocca mai il chiamante; a coda piena scarta il messaggio accodato più vecchio.
+     */
+    public void publish(String topic, MqttMessage message, PublishCallback callback) {
+        PendingPublish publish = new PendingPublish(topic, message, callback, false);
+        PendingPublish evicted = null;
+        synchronized (lock) {
+            if (queued.size() >= maxQueued) {
+                evicted = queued.pollFirst();
+                dropped++;
+            }
+            queued.addLast(publish);
+            maxQueuedSeen = Math.max(maxQueuedSeen, queued.size() + reliableQueued.size());
+        }
+        if (evicted != null) {
+            notifyFailure(evicted, new IllegalStateException("Publish queue full, message dropped"));
+        }
+        pump();
+    }
+
+    /**
+     * Come publish, ma il messaggio non viene mai scartato: precede i messaggi ordinari
+     * nella coda e, se la pubblicazione fallisce, viene ritentato alla riconnessione.
+     */
+    public void publishReliable(String topic, MqttMessage message, PublishCallback callback) {
+        synchronized (lock) {
+            reliableQueued.addLast(new PendingPublish(topic, message, callback, true));
+            maxQueuedSeen = Math.max(maxQueuedSeen, queued.size() + reliableQueued.size());
+        }
+        pump();
+    }
+
+    /**
+     * Rimette in coda i messaggi affidabili la cui pubblicazione è fallita.
+     * Da chiamare quando il client si è riconnesso al broker.
+     */
+    public void resendParked() {
+        synchronized (lock) {
+            while (!parked.isEmpty()) {
+                reliableQueued.addFirst(parked.pollLast());
+            }
+        }
+        pump();
+    }
+
+    /**
+     * Invia messaggi accodati finché la finestra ha posti liberi. È un ciclo: un invio
+     * che fallisce subito libera il posto e si passa al messaggio successivo.
+     */
+    private void pump() {
+        while (true) {
+            PendingPublish next;
+            synchronized (lock) {
+                if (inflight >= maxInflight) {
+                    return;
+                }
+                next = reliableQueued.pollFirst();
+                if (next == null) {
+                    next = queued.pollFirst();
+                }
+                if (next == null) {
+                    return;
+                }
+                inflight++;
+                maxInflightSeen = Math.max(maxInflightSeen, inflight);
+            }
+            next.sentAtNanos = System.nanoTime();
+            try {
+                client.publish(next.topic, next.message, next, listener);
+            } catch (MqttException e) {
+                synchronized (lock) {
+                    inflight--;
+                }
+                failed(next, e);
+            }
+        }
+    }
+
+    private void failed(PendingPublish publish, Throwable cause) {
+        synchronized (lock) {
+            failed++;
+            if (publish.reliable) {
+                retried++;
+                parked.addLast(publish);
+            }
+        }
+        if (publish.reliable) {
+            logger.warning("Publish on " + publish.topic + " failed, retrying after reconnect: " + cause.getMessage());
+            return;
+        }
+        notifyFailure(publish, cause);
+    }
+
+    private void notifyComplete(PendingPublish publish) {
+        if (publish.callback != null) {
+            try {
+                publish.callback.onComplete();
+            } catch (Exception e) {
+                logger.warning("Publish callback failed: " + e.getMessage());
+            }
+        }
+    }
+
+    private void notifyFailure(PendingPublish publish, Throwable cause) {
+        if (publish.callback != null) {
+            try {
+                publish.callback.onFailure(cause);
+            } catch (Exception e) {
+                logger.warning("Publish failure callback failed: " + e.getMessage());
+            }
+        }
+    }
+
+    public int getInflight() {
+        synchronized (lock) {
+            return inflight;
+        }
+    }
+
+    /**
+     * Riepilogo delle metriche di pubblicazione: latenza fino all'ack del broker
+     * e profondità della finestra in volo e della coda locale.
+     */
+    public String metrics() {
+        synchronized (lock) {
+            double avgLatencyMs = completed == 0 ? 0.0 : totalLatencyNanos / 1_000_000.0 / completed;
+            return String.format(
+                    "completed=%d failed=%d dropped=%d retried=%d parked=%d latency avg=%.2f ms max=%.2f ms inflight=%d/%d (max %d) queued=%d (max %d)",
+                    completed, failed, dropped, retried, parked.size(), avgLatencyMs, maxLatencyNanos / 1_000_000.0,
+                    inflight, maxInflight, maxInflightSeen, queued.size() + reliableQueued.size(), maxQueuedSeen);
+        }
+    }
+}
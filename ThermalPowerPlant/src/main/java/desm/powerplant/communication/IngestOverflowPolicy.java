@@ -0,0 +1,17 @@
+package desm.powerplant.communication;
+
+/**
+ * Comportamento della coda di ingest MQTT quando è piena.
+ */
+public enum IngestOverflowPolicy {
+    /** Scarta il messaggio più vecchio in coda (mai una rimozione) per fare spazio al nuovo. */
+    DROP_OLDEST,
+    /** Blocca il thread di callback di Paho finché non si libera spazio. */
+    BLOCK,
+    /**
+     * A coda piena si comporta come DROP_OLDEST; in più il worker, che decodifica comunque
+     * i messaggi, scarta le richieste già scadute prima della coda delle elezioni.
+     * Nessuna decodifica avviene sul thread di callback di Paho.
+     */
+    SHED_EXPIRED
+}
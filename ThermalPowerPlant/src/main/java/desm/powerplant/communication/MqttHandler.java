@@ -2,14 +2,30 @@ package desm.powerplant.communication;
 
 import desm.common.Config;
 import desm.common.EnergyRequest;
+import desm.common.EnergyRequestBatch;
 import desm.common.PlantInfo;
+import desm.common.PayloadCodec;
 import desm.common.PollutionData;
+import desm.common.PollutionSubscriptionMode;
+import desm.common.SensorSeries;
+import desm.common.TDigest;
 import desm.powerplant.networkTopology.NewElectionQueue;
+import desm.powerplant.pollutionSensor.MeasurementBatch;
+import desm.proto.common.Payloads.PollutionDataMessage;
+import desm.proto.common.Payloads.SensorSeriesMessage;
 import org.eclipse.paho.client.mqttv3.*;
 import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
 import com.google.gson.Gson;
-
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.logging.Logger;
 
 public class MqttHandler {
@@ -19,12 +35,23 @@ public class MqttHandler {
 
     private PlantInfo plantInfo;
     private MqttClient mqttClient;
+    // Modalità asincrona (Config.PLANT_MQTT_ASYNC): sostituisce mqttClient
+    private MqttAsyncClient asyncClient;
+    private AsyncPublisher asyncPublisher;
+    // Stadio di ingest (Config.PLANT_INGEST_QUEUE): disaccoppia il callback di Paho dalla coda elezioni
+    private MqttIngestQueue ingestQueue;
+    private final IngestOverflowPolicy ingestPolicy = IngestOverflowPolicy.valueOf(Config.PLANT_INGEST_OVERFLOW_POLICY);
+    // Spool su disco dei dati di inquinamento non consegnati (Config.PLANT_SPOOL_ENABLED)
+    private volatile PollutionSpool spool;
     private Gson gson;
     private String requestProviderTopic = Config.ENERGY_REQUEST_TOPIC;
 
     private String responseProviderTopic = Config.ENERGY_RESPONSE_TOPIC;
 
-    private String pollutionTopic = Config.PLANT_POLLUTION_TOPIC;
+    private String requestBatchTopic = Config.ENERGY_REQUEST_BATCH_TOPIC;
+
+    // PLANT_POLLUTION_TOPIC o la sua partizione (Config.POLLUTION_SUBSCRIPTION_MODE)
+    private String pollutionTopic;
 
     private int providerQos = Config.PROVIDER_QOS;
 
@@ -40,14 +67,21 @@ public class MqttHandler {
         this.plantInfo = plantInfo;
         this.newElectionQueue = newElectionQueue;
         this.gson = new Gson();
+        this.pollutionTopic = PollutionSubscriptionMode.fromConfig().publishTopic(plantInfo.getPLANT_ID());
     }
 
 
 
     public void init(){
         try {
-            this.mqttClient = new MqttClient(broker, plantInfo.getPLANT_ID(), new MemoryPersistence());
-
+            if (Config.PLANT_INGEST_QUEUE) {
+                ingestQueue = new MqttIngestQueue(
+                        Config.PLANT_INGEST_CAPACITY,
+                        ingestPolicy,
+                        Config.PLANT_INGEST_LAG_THRESHOLD_MS,
+                        this::handleIngestedMessages);
+                ingestQueue.start();
+            }
 
             MqttConnectOptions connOpts = new MqttConnectOptions();
             connOpts.setCleanSession(true);
@@ -55,13 +89,15 @@ public class MqttHandler {
             connOpts.setKeepAliveInterval(60);
             connOpts.setConnectionTimeout(30);
 
+            MqttCallbackExtended callback = new MqttCallbackExtended() {
+                @Override
+                public void connectComplete(boolean reconnect, String serverURI) {
+                    // Risposte al provider fallite mentre il client era disconnesso
+                    if (reconnect && asyncPublisher != null) {
+                        asyncPublisher.resendParked();
+                    }
+                }
 
-            System.out.println("Connecting to broker: " + broker);
-            mqttClient.connect(connOpts);
-            System.out.println("Connected to broker");
-
-
-            mqttClient.setCallback(new MqttCallback() {
                 @Override
                 public void connectionLost(Throwable cause) {
                     logger.warning("Connection to MQTT broker lost: " + cause.getMessage());
@@ -70,14 +106,43 @@ public class MqttHandler {
 
                 @Override
                 public void messageArrived(String topic, MqttMessage message) throws Exception {
-                    handleIncomingMessage(topic, message);
+                    if (ingestQueue != null) {
+                        ingestQueue.offer(topic, message.getPayload());
+                    } else {
+                        handleIncomingMessage(topic, message.getPayload());
+                    }
                 }
 
                 @Override
                 public void deliveryComplete(IMqttDeliveryToken token) {
 
                 }
-            });
+            };
+
+            System.out.println("Connecting to broker: " + broker);
+            if (Config.PLANT_MQTT_ASYNC) {
+                this.asyncClient = new MqttAsyncClient(broker, plantInfo.getPLANT_ID(), new MemoryPersistence());
+                connOpts.setMaxInflight(Config.MQTT_MAX_INFLIGHT);
+                // Da disconnesso publish accoda in Paho invece di fallire subito
+                DisconnectedBufferOptions bufferOpts = new DisconnectedBufferOptions();
+                bufferOpts.setBufferEnabled(true);
+                bufferOpts.setBufferSize(Config.MQTT_MAX_QUEUED);
+                bufferOpts.setPersistBuffer(false);
+                bufferOpts.setDeleteOldestMessages(false);
+                asyncClient.setBufferOpts(bufferOpts);
+                asyncClient.setCallback(callback);
+                asyncClient.connect(connOpts).waitForCompletion();
+                this.asyncPublisher = new AsyncPublisher(asyncClient, Config.MQTT_MAX_INFLIGHT, Config.MQTT_MAX_QUEUED);
+            } else {
+                this.mqttClient = new MqttClient(broker, plantInfo.getPLANT_ID(), new MemoryPersistence());
+                mqttClient.connect(connOpts);
+                mqttClient.setCallback(callback);
+            }
+            System.out.println("Connected to broker");
+
+            if (Config.PLANT_SPOOL_ENABLED) {
+                startSpool();
+            }
 
         } catch (MqttException e) {
             System.err.println("Error initializing MQTT client: " + e.getMessage());
@@ -85,15 +150,64 @@ public class MqttHandler {
         }
     }
 
+    private void subscribe(String topic, int qos) throws MqttException {
+        if (asyncClient != null) {
+            asyncClient.subscribe(topic, qos).waitForCompletion();
+        } else {
+            mqttClient.subscribe(topic, qos);
+        }
+    }
+
+    /**
+     * Pubblica un messaggio. In modalità asincrona ritorna subito e l'esito arriva
+     * al callback; in modalità sincrona attende l'ack e notifica il callback prima di ritornare.
+     */
+    private void publish(String topic, MqttMessage message, AsyncPublisher.PublishCallback callback) throws MqttException {
+        if (asyncPublisher != null) {
+            asyncPublisher.publish(topic, message, callback);
+            return;
+        }
+        mqttClient.publish(topic, message);
+        callback.onComplete();
+    }
+
+    /**
+     * Come publish, ma in modalità asincrona il messaggio non viene mai scartato dalla coda
+     * locale e in caso di errore viene ripubblicato alla riconnessione.
+     */
+    private void publishReliable(String topic, MqttMessage message, AsyncPublisher.PublishCallback callback) throws MqttException {
+        if (asyncPublisher != null) {
+            asyncPublisher.publishReliable(topic, message, callback);
+            return;
+        }
+        publish(topic, message, callback);
+    }
+
+    /**
+     * @return metriche di pubblicazione (latenza, messaggi in volo) in modalità asincrona
+     */
+    public String getPublishMetrics() {
+        return asyncPublisher != null ? asyncPublisher.metrics() : "sync mode";
+    }
+
+    /**
+     * @return contatori della coda di ingest (ingested, dropped, lagging, ...)
+     */
+    public String getIngestMetrics() {
+        return ingestQueue != null ? ingestQueue.metrics() : "ingest queue disabled";
+    }
+
     /**
      * Si iscrive al topic per ricevere le richieste di energia.
-     * Utilizza un wildcard (+) per ascoltare tutte le richieste energetiche su diversi subtopic.
+     * Utilizza un wildcard (+) per ascoltare tutte le richieste energetiche su diversi subtopic,
+     * sia singole sia raggruppate in batch dal provider.
      *
      */
     public void subscribeToEnergyRequests() {
         try {
             String allRquestTopic = requestProviderTopic + "/+";
-            mqttClient.subscribe(allRquestTopic, providerQos);
+            subscribe(allRquestTopic, providerQos);
+            subscribe(requestBatchTopic + "/+", providerQos);
         } catch (MqttException e) {
             logger.severe("[SUBSCRIBE TO ENERGY REQUEST] Failed to subscribe to energy requests: " + e.getMessage());
             throw new RuntimeException("Failed to subscribe to MQTT topic", e);
@@ -102,7 +216,9 @@ public class MqttHandler {
 
     /**
      * Invia una risposta vuota al provider per confermare che la pianta ha vinto e ha gestito l'elezione.
-     * Pubblica un messaggio vuoto retained su un topic specifico costruito con request id e plant id
+     * Pubblica un messaggio vuoto retained su un topic specifico costruito con request id e plant id.
+     * La centrale ha già vinto l'elezione, quindi la risposta non può andare persa: in modalità
+     * asincrona usa publishReliable e viene ritentata finché il broker non la conferma.
      *
      * @param requestId ID univoco della richiesta energetica
      * @param plantId ID della centrale elettrica che risponde
@@ -112,7 +228,17 @@ public class MqttHandler {
             String specificTopicToRespond = responseProviderTopic+"/"+requestId+"/"+plantId;
             MqttMessage response = new MqttMessage(new byte[0]);
             response.setRetained(true);
-            mqttClient.publish(specificTopicToRespond, response);
+            publishReliable(specificTopicToRespond, response, new AsyncPublisher.PublishCallback() {
+                @Override
+                public void onComplete() {
+                    logger.fine("[RESPONSE TO PROVIDER] Delivered response for " + requestId);
+                }
+
+                @Override
+                public void onFailure(Throwable cause) {
+                    logger.severe("[RESPONSE TO PROVIDER] Failed to deliver response for " + requestId + ": " + cause.getMessage());
+                }
+            });
         } catch (MqttException e) {
             logger.severe("[RESPONSE TO PROVIDER] Failed to response to energy requests: " + e.getMessage());
             throw new RuntimeException("Failed to subscribe to MQTT topic", e);
@@ -127,12 +253,19 @@ public class MqttHandler {
      * Se il messaggio contiene dati, deserializza la richiesta energetica e la aggiunge alla coda.
      *
      * @param topic Topic MQTT da cui proviene il messaggio
-     * @param message Messaggio MQTT ricevuto
+     * @param payload payload del messaggio MQTT ricevuto
      */
-    private void handleIncomingMessage(String topic, MqttMessage message) {
+    private void handleIncomingMessage(String topic, byte[] payload) {
         try {
-            String payload = new String(message.getPayload());
-            if (payload.trim().isEmpty() || message.getPayload().length == 0) {
+            if (topic.startsWith(requestBatchTopic + "/")) {
+                // Un batch vuoto è solo la cancellazione del retained: le singole richieste
+                // vengono rimosse tramite i messaggi vuoti su energy/requests/{id}
+                if (payload.length > 0) {
+                    newElectionQueue.putAll(decodeEnergyRequestBatch(payload).getRequests());
+                }
+                return;
+            }
+            if (payload.length == 0) {
                 String[] parts = topic.split("/");
                 if (parts.length >= 3) {
                     String requestId = parts[2]; // UUID della richiesta
@@ -142,54 +275,267 @@ public class MqttHandler {
                 }
 
             }else{
-                EnergyRequest energyRequest = gson.fromJson(payload, EnergyRequest.class);
-                newElectionQueue.put(energyRequest);
+                newElectionQueue.put(decodeEnergyRequest(payload));
             }
         } catch (Exception e) {
             logger.severe("Error handling incoming message: " + e.getMessage());
             e.printStackTrace(); // Aggiungi stack trace completo
         }
     }
+    /**
+     * Consuma un blocco di messaggi estratti dalla coda di ingest. Le richieste consecutive
+     * vengono inserite con un'unica putAll; una rimozione (payload vuoto) chiude il gruppo
+     * corrente per rispettare l'ordine di arrivo. Con la policy SHED_EXPIRED le richieste
+     * già scadute vengono scartate qui, dopo l'unica decodifica.
+     */
+    private void handleIngestedMessages(String[] topics, byte[][] payloads, int count) {
+        List<EnergyRequest> toInsert = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        int shed = 0;
+        for (int i = 0; i < count; i++) {
+            String topic = topics[i];
+            byte[] payload = payloads[i];
+            try {
+                if (topic.startsWith(requestBatchTopic + "/")) {
+                    if (payload.length > 0) {
+                        for (EnergyRequest request : decodeEnergyRequestBatch(payload).getRequests()) {
+                            shed += addUnlessShed(toInsert, request, now);
+                        }
+                    }
+                } else if (payload.length == 0) {
+                    if (!toInsert.isEmpty()) {
+                        newElectionQueue.putAll(toInsert);
+                        toInsert.clear();
+                    }
+                    handleIncomingMessage(topic, payload);
+                } else {
+                    shed += addUnlessShed(toInsert, decodeEnergyRequest(payload), now);
+                }
+            } catch (Exception e) {
+                logger.severe("Error handling ingested message on " + topic + ": " + e.getMessage());
+            }
+        }
+        if (!toInsert.isEmpty()) {
+            newElectionQueue.putAll(toInsert);
+        }
+        if (shed > 0) {
+            ingestQueue.countShed(shed);
+        }
+    }
+
+    /**
+     * @return 1 se la richiesta è scaduta ed è stata scartata (policy SHED_EXPIRED), 0 se è stata aggiunta
+     */
+    private int addUnlessShed(List<EnergyRequest> toInsert, EnergyRequest request, long now) {
+        if (ingestPolicy == IngestOverflowPolicy.SHED_EXPIRED && request.isExpired(now)) {
+            return 1;
+        }
+        toInsert.add(request);
+        return 0;
+    }
+
+    /**
+     * Decodifica una richiesta di energia riconoscendo il formato dal primo byte:
+     * protobuf binario se inizia con PayloadCodec.BINARY_MAGIC, altrimenti JSON.
+     */
+    private EnergyRequest decodeEnergyRequest(byte[] payload) throws InvalidProtocolBufferException {
+        if (PayloadCodec.isBinary(payload)) {
+            return PayloadCodec.decodeEnergyRequest(payload);
+        }
+        return gson.fromJson(new String(payload, StandardCharsets.UTF_8), EnergyRequest.class);
+    }
+
+    private EnergyRequestBatch decodeEnergyRequestBatch(byte[] payload) throws InvalidProtocolBufferException {
+        if (PayloadCodec.isBinary(payload)) {
+            return PayloadCodec.decodeEnergyRequestBatch(payload);
+        }
+        return gson.fromJson(new String(payload, StandardCharsets.UTF_8), EnergyRequestBatch.class);
+    }
+
     /**
      * Invia i dati di inquinamento della centrale elettrica.
-     * Crea un oggetto PollutionData con i valori medi delle emissioni e lo pubblica sul topic dedicato.
+     * Serializza in un unico messaggio le medie di tutti i sensori della centrale, con il
+     * timestamp di fine di ogni finestra e lo sketch dei quantili dell'intervallo,
+     * e lo pubblica sul topic dedicato.
+     * In binario ogni serie è compressa con GorillaCodec (Config.POLLUTION_COMPRESSION);
+     * altrimenti il campo averages contiene le medie del sensore principale
+     * (Config.POLLUTION_PRIMARY_TYPE) per i client che leggono solo quello.
+     * Le medie vengono lette direttamente dai blocchi colonnari: il chiamante può
+     * restituirli al pool appena il metodo ritorna.
      *
      * @param plantId ID della centrale elettrica
-     * @param averagesToSend Lista dei valori medi di inquinamento da inviare
+     * @param series Blocchi di medie da inviare, uno per tipo di sensore
+     * @param sketches Sketch dei quantili delle misurazioni dell'intervallo, per tipo di sensore
      * @param timestamp Timestamp dei dati di inquinamento
      */
-    public void sendPollutionData(String plantId,  List<Double> averagesToSend, long timestamp) {
+    public void sendPollutionData(String plantId, List<MeasurementBatch> series,
+                                  Map<String, TDigest> sketches, long timestamp) {
 
+        byte[] payload;
         try {
+            Map<String, byte[]> serializedSketches = new HashMap<>();
+            for (Map.Entry<String, TDigest> entry : sketches.entrySet()) {
+                serializedSketches.put(entry.getKey(), entry.getValue().toBytes());
+            }
+            payload = Config.BINARY_PAYLOADS
+                    ? encodePollutionBinary(plantId, series, serializedSketches, timestamp)
+                    : encodePollutionJson(plantId, series, serializedSketches, timestamp);
+        } catch (Exception e) {
+            logger.severe("[SEND POLLUTION DATA] Unexpected error: " + e.getMessage());
+            e.printStackTrace();
+            return;
+        }
 
-            PollutionData pollutionData = new PollutionData(plantId, averagesToSend, timestamp);
+        // Finché lo spool non è vuoto i nuovi messaggi lo seguono, per mantenere l'ordine
+        if (spool != null && (spool.hasPending() || !isConnected())) {
+            spool.append(payload);
+            return;
+        }
 
-            String jsonPayload = gson.toJson(pollutionData);
+        try {
+            publishPollution(payload, new AsyncPublisher.PublishCallback() {
+                @Override
+                public void onComplete() {
+                }
 
+                @Override
+                public void onFailure(Throwable cause) {
+                    logger.warning("[SEND POLLUTION DATA] Failed to send pollution data: " + cause.getMessage());
+                    if (spool != null) {
+                        spool.append(payload);
+                    }
+                }
+            });
 
-            MqttMessage message = new MqttMessage(jsonPayload.getBytes());
-            message.setQos(pollutionQos);
-            message.setRetained(false);
+        } catch (MqttException e) {
+            logger.warning("[SEND POLLUTION DATA] Failed to send pollution data: " + e.getMessage());
+            if (spool == null) {
+                throw new RuntimeException("Failed to publish pollution data to MQTT topic", e);
+            }
+            spool.append(payload);
+        }
+    }
 
-            mqttClient.publish(pollutionTopic, message);
+    private void publishPollution(byte[] payload, AsyncPublisher.PublishCallback callback) throws MqttException {
+        MqttMessage message = new MqttMessage(payload);
+        message.setQos(pollutionQos);
+        message.setRetained(false);
+        publish(pollutionTopic, message, callback);
+    }
 
-        } catch (MqttException e) {
-            logger.severe("[SEND POLLUTION DATA] Failed to send pollution data: " + e.getMessage());
-            throw new RuntimeException("Failed to publish pollution data to MQTT topic", e);
-        } catch (Exception e) {
-            logger.severe("[SEND POLLUTION DATA] Unexpected error: " + e.getMessage());
-            e.printStackTrace();
+    /**
+     * Apre lo spool dei dati di inquinamento della centrale e avvia il thread che lo
+     * svuota, in ordine e a velocità limitata, quando il broker torna raggiungibile.
+     */
+    private void startSpool() {
+        try {
+            File file = new File(Config.PLANT_SPOOL_DIR, "pollution-spool-" + plantInfo.getPLANT_ID() + ".dat");
+            spool = new PollutionSpool(file, Config.PLANT_SPOOL_SIZE_BYTES, Config.PLANT_SPOOL_DRAIN_RATE);
+            spool.start(new PollutionSpool.Drain() {
+                @Override
+                public boolean isConnected() {
+                    return MqttHandler.this.isConnected();
+                }
+
+                @Override
+                public void publish(byte[] payload, AsyncPublisher.PublishCallback callback) throws MqttException {
+                    publishPollution(payload, callback);
+                }
+            });
+        } catch (IOException e) {
+            logger.severe("Failed to open pollution spool, unsent data will be lost: " + e.getMessage());
+            spool = null;
+        }
+    }
+
+    public boolean isConnected() {
+        if (asyncClient != null) {
+            return asyncClient.isConnected();
         }
+        return mqttClient != null && mqttClient.isConnected();
+    }
+
+    /**
+     * @return stato dello spool dei dati di inquinamento non consegnati
+     */
+    public String getSpoolMetrics() {
+        return spool != null ? spool.metrics() : "spool disabled";
     }
 
+    private byte[] encodePollutionBinary(String plantId, List<MeasurementBatch> series,
+                                         Map<String, byte[]> sketches, long timestamp) {
+        PollutionDataMessage.Builder builder = PollutionDataMessage.newBuilder()
+                .setPlantId(plantId)
+                .setTimestamp(timestamp);
+        for (MeasurementBatch batch : series) {
+            byte[] sketch = sketches.remove(batch.getSensorType());
+            if (Config.POLLUTION_COMPRESSION) {
+                // Il decoder ricava averages dalla serie principale
+                builder.addSeries(PayloadCodec.encodeSeries(
+                        batch.getSensorType(), batch.timestamps(), batch.values(), batch.size(), sketch));
+                continue;
+            }
+            SensorSeriesMessage.Builder item = SensorSeriesMessage.newBuilder().setType(batch.getSensorType());
+            double[] values = batch.values();
+            boolean primary = Config.POLLUTION_PRIMARY_TYPE.equals(batch.getSensorType());
+            for (int i = 0; i < batch.size(); i++) {
+                item.addAverages(values[i]);
+                if (primary) {
+                    builder.addAverages(values[i]);
+                }
+            }
+            if (sketch != null) {
+                item.setSketch(ByteString.copyFrom(sketch));
+            }
+            builder.addSeries(item.build());
+        }
+        // Sensori con misurazioni nell'intervallo ma nessuna finestra completata
+        for (Map.Entry<String, byte[]> entry : sketches.entrySet()) {
+            builder.addSeries(SensorSeriesMessage.newBuilder()
+                    .setType(entry.getKey())
+                    .setSketch(ByteString.copyFrom(entry.getValue()))
+                    .build());
+        }
+        return PayloadCodec.encodePollutionData(builder.build());
+    }
 
+    private byte[] encodePollutionJson(String plantId, List<MeasurementBatch> series,
+                                       Map<String, byte[]> sketches, long timestamp) {
+        List<Double> primaryAverages = new ArrayList<>();
+        List<SensorSeries> items = new ArrayList<>(series.size());
+        for (MeasurementBatch batch : series) {
+            List<Double> averages = new ArrayList<>(batch.size());
+            List<Long> timestamps = new ArrayList<>(batch.size());
+            for (int i = 0; i < batch.size(); i++) {
+                averages.add(batch.values()[i]);
+                timestamps.add(batch.timestamps()[i]);
+            }
+            if (Config.POLLUTION_PRIMARY_TYPE.equals(batch.getSensorType())) {
+                primaryAverages = averages;
+            }
+            items.add(new SensorSeries(batch.getSensorType(), averages, timestamps,
+                    sketches.remove(batch.getSensorType())));
+        }
+        for (Map.Entry<String, byte[]> entry : sketches.entrySet()) {
+            items.add(new SensorSeries(entry.getKey(), new ArrayList<>(), new ArrayList<>(), entry.getValue()));
+        }
+        return gson.toJson(new PollutionData(plantId, primaryAverages, timestamp, items))
+                .getBytes(StandardCharsets.UTF_8);
+    }
 
     public void disconnect() {
+        if (spool != null) {
+            spool.shutdown();
+        }
         try {
             if (mqttClient != null && mqttClient.isConnected()) {
                 mqttClient.disconnect();
                 mqttClient.close();
             }
+            if (asyncClient != null && asyncClient.isConnected()) {
+                asyncClient.disconnect().waitForCompletion();
+                asyncClient.close();
+            }
         } catch (MqttException e) {
             logger.severe("Error disconnecting MQTT client: " + e.getMessage());
         }
@@ -0,0 +1,234 @@
+package desm.powerplant.communication;
+
+import java.util.logging.Logger;
+
+/**
+ * Stadio di ingest tra il callback di Paho e la NewElectionQueue.
+ * Il callback si limita a copiare topic e payload grezzo in un ring a capacità fissa;
+ * un thread dedicato svuota il ring a blocchi e li passa al consumer, che decodifica
+ * e inserisce le richieste nella coda delle elezioni. In questo modo un consumer lento
+ * non blocca il loop di ricezione di Paho né i keepalive verso il broker.
+ * Le rimozioni (payload vuoti, che cancellano un messaggio retained) non vengono mai
+ * scartate: perderne una lascerebbe in coda delle elezioni una richiesta già chiusa.
+ * Il ring non conosce le scadenze delle richieste, che richiederebbero la decodifica:
+ * con SHED_EXPIRED è il consumer a scartare quelle scadute dopo averle decodificate,
+ * registrandole con countShed.
+ */
+public class MqttIngestQueue implements Runnable {
+    private static final Logger logger = Logger.getLogger(MqttIngestQueue.class.getName());
+
+    /**
+     * Consuma un blocco di messaggi estratti dal ring, nell'ordine di arrivo.
+     * Gli array sono riutilizzati tra un blocco e l'altro: validi solo fino al ritorno.
+     */
+    public interface Consumer {
+        void consume(String[] topics, byte[][] payloads, int count);
+    }
+
+    private final int capacity;
+    private final IngestOverflowPolicy policy;
+    private final long lagThresholdMs;
+    private final Consumer consumer;
+
+    private final String[] topics;
+    private final byte[][] payloads;
+    private final long[] arrivals;
+    private int head;
+    private int count;
+    private final Object lock = new Object();
+    private volatile boolean running;
+
+    // Array del thread consumer, riutilizzati a ogni blocco
+    private final String[] drainTopics;
+    private final byte[][] drainPayloads;
+    private final long[] drainArrivals;
+
+    // Contatori, protetti da lock
+    private long ingested;
+    private long processed;
+    private long dropped;
+    private long shed;
+    private long lagging;
+    private long blocked;
+    private int maxDepth;
+
+    public MqttIngestQueue(int capacity, IngestOverflowPolicy policy, long lagThresholdMs,
+                           Consumer consumer) {
+        this.capacity = capacity;
+        this.policy = policy;
+        this.lagThresholdMs = lagThresholdMs;
+        this.consumer = consumer;
+        this.topics = new String[capacity];
+        this.payloads = new byte[capacity][];
+        this.arrivals = new long[capacity];
+        this.drainTopics = new String[capacity];
+        this.drainPayloads = new byte[capacity][];
+        this.drainArrivals = new long[capacity];
+    }
+
+    public void start() {
+        running = true;
+        Thread worker = new Thread(this, "MqttIngest");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Chiamato dal thread di callback di Paho. Accoda e ritorna senza decodificare,
+     * salvo con la policy BLOCK a coda piena.
+     */
+    public void offer(String topic, byte[] payload) {
+        long now = System.currentTimeMillis();
+        synchronized (lock) {
+            if (count == capacity) {
+                if (!makeRoom()) {
+                    return;
+                }
+            }
+            int tail = (head + count) % capacity;
+            topics[tail] = topic;
+            payloads[tail] = payload;
+            arrivals[tail] = now;
+            count++;
+            ingested++;
+            maxDepth = Math.max(maxDepth, count);
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Libera almeno un posto secondo la policy. Deve essere chiamato tenendo lock.
+     * Se in coda ci sono solo rimozioni, che non si scartano, attende come con BLOCK.
+     * @return false se il messaggio nuovo va scartato (thread interrotto o coda fermata)
+     */
+    private boolean makeRoom() {
+        switch (policy) {
+            case BLOCK:
+                return awaitRoom();
+            case SHED_EXPIRED:
+            case DROP_OLDEST:
+            default:
+                return dropOldest() || awaitRoom();
+        }
+    }
+
+    private boolean awaitRoom() {
+        blocked++;
+        while (count == capacity && running) {
+            try {
+                lock.wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                dropped++;
+                return false;
+            }
+        }
+        if (count == capacity) {
+            dropped++;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Scarta il messaggio più vecchio che non sia una rimozione; le rimozioni che lo
+     * precedono avanzano di un posto, nello stesso ordine.
+     * @return false se in coda ci sono solo rimozioni
+     */
+    private boolean dropOldest() {
+        int skip = 0;
+        while (skip < count && payloads[(head + skip) % capacity].length == 0) {
+            skip++;
+        }
+        if (skip == count) {
+            return false;
+        }
+        for (int i = skip; i > 0; i--) {
+            int to = (head + i) % capacity;
+            int from = (head + i - 1) % capacity;
+            topics[to] = topics[from];
+            payloads[to] = payloads[from];
+            arrivals[to] = arrivals[from];
+        }
+        topics[head] = null;
+        payloads[head] = null;
+        head = (head + 1) % capacity;
+        count--;
+        dropped++;
+        return true;
+    }
+
+    /**
+     * Registra le richieste scadute che il consumer ha scartato dopo la decodifica
+     * (policy SHED_EXPIRED).
+     */
+    public void countShed(int n) {
+        synchronized (lock) {
+            shed += n;
+        }
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                int n = drain();
+                consumer.consume(drainTopics, drainPayloads, n);
+                for (int i = 0; i < n; i++) {
+                    drainTopics[i] = null;
+                    drainPayloads[i] = null;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                logger.severe("Error in MQTT ingest worker: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Attende che ci sia almeno un messaggio e sposta l'intero contenuto del ring
+     * negli array del consumer con un'unica acquisizione del lock.
+     */
+    private int drain() throws InterruptedException {
+        synchronized (lock) {
+            while (count == 0 && running) {
+                lock.wait();
+            }
+            long now = System.currentTimeMillis();
+            int n = count;
+            for (int i = 0; i < n; i++) {
+                int idx = (head + i) % capacity;
+                drainTopics[i] = topics[idx];
+                drainPayloads[i] = payloads[idx];
+                drainArrivals[i] = arrivals[idx];
+                topics[idx] = null;
+                payloads[idx] = null;
+                if (now - drainArrivals[i] > lagThresholdMs) {
+                    lagging++;
+                }
+            }
+            head = (head + n) % capacity;
+            count = 0;
+            processed += n;
+            lock.notifyAll();
+            return n;
+        }
+    }
+
+    public void shutdown() {
+        running = false;
+        synchronized (lock) {
+            lock.notifyAll();
+        }
+    }
+
+    public String metrics() {
+        synchronized (lock) {
+            return String.format(
+                    "policy=%s depth=%d/%d (max %d) ingested=%d processed=%d dropped=%d shed=%d lagging=%d blocked=%d",
+                    policy, count, capacity, maxDepth, ingested, processed, dropped, shed, lagging, blocked);
+        }
+    }
+}
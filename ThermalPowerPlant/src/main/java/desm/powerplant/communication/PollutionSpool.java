@@ -0,0 +1,346 @@
+package desm.powerplant.communication;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.logging.Logger;
+
+/**
+ * Spool su file mappato in memoria per i messaggi di inquinamento non consegnati al broker.
+ * Il file contiene un'intestazione (head, tail, numero di record) e un'area dati circolare
+ * di record [lunghezza int][payload]; un record che non entra in fondo all'area viene scritto
+ * dall'inizio, lasciando un marcatore di wrap (lunghezza -1). A spool pieno si scartano
+ * i record più vecchi. Le scritture vanno nella page cache, quindi sopravvivono al riavvio
+ * della centrale e del broker senza bloccare il chiamante su un fsync.
+ *
+ * Un thread dedicato, quando il broker è raggiungibile, ripubblica i record in ordine di
+ * arrivo, uno alla volta e al più drainRatePerSecond al secondo, e rimuove ogni record solo
+ * dopo l'ack del broker. Lo stesso thread forza su disco le modifiche senza tenere il lock,
+ * così append non attende mai la scrittura del file.
+ */
+public class PollutionSpool implements Runnable {
+    private static final Logger logger = Logger.getLogger(PollutionSpool.class.getName());
+
+    /**
+     * Destinazione dei record ripubblicati dal thread di drain.
+     */
+    public interface Drain {
+        boolean isConnected();
+
+        void publish(byte[] payload, AsyncPublisher.PublishCallback callback) throws Exception;
+    }
+
+    private static final int MAGIC = 0x53504F4C;
+    private static final int HEADER_SIZE = 32;
+    private static final int MAGIC_OFFSET = 0;
+    private static final int HEAD_OFFSET = 8;
+    private static final int TAIL_OFFSET = 16;
+    private static final int COUNT_OFFSET = 24;
+    private static final int WRAP_MARKER = -1;
+    private static final long RETRY_DELAY_MS = 1000;
+
+    private final MappedByteBuffer map;
+    private final int capacity;
+    private final long drainIntervalMs;
+    private final Object lock = new Object();
+    private Drain drain;
+    private volatile boolean running;
+
+    // Offset nell'area dati, protetti da lock
+    private int head;
+    private int tail;
+    private int count;
+    private boolean dirty;
+    private long evictedAtPeek;
+
+    // Metriche, protette da lock
+    private long spooled;
+    private long drained;
+    private long evicted;
+    private long rejected;
+
+    public PollutionSpool(File file, int capacityBytes, int drainRatePerSecond) throws IOException {
+        this.capacity = capacityBytes;
+        this.drainIntervalMs = drainRatePerSecond > 0 ? 1000L / drainRatePerSecond : 0;
+        boolean existing = file.exists() && file.length() == HEADER_SIZE + capacityBytes;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
+             FileChannel channel = raf.getChannel()) {
+            this.map = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) capacityBytes);
+        }
+        boolean recovered = existing && map.getInt(MAGIC_OFFSET) == MAGIC;
+        if (recovered && !validHeader()) {
+            logger.warning("Discarding pollution spool with an invalid header");
+            recovered = false;
+        }
+        if (recovered) {
+            head = (int) map.getLong(HEAD_OFFSET);
+            tail = (int) map.getLong(TAIL_OFFSET);
+            count = map.getInt(COUNT_OFFSET);
+            normalizeHead();
+            logger.info("Recovered pollution spool with " + count + " pending messages");
+        } else {
+            map.putInt(MAGIC_OFFSET, MAGIC);
+            writeHeader();
+        }
+    }
+
+    /**
+     * Un'intestazione scritta su disco mentre veniva aggiornata può non essere coerente.
+     */
+    private boolean validHeader() {
+        long storedHead = map.getLong(HEAD_OFFSET);
+        long storedTail = map.getLong(TAIL_OFFSET);
+        int storedCount = map.getInt(COUNT_OFFSET);
+        return storedHead >= 0 && storedHead <= capacity && storedTail >= 0 && storedTail <= capacity
+                && storedCount >= 0 && (long) storedCount * 4 <= capacity;
+    }
+
+    public void start(Drain drain) {
+        this.drain = drain;
+        running = true;
+        Thread worker = new Thread(this, "PollutionSpool");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Accoda un messaggio non consegnato. Non blocca: se lo spool è pieno
+     * scarta i record più vecchi.
+     */
+    public void append(byte[] payload) {
+        int recordSize = 4 + payload.length;
+        synchronized (lock) {
+            if (recordSize > capacity) {
+                rejected++;
+                return;
+            }
+            int position;
+            while ((position = reserve(recordSize)) < 0) {
+                evictOldest();
+            }
+            ByteBuffer view = map.duplicate();
+            view.position(HEADER_SIZE + position);
+            view.putInt(payload.length);
+            view.put(payload);
+            tail = position + recordSize;
+            count++;
+            spooled++;
+            writeHeader();
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Trova la posizione in cui scrivere un record di recordSize byte, scrivendo
+     * il marcatore di wrap se serve ripartire dall'inizio dell'area dati.
+     * @return la posizione, oppure -1 se non c'è spazio contiguo sufficiente
+     */
+    private int reserve(int recordSize) {
+        if (count == 0) {
+            head = 0;
+            tail = 0;
+            return 0;
+        }
+        if (tail > head) {
+            if (capacity - tail >= recordSize) {
+                return tail;
+            }
+            if (head >= recordSize) {
+                if (capacity - tail >= 4) {
+                    map.putInt(HEADER_SIZE + tail, WRAP_MARKER);
+                }
+                return 0;
+            }
+            return -1;
+        }
+        // Area dati già ripartita dall'inizio: lo spazio libero è tra tail e head
+        return head - tail >= recordSize ? tail : -1;
+    }
+
+    private void evictOldest() {
+        head = nextRecord(head);
+        head += 4 + map.getInt(HEADER_SIZE + head);
+        count--;
+        evicted++;
+        normalizeHead();
+    }
+
+    /**
+     * Porta head sul prossimo record valido, saltando il marcatore di wrap.
+     */
+    private void normalizeHead() {
+        if (count == 0) {
+            head = 0;
+            tail = 0;
+        } else {
+            head = nextRecord(head);
+        }
+    }
+
+    /**
+     * @return la posizione del record che inizia in position, seguendo un eventuale wrap
+     */
+    private int nextRecord(int position) {
+        if (capacity - position < 4 || map.getInt(HEADER_SIZE + position) == WRAP_MARKER) {
+            return 0;
+        }
+        return position;
+    }
+
+    /**
+     * Legge il record più vecchio senza rimuoverlo.
+     */
+    private byte[] peek() {
+        synchronized (lock) {
+            if (count == 0) {
+                return null;
+            }
+            ByteBuffer view = map.duplicate();
+            view.position(HEADER_SIZE + head);
+            byte[] payload = new byte[view.getInt()];
+            view.get(payload);
+            evictedAtPeek = evicted;
+            return payload;
+        }
+    }
+
+    /**
+     * Rimuove il record più vecchio dopo l'ack, a meno che nel frattempo non sia
+     * stato scartato per fare spazio (in quel caso head è già avanzato).
+     */
+    private void removeHead() {
+        synchronized (lock) {
+            if (count == 0 || evicted != evictedAtPeek) {
+                return;
+            }
+            head += 4 + map.getInt(HEADER_SIZE + head);
+            count--;
+            drained++;
+            normalizeHead();
+            writeHeader();
+        }
+    }
+
+    private void writeHeader() {
+        map.putLong(HEAD_OFFSET, head);
+        map.putLong(TAIL_OFFSET, tail);
+        map.putInt(COUNT_OFFSET, count);
+        dirty = true;
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                awaitWork();
+                byte[] payload = peek();
+                if (payload == null) {
+                    continue;
+                }
+                if (publishAndWait(payload)) {
+                    removeHead();
+                    if (drainIntervalMs > 0) {
+                        Thread.sleep(drainIntervalMs);
+                    }
+                } else {
+                    Thread.sleep(RETRY_DELAY_MS);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                logger.severe("Error draining pollution spool: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Attende che ci siano record da ripubblicare e che il broker sia raggiungibile.
+     * Nel frattempo forza su disco le modifiche allo spool, fuori dal lock: gli append
+     * concorrenti finiscono nella page cache e vengono forzati al giro successivo.
+     */
+    private void awaitWork() throws InterruptedException {
+        while (true) {
+            synchronized (lock) {
+                if (!running || (count > 0 && drain.isConnected())) {
+                    return;
+                }
+                if (!dirty) {
+                    lock.wait(RETRY_DELAY_MS);
+                    continue;
+                }
+                dirty = false;
+            }
+            map.force();
+        }
+    }
+
+    private boolean publishAndWait(byte[] payload) throws InterruptedException {
+        final Object done = new Object();
+        final boolean[] result = new boolean[2];
+        try {
+            drain.publish(payload, new AsyncPublisher.PublishCallback() {
+                @Override
+                public void onComplete() {
+                    synchronized (done) {
+                        result[0] = true;
+                        result[1] = true;
+                        done.notifyAll();
+                    }
+                }
+
+                @Override
+                public void onFailure(Throwable cause) {
+                    synchronized (done) {
+                        result[1] = true;
+                        done.notifyAll();
+                    }
+                }
+            });
+        } catch (Exception e) {
+            return false;
+        }
+        synchronized (done) {
+            while (!result[1]) {
+                done.wait();
+            }
+            return result[0];
+        }
+    }
+
+    /**
+     * @return true se ci sono messaggi in attesa: i nuovi messaggi vanno accodati
+     * allo spool per non superare quelli più vecchi
+     */
+    public boolean hasPending() {
+        synchronized (lock) {
+            return count > 0;
+        }
+    }
+
+    public void shutdown() {
+        running = false;
+        synchronized (lock) {
+            lock.notifyAll();
+            dirty = false;
+        }
+        map.force();
+    }
+
+    public String metrics() {
+        synchronized (lock) {
+            return String.format("pending=%d spooled=%d drained=%d evicted=%d rejected=%d used=%d/%d bytes",
+                    count, spooled, drained, evicted, rejected, usedBytes(), capacity);
+        }
+    }
+
+    private int usedBytes() {
+        if (count == 0) {
+            return 0;
+        }
+        return tail > head ? tail - head : capacity - head + tail;
+    }
+}
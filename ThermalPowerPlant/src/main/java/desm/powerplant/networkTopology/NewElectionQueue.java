@@ -1,10 +1,13 @@
 package desm.powerplant.networkTopology;
 
+import desm.common.Config;
 import desm.common.EnergyRequest;
 
 import java.util.ArrayList;
 import java.util.Comparator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.logging.Logger;
 
 /**
@@ -16,9 +19,89 @@ public class NewElectionQueue{
     private static final Logger logger = Logger.getLogger(NewElectionQueue.class.getName());
     private final List<EnergyRequest> energyRequests = new ArrayList<>();
 
+    // Richieste già inserite o chiuse, con la scadenza della versione accettata
+    // (Long.MAX_VALUE se chiusa o senza scadenza); le più vecchie vengono dimenticate
+    private final Map<String, Long> seen = new LinkedHashMap<String, Long>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+            return size() > Config.PLANT_SEEN_REQUESTS;
+        }
+    };
+
+    /**
+     * Inserisce una nuova richiesta. Le richieste già scadute vengono scartate senza
+     * avviare alcuna elezione; se la richiesta è già in coda (ripubblicata dal provider)
+     * viene mantenuta la versione con la scadenza più lontana. Una richiesta già ricevuta,
+     * anche se nel frattempo presa per un'elezione o chiusa, viene ignorata a meno che non
+     * abbia una scadenza più lontana (ripubblicazione per SLA).
+     */
     public synchronized void put(EnergyRequest newRequest) {
+        if (insert(newRequest, System.currentTimeMillis())) {
+            notify();
+        }
+    }
+
+    /**
+     * Inserisce tutte le richieste di un batch con un'unica acquisizione del monitor
+     * e un'unica notifica, con le stesse regole di put.
+     */
+    public synchronized void putAll(List<EnergyRequest> newRequests) {
+        long now = System.currentTimeMillis();
+        boolean added = false;
+        for (EnergyRequest request : newRequests) {
+            added |= insert(request, now);
+        }
+        if (added) {
+            notify();
+        }
+    }
+
+    /**
+     * @return true se la richiesta è stata aggiunta come nuova voce della coda
+     */
+    private boolean insert(EnergyRequest newRequest, long now) {
+        if (newRequest.isExpired(now)) {
+            logger.info("Scartata EnergyRequest scaduta: " + newRequest.getRequestId());
+            return false;
+        }
+        Long seenDeadline = seen.get(newRequest.getRequestId());
+        long deadline = newRequest.hasDeadline() ? newRequest.getDeadline() : Long.MAX_VALUE;
+        if (seenDeadline != null && deadline <= seenDeadline) {
+            return false;
+        }
+        seen.put(newRequest.getRequestId(), deadline);
+        for (int i = 0; i < energyRequests.size(); i++) {
+            EnergyRequest queued = energyRequests.get(i);
+            if (queued.getRequestId().equals(newRequest.getRequestId())) {
+                if (isLaterDeadline(newRequest, queued)) {
+                    energyRequests.set(i, newRequest);
+                }
+                return false;
+            }
+        }
         energyRequests.add(newRequest);
-        notify();
+        return true;
+    }
+
+    private boolean isLaterDeadline(EnergyRequest candidate, EnergyRequest queued) {
+        if (!queued.hasDeadline()) {
+            return false;
+        }
+        return !candidate.hasDeadline() || candidate.getDeadline() > queued.getDeadline();
+    }
+
+    /**
+     * Rimuove dalla coda le richieste scadute. Deve essere chiamato tenendo il monitor.
+     */
+    private void dropExpired() {
+        long now = System.currentTimeMillis();
+        energyRequests.removeIf(request -> {
+            if (request.isExpired(now)) {
+                logger.info("Rimossa EnergyRequest scaduta: " + request.getRequestId());
+                return true;
+            }
+            return false;
+        });
     }
     public synchronized void removeByRequestId(String requestId) {
         if (requestId == null) {
@@ -28,6 +111,8 @@ public class NewElectionQueue{
         boolean removed = energyRequests.removeIf(request ->
                 requestId.equals(request.getRequestId())
         );
+        // Chiusa: le ricezioni successive (es. un batch retained) vanno ignorate
+        seen.put(requestId, Long.MAX_VALUE);
 
         if (removed) {
             logger.info("Rimossa EnergyRequest con ID: " + requestId);
@@ -37,12 +122,14 @@ public class NewElectionQueue{
     public synchronized EnergyRequest peek() {
         EnergyRequest message = null;
 
+        dropExpired();
         while(energyRequests.isEmpty()) {
             try {
                 wait();
             } catch (InterruptedException e) {
                 e.printStackTrace();
             }
+            dropExpired();
         }
 
         EnergyRequest oldest = energyRequests.stream()
@@ -55,12 +142,14 @@ public class NewElectionQueue{
     public synchronized EnergyRequest take() {
         EnergyRequest message = null;
 
+        dropExpired();
         while(energyRequests.isEmpty()) {
             try {
                 wait();
             } catch (InterruptedException e) {
                 e.printStackTrace();
             }
+            dropExpired();
         }
 
         EnergyRequest oldest = energyRequests.stream()
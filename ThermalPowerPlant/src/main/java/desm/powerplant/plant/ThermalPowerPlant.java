@@ -1,5 +1,6 @@
 package desm.powerplant.plant;
 
+import desm.common.Config;
 import desm.common.PlantInfo;
 import desm.common.RegistrationResult;
 import desm.powerplant.communication.Client;
@@ -10,10 +11,16 @@ import desm.powerplant.networkTopology.ElectionDispatcher;
 import desm.powerplant.communication.grpc.PlantClient;
 import desm.powerplant.communication.grpc.PlantServer;
 import desm.powerplant.communication.grpc.PlantServiceImpl;
-import desm.powerplant.pollutionSensor.simulator.Buffer;
-import desm.powerplant.pollutionSensor.simulator.Measurement;
-import desm.powerplant.pollutionSensor.simulator.PollutionSensor;
-import desm.powerplant.pollutionSensor.WindowBuffer;
+import desm.powerplant.pollutionSensor.FlushPolicy;
+import desm.powerplant.pollutionSensor.IntervalSketches;
+import desm.powerplant.pollutionSensor.MeasurementBatch;
+import desm.powerplant.pollutionSensor.MeasurementBatchPool;
+import desm.powerplant.pollutionSensor.PollutionPublisher;
+import desm.powerplant.pollutionSensor.PrimitiveRingBuffer;
+import desm.powerplant.pollutionSensor.ScheduledSensor;
+import desm.powerplant.pollutionSensor.SensorScheduler;
+import desm.powerplant.pollutionSensor.SensorSource;
+import desm.powerplant.pollutionSensor.WindowStage;
 
 
 import java.util.ArrayList;
@@ -36,9 +43,8 @@ public class ThermalPowerPlant {
     private final String adminServerAddress;
     private final int adminServerPort;
 
-    private List<Measurement> windowForSliding;
-
-    private final List<Double> computedAverages;
+    // Pool condiviso dei blocchi colonnari usati da lettura, medie e invio
+    private final MeasurementBatchPool batchPool;
     // Network components
     private Client adminClient;
     private PlantServer plantServer;
@@ -48,13 +54,19 @@ public class ThermalPowerPlant {
 
     // Sensor and communication
     private MqttHandler mqttHandler;
-    private Buffer buffer;
-    private PollutionSensor sensor;
-    private Thread bufferReaderThread;
-    private Thread mqttSenderThread;
-    private volatile boolean isRunning = false;
+    // Un buffer per sensore, tutti campionati dallo stesso scheduler
+    private final List<PrimitiveRingBuffer> sensorBuffers = new ArrayList<>();
+    private SensorScheduler sensorScheduler;
+    // Pipeline push dei sensori: sorgente -> sliding window per tipo -> pubblicazione
+    private SensorSource sensorSource;
+    private PollutionPublisher pollutionPublisher;
+    private IntervalSketches intervalSketches;
+    private long lastMetricsLog;
     private static final int SLIDING_WINDOW_SIZE = 8;
     private static final int SLIDING_STEP = 4;
+    private static final int READ_BATCH_SIZE = 1024;
+    private static final int MAX_POOLED_BATCHES = 16;
+    private static final long METRICS_LOG_INTERVAL_MS = 10000;
 
 
     // State management
@@ -62,20 +74,15 @@ public class ThermalPowerPlant {
     private boolean isAloneInNetwork = false;
     private NewElectionQueue newElectionQueue;
 
-    private final Object slidingWindowLock = new Object();
-    private final Object averagesLock = new Object();
-
     public ThermalPowerPlant(String plantId, String grpcAddress, int grpcPort,
                              String adminServerAddress, int adminServerPort) {
         this.plantInfo = new PlantInfo(plantId, grpcAddress, grpcPort);
         this.adminServerAddress = adminServerAddress;
         this.adminServerPort = adminServerPort;
         this.newElectionQueue = new NewElectionQueue();
-        this.buffer = new WindowBuffer();
         logger.info("Creating Thermal Power Plant with ID: " + plantId +
                 " on address: " + grpcAddress + ":" + grpcPort);
-        this.windowForSliding = new ArrayList<>();
-        this.computedAverages = new ArrayList<>();
+        this.batchPool = new MeasurementBatchPool(READ_BATCH_SIZE, MAX_POOLED_BATCHES);
     }
     public static void main(String[] args) {
         Scanner scanner = new Scanner(System.in);
@@ -316,18 +323,40 @@ public class ThermalPowerPlant {
     }
 
     /**
-     * Avvia l'acquisizione dati dal sensore di inquinamento creando thread separati
-     * per la lettura del buffer e l'invio periodico dei dati via MQTT.
+     * Avvia l'acquisizione dati dai sensori di inquinamento (Config.PLANT_SENSOR_TYPES)
+     * collegando la pipeline push: un unico scheduler campiona tutti i sensori, la sorgente
+     * estrae le misurazioni dai loro buffer appena arrivano, la sliding window calcola le
+     * medie per tipo e il publisher le invia via MQTT in un solo messaggio quando la
+     * FlushPolicy lo richiede. Ogni stadio chiede dati a monte solo quando può
+     * gestirli, fino ai sensori.
      */
     private void startPollutionSensorAcquisition() {
         try {
-            this.sensor = new PollutionSensor(buffer);
-            sensor.start();
-            bufferReaderThread = new Thread(this::bufferReaderTasks);
-            bufferReaderThread.start();
+            String plantId = plantInfo.getPLANT_ID();
+            sensorScheduler = new SensorScheduler();
+            for (int i = 0; i < Config.PLANT_SENSOR_TYPES.length; i++) {
+                String type = Config.PLANT_SENSOR_TYPES[i];
+                PrimitiveRingBuffer buffer = new PrimitiveRingBuffer(READ_BATCH_SIZE, Config.PLANT_SENSOR_BUFFER_CAPACITY);
+                sensorBuffers.add(buffer);
+                sensorScheduler.register(new ScheduledSensor(plantId + "-" + type, type,
+                        Config.PLANT_SENSOR_MEANS[i], Config.PLANT_SENSOR_VARIANCES[i],
+                        Config.PLANT_SENSOR_PERIOD_MS, buffer));
+            }
 
-            mqttSenderThread = new Thread(this::mqttSenderTask);
-            mqttSenderThread.start();
+            sensorSource = new SensorSource(sensorBuffers, batchPool);
+            intervalSketches = new IntervalSketches(Config.POLLUTION_SKETCH_COMPRESSION);
+            WindowStage windowStage = new WindowStage(SLIDING_WINDOW_SIZE, SLIDING_STEP, batchPool, plantId,
+                    intervalSketches);
+            FlushPolicy flushPolicy = new FlushPolicy(Config.POLLUTION_FLUSH_MAX_AVERAGES,
+                    Config.POLLUTION_FLUSH_MIN_DELAY_MS, Config.POLLUTION_FLUSH_MAX_DELAY_MS,
+                    Config.POLLUTION_SPIKE_SIGMAS);
+            pollutionPublisher = new PollutionPublisher(this::sendAverages, batchPool, plantId,
+                    flushPolicy, Config.POLLUTION_FLUSH_MAX_AVERAGES * 4);
+
+            pollutionPublisher.start();
+            sensorSource.subscribe(windowStage);
+            windowStage.subscribe(pollutionPublisher);
+            sensorScheduler.start();
 
         } catch (Exception e) {
             logger.severe("Failed to start pollution sensor: " + e.getMessage());
@@ -336,118 +365,28 @@ public class ThermalPowerPlant {
     }
 
     /**
-     * Task eseguito in thread separato per leggere continuamente le misurazioni
-     * dal buffer del sensore e inserire i dati che verranno trattati tramite
-     * la sliding window per il calcolo delle medie.
+     * Invia al server amministrativo le medie pronte di tutti i sensori tramite MQTT,
+     * insieme agli sketch dei quantili delle misurazioni dall'invio precedente.
+     * Chiamato dal thread del PollutionPublisher; ogni METRICS_LOG_INTERVAL_MS
+     * registra anche le metriche di pubblicazione e di ingest.
      */
-    private void bufferReaderTasks(){
-        while(sensor.isAlive()){
-            try{
-                List<Measurement> measurements = buffer.readAllAndClean();
-                System.out.println(measurements.size());
-                synchronized (slidingWindowLock){
-                    windowForSliding.addAll(measurements);
-
-                }
-                List<Double> newAverages = processedSlidingWindow();
-                synchronized (averagesLock) {
-                    computedAverages.addAll(newAverages);
-
-                }
-
-                Thread.sleep(100);
-            } catch (InterruptedException e) {
-                logger.info("Buffer reader thread interrupted");
-                Thread.currentThread().interrupt();
-                break;
-            } catch (Exception e) {
-                logger.severe("Error in buffer reader thread: " + e.getMessage());
+    private void sendAverages(List<MeasurementBatch> series, long timestamp) {
+        mqttHandler.sendPollutionData(plantInfo.getPLANT_ID(), series, intervalSketches.swap(), timestamp);
+
+        if (timestamp - lastMetricsLog >= METRICS_LOG_INTERVAL_MS) {
+            lastMetricsLog = timestamp;
+            logger.info("MQTT publish metrics: " + mqttHandler.getPublishMetrics());
+            logger.info("MQTT ingest metrics: " + mqttHandler.getIngestMetrics());
+            logger.info("Pollution flush metrics: " + pollutionPublisher.metrics());
+            logger.info("Pollution spool: " + mqttHandler.getSpoolMetrics());
+            long blocked = 0;
+            for (PrimitiveRingBuffer buffer : sensorBuffers) {
+                blocked += buffer.getBlockedSamples();
             }
+            logger.info("Sensor buffers: sensors=" + sensorBuffers.size() + " blocked=" + blocked);
         }
     }
 
-    /**
-     * Task eseguito in thread separato che invia ogni 10 secondi le medie calcolate
-     * al server amministrativo tramite MQTT, svuotando la lista delle medie accumulate.
-     */
-    private void mqttSenderTask() {
-        while (sensor.isAlive()) {
-            try {
-                Thread.sleep(10000);
-
-                List<Double> averagesToSend;
-                synchronized (averagesLock) {
-                    if (computedAverages.isEmpty()) {
-                        logger.info("No averages to send");
-                        continue;
-                    }
-
-                    // Get all computed averages and clear the list
-                    averagesToSend = new ArrayList<>(computedAverages);
-                    computedAverages.clear();
-                }
-
-                // Send averages to administration server via MQTT
-                long timestamp = System.currentTimeMillis();
-                mqttHandler.sendPollutionData(plantInfo.getPLANT_ID(), averagesToSend, timestamp);
-
-
-            } catch (InterruptedException e) {
-                logger.info("MQTT sender thread interrupted");
-                Thread.currentThread().interrupt();
-                break;
-            } catch (Exception e) {
-                logger.severe("Error in MQTT sender thread: " + e.getMessage());
-            }
-        }
-    }
-
-    /**
-     * Elabora SlidingWindowe con sovrapposizione del 50% calcolando le medie
-     * quando sono disponibili almeno 8 misurazioni, poi scarta le 4 più vecchie.
-     * @return lista delle medie calcolate dalle finestre elaborate
-     */
-    private List<Double> processedSlidingWindow() {
-        List<Double> averages = new ArrayList<>();
-
-        synchronized (slidingWindowLock) {
-
-            windowForSliding.sort((m1, m2) -> Long.compare(m1.getTimestamp(), m2.getTimestamp()));
-
-
-            while (windowForSliding.size() >= SLIDING_WINDOW_SIZE) {
-
-                List<Measurement> currentWindow = windowForSliding.subList(0, SLIDING_WINDOW_SIZE);
-
-
-                double average = calculateAverage(currentWindow);
-                averages.add(average);
-
-
-
-                windowForSliding.subList(0, SLIDING_STEP).clear();
-
-            }
-        }
-
-        return averages;
-    }
-
-
-    /**
-      Calcola la media dei valori CO2 da una lista di misurazioni.
-     */
-    private double calculateAverage(List<Measurement> measurements) {
-        if (measurements.isEmpty()) {
-            return 0.0;
-        }
-        double sum = 0.0;
-        for (Measurement measurement : measurements) {
-            sum += measurement.getValue();
-        }
-        return sum / measurements.size();
-    }
-
 
     /**
      * Presenta questa centrale a tutte le altre centrali già presenti nella rete
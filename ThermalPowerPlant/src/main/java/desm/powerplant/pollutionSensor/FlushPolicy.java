@@ -0,0 +1,138 @@
+package desm.powerplant.pollutionSensor;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Decide quando PollutionPublisher deve inviare le medie accumulate:
+ * - SIZE: sono in attesa almeno maxAverages medie
+ * - MAX_LATENCY: la prima media in attesa ha superato il ritardo corrente
+ * - SPIKE: una media si discosta dalla media storica del suo sensore di più di spikeSigmas deviazioni standard
+ *
+ * Il ritardo massimo si adatta alla variabilità delle misurazioni: per ogni tipo di sensore
+ * si mantengono una varianza EWMA veloce e una lenta. Finché il rapporto è circa 1
+ * (centrale stabile) il ritardo resta maxDelayMs; quando la varianza recente cresce
+ * il ritardo si riduce in proporzione, fino a minDelayMs.
+ *
+ * Non è thread-safe: va usato sotto il lock del publisher.
+ */
+public class FlushPolicy {
+
+    public enum Trigger {
+        SIZE, MAX_LATENCY, SPIKE
+    }
+
+    private static final double FAST_ALPHA = 0.3;
+    private static final double SLOW_ALPHA = 0.02;
+    // Osservazioni necessarie prima di considerare stabili le statistiche lente
+    private static final int WARMUP = 8;
+
+    /**
+     * Media e varianza esponenziali di un tipo di sensore.
+     */
+    private static class Stats {
+        double fastMean;
+        double fastVariance;
+        double slowMean;
+        double slowVariance;
+        long observations;
+
+        void update(double value) {
+            if (observations == 0) {
+                fastMean = value;
+                slowMean = value;
+            } else {
+                double fastDiff = value - fastMean;
+                fastMean += FAST_ALPHA * fastDiff;
+                fastVariance = (1 - FAST_ALPHA) * (fastVariance + FAST_ALPHA * fastDiff * fastDiff);
+                double slowDiff = value - slowMean;
+                slowMean += SLOW_ALPHA * slowDiff;
+                slowVariance = (1 - SLOW_ALPHA) * (slowVariance + SLOW_ALPHA * slowDiff * slowDiff);
+            }
+            observations++;
+        }
+
+        boolean isSpike(double value, double sigmas) {
+            return observations >= WARMUP && slowVariance > 0
+                    && Math.abs(value - slowMean) > sigmas * Math.sqrt(slowVariance);
+        }
+
+        double varianceRatio() {
+            if (observations < WARMUP || slowVariance <= 0) {
+                return 1.0;
+            }
+            return fastVariance / slowVariance;
+        }
+    }
+
+    private final int maxAverages;
+    private final long minDelayMs;
+    private final long maxDelayMs;
+    private final double spikeSigmas;
+    private final Map<String, Stats> stats = new HashMap<>();
+    private long currentDelayMs;
+
+    private final long[] flushes = new long[Trigger.values().length];
+    private long spikes;
+
+    public FlushPolicy(int maxAverages, long minDelayMs, long maxDelayMs, double spikeSigmas) {
+        this.maxAverages = maxAverages;
+        this.minDelayMs = minDelayMs;
+        this.maxDelayMs = maxDelayMs;
+        this.spikeSigmas = spikeSigmas;
+        this.currentDelayMs = maxDelayMs;
+    }
+
+    /**
+     * Aggiorna le statistiche del sensore con una nuova media e ricalcola il ritardo.
+     * @return true se la media è un picco che richiede un invio immediato
+     */
+    public boolean observe(String type, double average) {
+        Stats s = stats.get(type);
+        if (s == null) {
+            s = new Stats();
+            stats.put(type, s);
+        }
+        // Il picco si valuta rispetto alla storia precedente, poi lo si include
+        boolean spike = s.isSpike(average, spikeSigmas);
+        s.update(average);
+        if (spike) {
+            spikes++;
+        }
+        updateDelay();
+        return spike;
+    }
+
+    /**
+     * Il ritardo è determinato dal sensore più instabile.
+     */
+    private void updateDelay() {
+        double maxRatio = 1.0;
+        for (Stats s : stats.values()) {
+            maxRatio = Math.max(maxRatio, s.varianceRatio());
+        }
+        long delay = (long) (maxDelayMs / maxRatio);
+        currentDelayMs = Math.max(minDelayMs, Math.min(maxDelayMs, delay));
+    }
+
+    public boolean isSizeReached(int pendingCount) {
+        return pendingCount >= maxAverages;
+    }
+
+    public long getCurrentDelayMs() {
+        return currentDelayMs;
+    }
+
+    public void recordFlush(Trigger trigger) {
+        flushes[trigger.ordinal()]++;
+    }
+
+    public String metrics() {
+        StringBuilder sb = new StringBuilder();
+        for (Trigger trigger : Trigger.values()) {
+            sb.append(trigger.name().toLowerCase()).append('=').append(flushes[trigger.ordinal()]).append(' ');
+        }
+        sb.append("spikes=").append(spikes).append(" delay=").append(currentDelayMs).append(" ms");
+        return sb.toString();
+    }
+}
@@ -0,0 +1,41 @@
+package desm.powerplant.pollutionSensor;
+
+import desm.common.TDigest;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Un TDigest per tipo di sensore, alimentato con le misurazioni grezze dallo stadio
+ * di windowing e svuotato a ogni invio: ogni sketch descrive la distribuzione delle
+ * misurazioni dell'intervallo di reporting, anche se all'admin arrivano solo le medie.
+ */
+public class IntervalSketches {
+
+    private final double compression;
+    private Map<String, TDigest> current = new HashMap<>();
+
+    public IntervalSketches(double compression) {
+        this.compression = compression;
+    }
+
+    public synchronized void add(String type, double[] values, int count) {
+        TDigest digest = current.get(type);
+        if (digest == null) {
+            digest = new TDigest(compression);
+            current.put(type, digest);
+        }
+        for (int i = 0; i < count; i++) {
+            digest.add(values[i]);
+        }
+    }
+
+    /**
+     * @return gli sketch dell'intervallo appena chiuso, per tipo di sensore
+     */
+    public synchronized Map<String, TDigest> swap() {
+        Map<String, TDigest> closed = current;
+        current = new HashMap<>();
+        return closed;
+    }
+}
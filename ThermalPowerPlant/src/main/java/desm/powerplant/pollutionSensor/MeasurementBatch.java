@@ -0,0 +1,95 @@
+package desm.powerplant.pollutionSensor;
+
+/**
+ * Blocco colonnare di misurazioni di un singolo sensore: l'id del sensore è
+ * memorizzato una sola volta (internato dal Simulator) e timestamp e valori stanno in due array
+ * di primitive. Viene riutilizzato tramite MeasurementBatchPool, quindi non
+ * va conservato dopo averlo restituito al pool.
+ */
+public class MeasurementBatch {
+
+    private String sensorId;
+    private String sensorType;
+    private long[] timestamps;
+    private double[] values;
+    private int size;
+
+    public MeasurementBatch(int capacity) {
+        this.timestamps = new long[capacity];
+        this.values = new double[capacity];
+    }
+
+    /**
+     * Imposta il sensore di provenienza e svuota il blocco.
+     */
+    public void reset(String sensorId, String sensorType) {
+        this.sensorId = sensorId;
+        this.sensorType = sensorType;
+        this.size = 0;
+    }
+
+    /**
+     * Aggiunge una misurazione; se il blocco è pieno la capacità raddoppia.
+     */
+    public void add(long timestamp, double value) {
+        if (size == timestamps.length) {
+            ensureCapacity(size * 2);
+        }
+        timestamps[size] = timestamp;
+        values[size] = value;
+        size++;
+    }
+
+    public void ensureCapacity(int capacity) {
+        if (capacity <= timestamps.length) {
+            return;
+        }
+        long[] newTimestamps = new long[capacity];
+        double[] newValues = new double[capacity];
+        System.arraycopy(timestamps, 0, newTimestamps, 0, size);
+        System.arraycopy(values, 0, newValues, 0, size);
+        timestamps = newTimestamps;
+        values = newValues;
+    }
+
+    /**
+     * Usato da chi riempie direttamente gli array (es. il buffer del sensore).
+     */
+    void setSize(int size) {
+        this.size = size;
+    }
+
+    public String getSensorId() {
+        return sensorId;
+    }
+
+    public String getSensorType() {
+        return sensorType;
+    }
+
+    /**
+     * Array interno dei timestamp: sono valide solo le prime size() posizioni.
+     */
+    public long[] timestamps() {
+        return timestamps;
+    }
+
+    /**
+     * Array interno dei valori: sono valide solo le prime size() posizioni.
+     */
+    public double[] values() {
+        return values;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return timestamps.length;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+}
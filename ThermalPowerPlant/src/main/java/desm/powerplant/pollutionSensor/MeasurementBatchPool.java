@@ -0,0 +1,59 @@
+package desm.powerplant.pollutionSensor;
+
+import java.util.ArrayDeque;
+
+/**
+ * Pool condiviso di MeasurementBatch riutilizzabili, usato da tutta la pipeline
+ * dei sensori (lettura del buffer, medie della sliding window, invio MQTT).
+ * Al più maxPooled blocchi liberi vengono conservati, gli altri sono lasciati al GC.
+ */
+public class MeasurementBatchPool {
+
+    private final ArrayDeque<MeasurementBatch> free = new ArrayDeque<>();
+    private final int batchCapacity;
+    private final int maxPooled;
+    private long created;
+
+    public MeasurementBatchPool(int batchCapacity, int maxPooled) {
+        this.batchCapacity = batchCapacity;
+        this.maxPooled = maxPooled;
+    }
+
+    /**
+     * @return un blocco vuoto associato al sensore indicato
+     */
+    public MeasurementBatch acquire(String sensorId, String sensorType) {
+        MeasurementBatch batch;
+        synchronized (free) {
+            batch = free.pollFirst();
+            if (batch == null) {
+                created++;
+            }
+        }
+        if (batch == null) {
+            batch = new MeasurementBatch(batchCapacity);
+        }
+        batch.reset(sensorId, sensorType);
+        return batch;
+    }
+
+    public void release(MeasurementBatch batch) {
+        if (batch == null) {
+            return;
+        }
+        synchronized (free) {
+            if (free.size() < maxPooled) {
+                free.addFirst(batch);
+            }
+        }
+    }
+
+    /**
+     * @return numero di blocchi allocati dall'avvio (a regime resta costante)
+     */
+    public long getCreated() {
+        synchronized (free) {
+            return created;
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package desm.powerplant.pollutionSensor;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Flow;
+import java.util.logging.Logger;
+
+/**
+ * Ultimo stadio della pipeline dei sensori: accumula le medie ricevute, raggruppate per
+ * tipo di sensore, e le consegna tutte insieme al Sender quando la FlushPolicy lo
+ * richiede (dimensione, ritardo massimo adattivo o picco). Il numero di invii
+ * non cresce con il numero di sensori. L'invio avviene su un thread dedicato, che dorme
+ * finché non arriva una media o scade la deadline.
+ *
+ * Se le medie in attesa raggiungono maxPending smette di chiedere blocchi a monte
+ * finché il Sender non le ha consumate.
+ */
+public class PollutionPublisher implements Flow.Subscriber<MeasurementBatch>, Runnable {
+    private static final Logger logger = Logger.getLogger(PollutionPublisher.class.getName());
+
+    /**
+     * Invia le medie di tutti i sensori, un blocco per tipo.
+     * I blocchi tornano al pool al ritorno del metodo.
+     */
+    public interface Sender {
+        void send(List<MeasurementBatch> series, long timestamp);
+    }
+
+    private final Sender sender;
+    private final MeasurementBatchPool pool;
+    private final String plantId;
+    private final FlushPolicy policy;
+    private final int maxPending;
+    private final Object lock = new Object();
+    private Flow.Subscription subscription;
+    private final Map<String, MeasurementBatch> pending = new LinkedHashMap<>();
+    private int pendingCount;
+    private long firstArrival;
+    private boolean spikePending;
+    private boolean awaitingSpace;
+    private volatile boolean running;
+
+    public PollutionPublisher(Sender sender, MeasurementBatchPool pool, String plantId,
+                              FlushPolicy policy, int maxPending) {
+        this.sender = sender;
+        this.pool = pool;
+        this.plantId = plantId;
+        this.policy = policy;
+        this.maxPending = maxPending;
+    }
+
+    public void start() {
+        running = true;
+        Thread flusher = new Thread(this, "PollutionPublisher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+        synchronized (lock) {
+            this.subscription = subscription;
+        }
+        subscription.request(1);
+    }
+
+    @Override
+    public void onNext(MeasurementBatch averages) {
+        boolean requestMore;
+        synchronized (lock) {
+            if (pendingCount == 0) {
+                firstArrival = System.currentTimeMillis();
+            }
+            MeasurementBatch series = pending.get(averages.getSensorType());
+            if (series == null) {
+                series = pool.acquire(plantId, averages.getSensorType());
+                pending.put(averages.getSensorType(), series);
+            }
+            long[] timestamps = averages.timestamps();
+            double[] values = averages.values();
+            for (int i = 0; i < averages.size(); i++) {
+                series.add(timestamps[i], values[i]);
+                if (policy.observe(averages.getSensorType(), values[i])) {
+                    spikePending = true;
+                }
+            }
+            pendingCount += averages.size();
+            requestMore = pendingCount < maxPending;
+            awaitingSpace = !requestMore;
+            lock.notifyAll();
+        }
+        if (requestMore) {
+            subscription.request(1);
+        }
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        logger.severe("Sensor pipeline failed: " + throwable.getMessage());
+    }
+
+    @Override
+    public void onComplete() {
+        shutdown();
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            List<MeasurementBatch> ready = null;
+            try {
+                ready = awaitBatch();
+                if (ready != null) {
+                    sender.send(ready, System.currentTimeMillis());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                logger.severe("Error publishing pollution averages: " + e.getMessage());
+            } finally {
+                if (ready != null) {
+                    for (MeasurementBatch series : ready) {
+                        pool.release(series);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Attende che la FlushPolicy consideri pronte le medie in attesa
+     * e le rimuove, restituendo un blocco per tipo di sensore. Se lo stadio a monte era fermo per mancanza
+     * di spazio gli richiede un nuovo blocco.
+     */
+    private List<MeasurementBatch> awaitBatch() throws InterruptedException {
+        List<MeasurementBatch> ready;
+        boolean resume;
+        synchronized (lock) {
+            while (pendingCount == 0 && running) {
+                lock.wait();
+            }
+            if (pendingCount == 0) {
+                return null;
+            }
+            // Il ritardo viene riletto a ogni risveglio perché la policy lo adatta
+            long remaining = firstArrival + policy.getCurrentDelayMs() - System.currentTimeMillis();
+            while (!spikePending && !policy.isSizeReached(pendingCount) && remaining > 0 && running) {
+                lock.wait(remaining);
+                remaining = firstArrival + policy.getCurrentDelayMs() - System.currentTimeMillis();
+            }
+            if (spikePending) {
+                policy.recordFlush(FlushPolicy.Trigger.SPIKE);
+            } else if (policy.isSizeReached(pendingCount)) {
+                policy.recordFlush(FlushPolicy.Trigger.SIZE);
+            } else {
+                policy.recordFlush(FlushPolicy.Trigger.MAX_LATENCY);
+            }
+            spikePending = false;
+            ready = new ArrayList<>(pending.values());
+            pending.clear();
+            pendingCount = 0;
+            resume = awaitingSpace;
+            awaitingSpace = false;
+        }
+        if (resume) {
+            subscription.request(1);
+        }
+        return ready;
+    }
+
+    /**
+     * @return numero di invii per causa e ritardo corrente della policy
+     */
+    public String metrics() {
+        synchronized (lock) {
+            return policy.metrics();
+        }
+    }
+
+    public void shutdown() {
+        running = false;
+        synchronized (lock) {
+            lock.notifyAll();
+        }
+    }
+}
@@ -0,0 +1,238 @@
+package desm.powerplant.pollutionSensor;
+
+import desm.powerplant.pollutionSensor.simulator.Buffer;
+import desm.powerplant.pollutionSensor.simulator.Measurement;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Implementazione di Buffer basata su due array paralleli di primitive
+ * (timestamp e valori) gestiti come ring buffer.
+ * Le misurazioni sono mantenute ordinate per timestamp al momento dell'inserimento:
+ * nel caso normale (timestamp crescenti) è un'aggiunta in coda O(1), una misurazione
+ * fuori ordine viene spostata indietro solo del numero di posizioni necessario,
+ * senza riordinare tutto il buffer. Il lettore svuota il buffer in blocco negli array
+ * che fornisce, senza creare oggetti Measurement.
+ * La capacità raddoppia se il lettore resta indietro, quindi a regime non alloca.
+ * Con una capacità massima, a buffer pieno addSample blocca il sensore finché
+ * il lettore non libera spazio (backpressure verso SensorScheduler).
+ */
+public class PrimitiveRingBuffer implements Buffer {
+
+    private static final int WINDOW_SIZE = 8;
+    private static final int DEFAULT_CAPACITY = 256;
+
+    private long[] timestamps;
+    private double[] values;
+    private int head;
+    private int count;
+    private final int maxCapacity;
+    private long blockedSamples;
+    private volatile Runnable dataListener;
+    private String sensorId;
+    private String sensorType;
+    private final Object lock = new Object();
+
+    public PrimitiveRingBuffer() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public PrimitiveRingBuffer(int initialCapacity) {
+        this(initialCapacity, Integer.MAX_VALUE);
+    }
+
+    public PrimitiveRingBuffer(int initialCapacity, int maxCapacity) {
+        this.timestamps = new long[Math.min(initialCapacity, maxCapacity)];
+        this.values = new double[timestamps.length];
+        this.maxCapacity = maxCapacity;
+    }
+
+    @Override
+    public void addMeasurement(Measurement m) {
+        addSample(m.getId(), m.getType(), m.getValue(), m.getTimestamp());
+    }
+
+    /**
+     * Inserisce una misurazione mantenendo l'ordine per timestamp.
+     */
+    @Override
+    public void addSample(String id, String type, double value, long timestamp) {
+        synchronized (lock) {
+            sensorId = id;
+            sensorType = type;
+            if (count == maxCapacity) {
+                blockedSamples++;
+                while (count == maxCapacity) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+            }
+            if (count == timestamps.length) {
+                grow();
+            }
+            int capacity = timestamps.length;
+            int pos = count;
+            // Risale dalla coda finché trova una misurazione non successiva
+            while (pos > 0 && timestamps[(head + pos - 1) % capacity] > timestamp) {
+                int from = (head + pos - 1) % capacity;
+                int to = (head + pos) % capacity;
+                timestamps[to] = timestamps[from];
+                values[to] = values[from];
+                pos--;
+            }
+            int slot = (head + pos) % capacity;
+            timestamps[slot] = timestamp;
+            values[slot] = value;
+            count++;
+            lock.notifyAll();
+        }
+        Runnable listener = dataListener;
+        if (listener != null) {
+            listener.run();
+        }
+    }
+
+    /**
+     * Registra un'azione eseguita dopo ogni inserimento, fuori dal lock del buffer.
+     * Permette a un lettore che segue più buffer di attendere su un unico monitor.
+     */
+    public void setDataListener(Runnable listener) {
+        this.dataListener = listener;
+    }
+
+    private void grow() {
+        int capacity = timestamps.length;
+        int newCapacity = (int) Math.min((long) capacity * 2, maxCapacity);
+        long[] newTimestamps = new long[newCapacity];
+        double[] newValues = new double[newCapacity];
+        int firstPart = Math.min(count, capacity - head);
+        System.arraycopy(timestamps, head, newTimestamps, 0, firstPart);
+        System.arraycopy(values, head, newValues, 0, firstPart);
+        System.arraycopy(timestamps, 0, newTimestamps, firstPart, count - firstPart);
+        System.arraycopy(values, 0, newValues, firstPart, count - firstPart);
+        timestamps = newTimestamps;
+        values = newValues;
+        head = 0;
+    }
+
+    /**
+     * Compatibilità con l'interfaccia Buffer: attende almeno WINDOW_SIZE misurazioni
+     * e le restituisce come oggetti Measurement. Preferire drainTo, che non alloca.
+     */
+    @Override
+    public List<Measurement> readAllAndClean() {
+        synchronized (lock) {
+            while (count < WINDOW_SIZE) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return new ArrayList<>();
+                }
+            }
+            List<Measurement> snap = new ArrayList<>(count);
+            int capacity = timestamps.length;
+            for (int i = 0; i < count; i++) {
+                int idx = (head + i) % capacity;
+                snap.add(new Measurement(sensorId, sensorType, values[idx], timestamps[idx]));
+            }
+            head = 0;
+            count = 0;
+            lock.notifyAll();
+            return snap;
+        }
+    }
+
+    /**
+     * Attende che nel buffer ci siano almeno minCount misurazioni e le sposta
+     * negli array forniti dal chiamante.
+     * @return numero di misurazioni copiate (al più outTimestamps.length)
+     */
+    public int awaitAndDrainTo(int minCount, long[] outTimestamps, double[] outValues) throws InterruptedException {
+        synchronized (lock) {
+            while (count < minCount) {
+                lock.wait();
+            }
+            return drainLocked(outTimestamps, outValues);
+        }
+    }
+
+    /**
+     * Attende almeno minCount misurazioni e le sposta nel blocco colonnare,
+     * che viene svuotato e associato al sensore di questo buffer.
+     * @return numero di misurazioni copiate (al più batch.capacity())
+     */
+    public int awaitAndDrainTo(int minCount, MeasurementBatch batch) throws InterruptedException {
+        synchronized (lock) {
+            while (count < minCount) {
+                lock.wait();
+            }
+            batch.reset(sensorId, sensorType);
+            int n = drainLocked(batch.timestamps(), batch.values());
+            batch.setSize(n);
+            return n;
+        }
+    }
+
+    /**
+     * Sposta le misurazioni disponibili nel blocco colonnare senza attendere.
+     * @return numero di misurazioni copiate (al più batch.capacity())
+     */
+    public int drainTo(MeasurementBatch batch) {
+        synchronized (lock) {
+            batch.reset(sensorId, sensorType);
+            int n = drainLocked(batch.timestamps(), batch.values());
+            batch.setSize(n);
+            return n;
+        }
+    }
+
+    /**
+     * Sposta le misurazioni disponibili negli array forniti senza attendere.
+     * @return numero di misurazioni copiate (al più outTimestamps.length)
+     */
+    public int drainTo(long[] outTimestamps, double[] outValues) {
+        synchronized (lock) {
+            return drainLocked(outTimestamps, outValues);
+        }
+    }
+
+    private int drainLocked(long[] outTimestamps, double[] outValues) {
+        int n = Math.min(count, Math.min(outTimestamps.length, outValues.length));
+        int capacity = timestamps.length;
+        int firstPart = Math.min(n, capacity - head);
+        System.arraycopy(timestamps, head, outTimestamps, 0, firstPart);
+        System.arraycopy(values, head, outValues, 0, firstPart);
+        System.arraycopy(timestamps, 0, outTimestamps, firstPart, n - firstPart);
+        System.arraycopy(values, 0, outValues, firstPart, n - firstPart);
+        head = (head + n) % capacity;
+        count -= n;
+        if (count == 0) {
+            head = 0;
+        }
+        if (n > 0) {
+            lock.notifyAll();
+        }
+        return n;
+    }
+
+    public int size() {
+        synchronized (lock) {
+            return count;
+        }
+    }
+
+    /**
+     * @return numero di inserimenti che hanno trovato il buffer pieno e hanno atteso
+     */
+    public long getBlockedSamples() {
+        synchronized (lock) {
+            return blockedSamples;
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package desm.powerplant.pollutionSensor;
+
+import desm.powerplant.pollutionSensor.simulator.PollutionSensor;
+
+/**
+ * Programmazione di un PollutionSensor senza thread proprio: SensorScheduler ne invoca
+ * sample() ogni periodMs invece di avviarne il ciclo run(), che dorme tra una lettura
+ * e l'altra. Il valore lo genera il simulatore, nel buffer passato al costruttore.
+ */
+public class ScheduledSensor {
+
+    private final PollutionSensor simulator;
+    private final String type;
+    private final long periodMs;
+    private final PrimitiveRingBuffer buffer;
+    private long nextDue;
+
+    public ScheduledSensor(String id, String type, double mean, double variance, long periodMs,
+                           PrimitiveRingBuffer buffer) {
+        this.simulator = new PollutionSensor(id, type, mean, variance, buffer);
+        this.type = type.intern();
+        this.periodMs = periodMs;
+        this.buffer = buffer;
+    }
+
+    /**
+     * Campiona il sensore e programma la lettura successiva. Se lo scheduler è rimasto
+     * indietro di più di un periodo riparte da now invece di recuperare le letture perse.
+     */
+    void sample(long now) {
+        simulator.sample();
+        nextDue += periodMs;
+        if (nextDue <= now) {
+            nextDue = now + periodMs;
+        }
+    }
+
+    void schedule(long firstDue) {
+        this.nextDue = firstDue;
+    }
+
+    long getNextDue() {
+        return nextDue;
+    }
+
+    public String getId() {
+        return simulator.getIdentifier();
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public PrimitiveRingBuffer getBuffer() {
+        return buffer;
+    }
+}
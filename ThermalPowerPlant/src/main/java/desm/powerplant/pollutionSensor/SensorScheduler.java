@@ -0,0 +1,90 @@
+package desm.powerplant.pollutionSensor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Unico thread che campiona tutti i sensori della centrale alla loro scadenza.
+ * Aggiungere un sensore non aggiunge thread: lo scheduler dorme fino alla scadenza
+ * più vicina e campiona tutti i sensori scaduti in quel momento.
+ * Se il buffer di un sensore è pieno il campionamento si blocca, quindi la
+ * backpressure della pipeline rallenta tutti i sensori insieme.
+ */
+public class SensorScheduler implements Runnable {
+    private static final Logger logger = Logger.getLogger(SensorScheduler.class.getName());
+
+    private final List<ScheduledSensor> sensors = new ArrayList<>();
+    private final Object lock = new Object();
+    private volatile boolean running;
+    private Thread worker;
+
+    /**
+     * Registra un sensore; va chiamato prima di start.
+     */
+    public void register(ScheduledSensor sensor) {
+        synchronized (lock) {
+            sensors.add(sensor);
+        }
+    }
+
+    public void start() {
+        long now = System.currentTimeMillis();
+        synchronized (lock) {
+            for (ScheduledSensor sensor : sensors) {
+                sensor.schedule(now);
+            }
+        }
+        running = true;
+        worker = new Thread(this, "SensorScheduler");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                awaitNextDue();
+                long now = System.currentTimeMillis();
+                for (ScheduledSensor sensor : sensors) {
+                    if (sensor.getNextDue() <= now) {
+                        sensor.sample(now);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                logger.severe("Error in sensor scheduler: " + e.getMessage());
+            }
+        }
+    }
+
+    private void awaitNextDue() throws InterruptedException {
+        synchronized (lock) {
+            while (running) {
+                long next = Long.MAX_VALUE;
+                for (ScheduledSensor sensor : sensors) {
+                    next = Math.min(next, sensor.getNextDue());
+                }
+                long remaining = next - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return;
+                }
+                lock.wait(remaining);
+            }
+        }
+    }
+
+    public boolean isAlive() {
+        return worker != null && worker.isAlive();
+    }
+
+    public void stopMeGently() {
+        running = false;
+        synchronized (lock) {
+            lock.notifyAll();
+        }
+    }
+}
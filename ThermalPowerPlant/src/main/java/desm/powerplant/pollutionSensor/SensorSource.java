@@ -0,0 +1,163 @@
+package desm.powerplant.pollutionSensor;
+
+import java.util.List;
+import java.util.concurrent.Flow;
+import java.util.logging.Logger;
+
+/**
+ * Primo stadio della pipeline dei sensori: pubblica blocchi di misurazioni estratti
+ * dai PrimitiveRingBuffer dei sensori non appena arrivano, ma solo finché il subscriber
+ * ha domanda. Ogni blocco contiene le misurazioni di un solo sensore; i buffer vengono
+ * visitati a turno così che un sensore veloce non affami gli altri.
+ * Senza domanda i buffer non vengono svuotati: quando uno è pieno lo scheduler dei
+ * sensori si blocca in addSample, quindi la backpressure arriva fino ai sensori.
+ *
+ * Ammette un solo subscriber. Il blocco passato a onNext torna al pool al ritorno
+ * del metodo, quindi il subscriber non deve conservarlo.
+ */
+public class SensorSource implements Flow.Publisher<MeasurementBatch>, Runnable {
+    private static final Logger logger = Logger.getLogger(SensorSource.class.getName());
+
+    private final PrimitiveRingBuffer[] buffers;
+    private final MeasurementBatchPool pool;
+    private final Object lock = new Object();
+    private boolean dataAvailable;
+    private int nextBuffer;
+    private Flow.Subscriber<? super MeasurementBatch> subscriber;
+    private long demand;
+    private volatile boolean running;
+    private Thread worker;
+
+    public SensorSource(List<PrimitiveRingBuffer> buffers, MeasurementBatchPool pool) {
+        this.buffers = buffers.toArray(new PrimitiveRingBuffer[0]);
+        this.pool = pool;
+        for (PrimitiveRingBuffer buffer : this.buffers) {
+            buffer.setDataListener(this::signalData);
+        }
+    }
+
+    private void signalData() {
+        synchronized (lock) {
+            dataAvailable = true;
+            lock.notifyAll();
+        }
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super MeasurementBatch> newSubscriber) {
+        synchronized (lock) {
+            if (subscriber != null) {
+                newSubscriber.onSubscribe(new Flow.Subscription() {
+                    @Override
+                    public void request(long n) {
+                    }
+
+                    @Override
+                    public void cancel() {
+                    }
+                });
+                newSubscriber.onError(new IllegalStateException("SensorSource supports a single subscriber"));
+                return;
+            }
+            subscriber = newSubscriber;
+            running = true;
+        }
+        newSubscriber.onSubscribe(new Flow.Subscription() {
+            @Override
+            public void request(long n) {
+                if (n <= 0) {
+                    cancel();
+                    newSubscriber.onError(new IllegalArgumentException("Non-positive request: " + n));
+                    return;
+                }
+                synchronized (lock) {
+                    demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+                    lock.notifyAll();
+                }
+            }
+
+            @Override
+            public void cancel() {
+                shutdown();
+            }
+        });
+        worker = new Thread(this, "SensorSource");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            MeasurementBatch batch = null;
+            try {
+                awaitDemand();
+                batch = pool.acquire(null, null);
+                if (!drainNext(batch)) {
+                    awaitData();
+                    continue;
+                }
+                synchronized (lock) {
+                    demand--;
+                }
+                subscriber.onNext(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                logger.severe("Error in sensor source: " + e.getMessage());
+            } finally {
+                pool.release(batch);
+            }
+        }
+    }
+
+    /**
+     * Svuota nel blocco il primo buffer non vuoto, partendo da quello successivo
+     * all'ultimo servito.
+     * @return false se tutti i buffer erano vuoti
+     */
+    private boolean drainNext(MeasurementBatch batch) {
+        synchronized (lock) {
+            // Azzerato prima della scansione: un inserimento concorrente lo rialza
+            dataAvailable = false;
+        }
+        for (int i = 0; i < buffers.length; i++) {
+            int idx = (nextBuffer + i) % buffers.length;
+            if (buffers[idx].drainTo(batch) > 0) {
+                nextBuffer = (idx + 1) % buffers.length;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void awaitData() throws InterruptedException {
+        synchronized (lock) {
+            while (!dataAvailable && running) {
+                lock.wait();
+            }
+        }
+    }
+
+    private void awaitDemand() throws InterruptedException {
+        synchronized (lock) {
+            while (demand == 0 && running) {
+                lock.wait();
+            }
+            if (!running) {
+                throw new InterruptedException("Sensor source stopped");
+            }
+        }
+    }
+
+    public void shutdown() {
+        running = false;
+        synchronized (lock) {
+            lock.notifyAll();
+        }
+        if (worker != null) {
+            worker.interrupt();
+        }
+    }
+}
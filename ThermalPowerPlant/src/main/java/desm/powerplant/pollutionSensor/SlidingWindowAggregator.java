@@ -0,0 +1,174 @@
+package desm.powerplant.pollutionSensor;
+
+/**
+ * Operatore di aggregazione a finestra scorrevole su un ring buffer di primitive.
+ * Mantiene le ultime windowSize misurazioni e, ogni slide nuove misurazioni
+ * (a finestra piena), emette media, minimo, massimo e varianza della finestra.
+ * Con windowSize = 8 e slide = 4 si ottiene la sliding window con sovrapposizione del 50%.
+ *
+ * Il costo per campione è O(1) ammortizzato e non ci sono allocazioni:
+ * - somma e somma dei quadrati sono incrementali (calcolate rispetto al primo valore
+ *   visto per limitare la cancellazione numerica e ricalcolate periodicamente dal ring)
+ * - minimo e massimo sono mantenuti con due deque monotone di indici
+ *
+ * Non è thread-safe: va usato da un solo thread o protetto dal chiamante.
+ */
+public class SlidingWindowAggregator {
+
+    /**
+     * Riceve le statistiche di ogni finestra completata.
+     */
+    public interface WindowListener {
+        void onWindow(long startTimestamp, long endTimestamp,
+                      double average, double min, double max, double variance);
+    }
+
+    private static final int RESYNC_INTERVAL = 1024;
+
+    private final int windowSize;
+    private final int slide;
+    private final long[] timestamps;
+    private final double[] values;
+
+    // Deque monotone di numeri di sequenza (assoluti) per minimo e massimo
+    private final long[] minQueue;
+    private final long[] maxQueue;
+    private int minHead, minSize;
+    private int maxHead, maxSize;
+
+    private long seq;
+    private double shift;
+    private boolean shiftSet;
+    private double sum;
+    private double sumSq;
+    private int sinceResync;
+
+    public SlidingWindowAggregator(int windowSize, int slide) {
+        if (windowSize <= 0 || slide <= 0 || slide > windowSize) {
+            throw new IllegalArgumentException("Invalid window: size=" + windowSize + " slide=" + slide);
+        }
+        this.windowSize = windowSize;
+        this.slide = slide;
+        this.timestamps = new long[windowSize];
+        this.values = new double[windowSize];
+        this.minQueue = new long[windowSize];
+        this.maxQueue = new long[windowSize];
+    }
+
+    /**
+     * Aggiunge una misurazione. Se completa una finestra ne notifica le statistiche al listener.
+     * Le misurazioni devono arrivare in ordine di timestamp.
+     */
+    public void add(long timestamp, double value, WindowListener listener) {
+        if (!shiftSet) {
+            shift = value;
+            shiftSet = true;
+        }
+        int slot = (int) (seq % windowSize);
+        if (seq >= windowSize) {
+            double old = values[slot] - shift;
+            sum -= old;
+            sumSq -= old * old;
+        }
+        timestamps[slot] = timestamp;
+        values[slot] = value;
+        double centered = value - shift;
+        sum += centered;
+        sumSq += centered * centered;
+
+        pushMin(seq, value);
+        pushMax(seq, value);
+        seq++;
+
+        if (++sinceResync >= RESYNC_INTERVAL) {
+            resync();
+        }
+
+        if (seq >= windowSize && (seq - windowSize) % slide == 0) {
+            emit(listener);
+        }
+    }
+
+    private void emit(WindowListener listener) {
+        long oldest = seq - windowSize;
+        // Scarta dalle deque gli indici usciti dalla finestra
+        while (minSize > 0 && minQueue[minHead] < oldest) {
+            minHead = (minHead + 1) % windowSize;
+            minSize--;
+        }
+        while (maxSize > 0 && maxQueue[maxHead] < oldest) {
+            maxHead = (maxHead + 1) % windowSize;
+            maxSize--;
+        }
+        double mean = sum / windowSize;
+        double variance = Math.max(0.0, sumSq / windowSize - mean * mean);
+        listener.onWindow(
+                timestamps[(int) (oldest % windowSize)],
+                timestamps[(int) ((seq - 1) % windowSize)],
+                mean + shift,
+                values[(int) (minQueue[minHead] % windowSize)],
+                values[(int) (maxQueue[maxHead] % windowSize)],
+                variance);
+    }
+
+    private void pushMin(long index, double value) {
+        long oldest = index - windowSize + 1;
+        while (minSize > 0 && minQueue[minHead] < oldest) {
+            minHead = (minHead + 1) % windowSize;
+            minSize--;
+        }
+        while (minSize > 0 && values[(int) (minQueue[(minHead + minSize - 1) % windowSize] % windowSize)] >= value) {
+            minSize--;
+        }
+        minQueue[(minHead + minSize) % windowSize] = index;
+        minSize++;
+    }
+
+    private void pushMax(long index, double value) {
+        long oldest = index - windowSize + 1;
+        while (maxSize > 0 && maxQueue[maxHead] < oldest) {
+            maxHead = (maxHead + 1) % windowSize;
+            maxSize--;
+        }
+        while (maxSize > 0 && values[(int) (maxQueue[(maxHead + maxSize - 1) % windowSize] % windowSize)] <= value) {
+            maxSize--;
+        }
+        maxQueue[(maxHead + maxSize) % windowSize] = index;
+        maxSize++;
+    }
+
+    /**
+     * Ricalcola somma e somma dei quadrati dal contenuto del ring per azzerare
+     * l'errore accumulato dagli aggiornamenti incrementali.
+     */
+    private void resync() {
+        sinceResync = 0;
+        int n = (int) Math.min(seq, windowSize);
+        double s = 0.0;
+        double sq = 0.0;
+        for (int i = 0; i < n; i++) {
+            double centered = values[i] - shift;
+            s += centered;
+            sq += centered * centered;
+        }
+        sum = s;
+        sumSq = sq;
+    }
+
+    /**
+     * @return numero di misurazioni attualmente nella finestra
+     */
+    public int size() {
+        return (int) Math.min(seq, windowSize);
+    }
+
+    public void reset() {
+        seq = 0;
+        sum = 0.0;
+        sumSq = 0.0;
+        shiftSet = false;
+        sinceResync = 0;
+        minHead = minSize = 0;
+        maxHead = maxSize = 0;
+    }
+}
@@ -0,0 +1,137 @@
+package desm.powerplant.pollutionSensor;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Flow;
+
+/**
+ * Stadio di windowing della pipeline: fa passare ogni blocco di misurazioni nella
+ * SlidingWindowAggregator del suo tipo di sensore (una per tipo, create al primo blocco)
+ * e pubblica, per ogni blocco che completa almeno una finestra, un blocco con le medie
+ * di quel tipo (timestamp = fine della finestra). Le misurazioni grezze alimentano
+ * anche gli sketch dei quantili dell'intervallo corrente, se presenti.
+ * Chiede un nuovo blocco a monte solo se a valle c'è domanda, così la backpressure
+ * del publisher risale fino alla sorgente.
+ *
+ * Gira sul thread della sorgente. Ammette un solo subscriber.
+ */
+public class WindowStage implements Flow.Processor<MeasurementBatch, MeasurementBatch> {
+
+    private final int windowSize;
+    private final int slide;
+    private final Map<String, SlidingWindowAggregator> aggregators = new HashMap<>();
+    private final MeasurementBatchPool pool;
+    private final String outputId;
+    private final IntervalSketches sketches;
+    private final Object lock = new Object();
+    private Flow.Subscription upstream;
+    private Flow.Subscriber<? super MeasurementBatch> downstream;
+    private long downstreamDemand;
+    private boolean upstreamRequested;
+    private MeasurementBatch output;
+
+    private final SlidingWindowAggregator.WindowListener collector =
+            (start, end, average, min, max, variance) -> output.add(end, average);
+
+    public WindowStage(int windowSize, int slide, MeasurementBatchPool pool, String outputId,
+                       IntervalSketches sketches) {
+        this.sketches = sketches;
+        this.windowSize = windowSize;
+        this.slide = slide;
+        this.pool = pool;
+        this.outputId = outputId;
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super MeasurementBatch> subscriber) {
+        synchronized (lock) {
+            if (downstream != null) {
+                throw new IllegalStateException("WindowStage supports a single subscriber");
+            }
+            downstream = subscriber;
+        }
+        subscriber.onSubscribe(new Flow.Subscription() {
+            @Override
+            public void request(long n) {
+                synchronized (lock) {
+                    downstreamDemand = downstreamDemand + n < 0 ? Long.MAX_VALUE : downstreamDemand + n;
+                }
+                requestUpstreamIfNeeded();
+            }
+
+            @Override
+            public void cancel() {
+                Flow.Subscription subscription;
+                synchronized (lock) {
+                    subscription = upstream;
+                }
+                if (subscription != null) {
+                    subscription.cancel();
+                }
+            }
+        });
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+        synchronized (lock) {
+            upstream = subscription;
+        }
+        requestUpstreamIfNeeded();
+    }
+
+    /**
+     * Tiene al più un blocco richiesto a monte, e solo se a valle c'è domanda.
+     */
+    private void requestUpstreamIfNeeded() {
+        Flow.Subscription subscription;
+        synchronized (lock) {
+            if (upstream == null || upstreamRequested || downstreamDemand == 0) {
+                return;
+            }
+            upstreamRequested = true;
+            subscription = upstream;
+        }
+        subscription.request(1);
+    }
+
+    @Override
+    public void onNext(MeasurementBatch batch) {
+        synchronized (lock) {
+            upstreamRequested = false;
+        }
+        SlidingWindowAggregator aggregator = aggregators.computeIfAbsent(
+                batch.getSensorType(), type -> new SlidingWindowAggregator(windowSize, slide));
+        output = pool.acquire(outputId, batch.getSensorType());
+        try {
+            long[] timestamps = batch.timestamps();
+            double[] values = batch.values();
+            for (int i = 0; i < batch.size(); i++) {
+                aggregator.add(timestamps[i], values[i], collector);
+            }
+            if (sketches != null) {
+                sketches.add(batch.getSensorType(), values, batch.size());
+            }
+            if (!output.isEmpty()) {
+                synchronized (lock) {
+                    downstreamDemand--;
+                }
+                downstream.onNext(output);
+            }
+        } finally {
+            pool.release(output);
+            output = null;
+        }
+        requestUpstreamIfNeeded();
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        downstream.onError(throwable);
+    }
+
+    @Override
+    public void onComplete() {
+        downstream.onComplete();
+    }
+}
@@ -8,4 +8,12 @@ public interface Buffer {
 
     List<Measurement> readAllAndClean();
 
-}
\ No newline at end of file
+    /**
+     * Inserisce una misurazione senza richiedere un oggetto Measurement.
+     * I buffer colonnari la ridefiniscono per evitare l'allocazione.
+     */
+    default void addSample(String id, String type, double value, long timestamp) {
+        addMeasurement(new Measurement(id, type, value, timestamp));
+    }
+
+}
@@ -2,12 +2,12 @@ package desm.powerplant.pollutionSensor.simulator;
 
 public class PollutionSensor extends Simulator {
 
-    private final int mean = 125000;
-    private final int variance = 5000;
+    private final double mean;
+    private final double variance;
     private static int ID = 1;
 
     public PollutionSensor(String id, Buffer buffer){
-        super(id, "CO2", buffer);
+        this(id, "CO2", 125000, 5000, buffer);
     }
 
     //Use this constructor to initialize the Pollution Sensor simulator in your project
@@ -15,26 +15,41 @@ public class PollutionSensor extends Simulator {
         this("CO2-"+(ID++), buffer);
     }
 
+    /**
+     * Stesso generatore gaussiano per gli altri inquinanti (NOx, SO2, PM2.5),
+     * con media e varianza del tipo.
+     */
+    public PollutionSensor(String id, String type, double mean, double variance, Buffer buffer){
+        super(id, type, buffer);
+        this.mean = mean;
+        this.variance = variance;
+    }
+
     @Override
     public void run() {
 
-        double i = rnd.nextInt();
         long waitingTime;
 
         while(!stopCondition){
-            double co2 = getCO2Value(i);
-            addMeasurement(co2);
+            sample();
 
             waitingTime = 2000;
             sensorSleep(waitingTime);
 
-            i+=0.2;
-
         }
 
     }
 
-    private double getCO2Value(double t){
+    /**
+     * Produce una singola misurazione e la scrive nel buffer. La usa run() e la
+     * invoca SensorScheduler per campionare il sensore senza avviarne il thread.
+     */
+    public void sample(){
+        double value = getValue();
+        addMeasurement(value);
+    }
+
+    private double getValue(){
         double gaussian = rnd.nextGaussian();
         return mean + Math.sqrt(variance) * gaussian;
     }
@@ -11,8 +11,8 @@ public abstract class Simulator extends Thread {
     private String type;
 
     public Simulator(String id, String type, Buffer buffer){
-        this.id = id;
-        this.type = type;
+        this.id = id.intern();
+        this.type = type.intern();
         this.buffer = buffer;
     }
 
@@ -21,7 +21,7 @@ public abstract class Simulator extends Thread {
     }
 
     protected void addMeasurement(double measurement){
-        buffer.addMeasurement(new Measurement(id, type, measurement, currentTime()));
+        buffer.addSample(id, type, measurement, currentTime());
     }
 
     public Buffer getBuffer(){